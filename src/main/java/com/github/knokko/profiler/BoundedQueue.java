@@ -0,0 +1,81 @@
+package com.github.knokko.profiler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded lock-free queue that supports multiple producers and multiple consumers. Each slot has a sequence number
+ * that tells whether the slot is ready to be written (sequence == position) or read (sequence == position + 1), so
+ * producers and consumers only need a single compare-and-set on their position to claim a slot.
+ */
+class BoundedQueue<T> {
+
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private final AtomicLong dequeuePosition = new AtomicLong();
+
+    /**
+     * @param minCapacity The minimum capacity of the queue, which will be rounded up to a power of 2
+     */
+    BoundedQueue(int minCapacity) {
+        if (minCapacity < 1) throw new IllegalArgumentException("minCapacity (" + minCapacity + ") must be positive");
+        int capacity = Integer.highestOneBit(minCapacity);
+        if (capacity < minCapacity) capacity *= 2;
+
+        this.elements = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int index = 0; index < capacity; index++) sequences.set(index, index);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Adds `element` to the queue, unless the queue is full
+     * @return `true` if the element was added, `false` if the queue was full
+     */
+    boolean offer(T element) {
+        long position = enqueuePosition.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    elements[index] = element;
+
+                    // This volatile write publishes the element to the consumers
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = enqueuePosition.get();
+            } else if (difference < 0) return false;
+            else position = enqueuePosition.get();
+        }
+    }
+
+    /**
+     * Removes the oldest element from the queue
+     * @return The removed element, or `null` if the queue was empty
+     */
+    T poll() {
+        long position = dequeuePosition.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    @SuppressWarnings("unchecked")
+                    T element = (T) elements[index];
+                    elements[index] = null;
+
+                    // This volatile write makes the slot available to the producers again
+                    sequences.set(index, position + elements.length);
+                    return element;
+                }
+                position = dequeuePosition.get();
+            } else if (difference < 0) return null;
+            else position = dequeuePosition.get();
+        }
+    }
+}
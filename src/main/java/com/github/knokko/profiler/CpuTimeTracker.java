@@ -0,0 +1,89 @@
+package com.github.knokko.profiler;
+
+import com.github.knokko.profiler.storage.ThreadStorage;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Computes how much CPU time each thread used since its previous sample, using `ThreadMXBean.getThreadCpuTime`. The
+ * CPU time of each thread is remembered in an open-addressed hash table (from thread ID to CPU time), so tracking
+ * doesn't allocate anything. The table only remembers the threads of the previous sample, so threads that are no
+ * longer sampled (e.g. because they died) are forgotten automatically.<br>
+ * Each sampling thread has its own tracker, so this class is <b>not</b> thread-safe.
+ */
+class CpuTimeTracker {
+
+    private static final long EMPTY = -1;
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    // Each table stores the thread IDs at the even indices, and their CPU times at the odd indices
+    private long[] previousTable = createTable(64), currentTable = createTable(64);
+    private int currentSize;
+
+    private static long[] createTable(int capacity) {
+        long[] table = new long[2 * capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    boolean isSupported() {
+        return threadBean.isThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled();
+    }
+
+    /**
+     * @return The CPU time (in nanoseconds) that the given thread used since its previous sample, or
+     * `ThreadStorage.UNKNOWN_CPU_TIME` when this is its first sample, or when its CPU time can't be measured
+     */
+    long getCpuTimeDelta(long threadID) {
+        long cpuTime = threadBean.getThreadCpuTime(threadID);
+        if (cpuTime == -1) return ThreadStorage.UNKNOWN_CPU_TIME;
+
+        if (2 * (currentSize + 1) > currentTable.length / 2) currentTable = rehash(currentTable, currentTable.length);
+        put(currentTable, threadID, cpuTime);
+        currentSize += 1;
+
+        long previousCpuTime = get(previousTable, threadID);
+        return previousCpuTime != EMPTY ? cpuTime - previousCpuTime : ThreadStorage.UNKNOWN_CPU_TIME;
+    }
+
+    /**
+     * Must be called after each sample: the CPU times of the current sample become the previous CPU times
+     */
+    void finishSample() {
+        long[] oldTable = previousTable;
+        previousTable = currentTable;
+        currentTable = oldTable;
+        Arrays.fill(currentTable, EMPTY);
+        if (currentTable.length < previousTable.length) currentTable = createTable(previousTable.length / 2);
+        currentSize = 0;
+    }
+
+    private static int slot(long[] table, long threadID) {
+        int mask = table.length / 2 - 1;
+        int slot = Long.hashCode(threadID * 0x9E3779B97F4A7C15L) & mask;
+        while (table[2 * slot] != EMPTY && table[2 * slot] != threadID) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private static void put(long[] table, long threadID, long cpuTime) {
+        int slot = slot(table, threadID);
+        table[2 * slot] = threadID;
+        table[2 * slot + 1] = cpuTime;
+    }
+
+    private static long get(long[] table, long threadID) {
+        int slot = slot(table, threadID);
+        return table[2 * slot] == threadID ? table[2 * slot + 1] : EMPTY;
+    }
+
+    private static long[] rehash(long[] table, int newCapacity) {
+        long[] newTable = createTable(newCapacity);
+        for (int slot = 0; slot < table.length / 2; slot++) {
+            if (table[2 * slot] != EMPTY) put(newTable, table[2 * slot], table[2 * slot + 1]);
+        }
+        return newTable;
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.knokko.profiler;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Schedules the samples of a `SampleProfiler` at a fixed rate: the n-th tick is due at `startTime + n * period`,
+ * regardless of how long each sample takes. When a sample takes so long that the next tick is more than 1 period
+ * late, the ticks in between are skipped and counted as missed, rather than stretching the interval. This class is
+ * only used by the sampling thread.
+ */
+class FixedRateScheduler {
+
+    // The period can be changed between ticks, which affects the schedule of all subsequent ticks
+    long period;
+    private long nextTick;
+
+    FixedRateScheduler(long period) {
+        this.period = period;
+        this.nextTick = System.nanoTime();
+    }
+
+    /**
+     * Waits until the next tick is due
+     * @param jitter When positive, each tick will be delayed by a random amount between 0 and `jitter * period`
+     *               nanoseconds, which avoids lockstep with periodic work in the application. This doesn't affect the
+     *               schedule of the subsequent ticks.
+     * @return The number of ticks that were missed (skipped) since the previous tick
+     */
+    long awaitNextTick(double jitter) {
+        nextTick += period;
+
+        long numMissedTicks = 0;
+        long lateness = System.nanoTime() - nextTick;
+        if (lateness >= period) {
+            numMissedTicks = lateness / period;
+            nextTick += numMissedTicks * period;
+        }
+
+        long deadline = nextTick;
+        if (jitter > 0) deadline += (long) (jitter * period * ThreadLocalRandom.current().nextDouble());
+
+        long remainingTime;
+        while ((remainingTime = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remainingTime);
+
+            // Clear the interrupted flag, since it would cause parkNanos to return immediately
+            //noinspection ResultOfMethodCallIgnored
+            Thread.interrupted();
+        }
+        return numMissedTicks;
+    }
+}
@@ -0,0 +1,203 @@
+package com.github.knokko.profiler;
+
+import com.github.knokko.profiler.storage.SampleStorage;
+import com.github.knokko.profiler.storage.TimelineThreadStorage;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Captures the samples of a thread during a time window (for instance a slow request) on demand, and passes them to
+ * a sink on a background thread. This is meant to be combined with a `TimelineThreadStorage` that has a retention
+ * policy (e.g. `TimelineRetention.maxAge`): the storage only keeps the recent samples, and the interesting windows
+ * are captured before they are evicted.<br>
+ * The thread that calls `captureWindow` only needs to enqueue the request, which doesn't block. The recorder thread
+ * waits until the profiler has taken a sample after the end of the window (or until `maxWaitTime` has passed), takes
+ * a `TimelineThreadStorage.snapshot()` of the thread, copies the samples and intervals of the window from that
+ * snapshot, and passes them to the sink. Since both are copied from the same snapshot, they are consistent with each
+ * other, even when the profiler inserts or evicts samples in the meantime. The snapshot is closed after the sink
+ * returns.<br>
+ * The retention policy of the storage must keep the samples long enough for the recorder to capture them: the
+ * samples of a window are evicted when `maxAge` is shorter than the length of the window plus the time needed
+ * to handle the pending requests.
+ */
+public class FlightRecorder {
+
+    private static final Request STOP = new Request(0, 0, 0, null);
+
+    /**
+     * The maximum time (in nanoseconds) that the recorder will wait for the profiler to take a sample after the end of
+     * a window. When the profiler is paused or stopped, the recorder will capture the window after waiting this long.
+     */
+    public volatile long maxWaitTime = 100_000_000L;
+
+    private final SampleProfiler profiler;
+    private final SampleStorage<TimelineThreadStorage> storage;
+    private final BlockingQueue<Request> requests;
+    private final AtomicLong numDroppedRequests = new AtomicLong();
+
+    private String threadName = "FlightRecorder";
+    private Thread recordThread;
+    private boolean hasStarted, hasStopped;
+
+    /**
+     * @param profiler The profiler that inserts samples into `storage`
+     * @param storage The storage from which the windows will be captured
+     * @param maxPendingRequests The maximum number of requests that can be waiting to be captured. When there are
+     *                           more requests, new requests will be dropped.
+     */
+    public FlightRecorder(
+            SampleProfiler profiler, SampleStorage<TimelineThreadStorage> storage, int maxPendingRequests
+    ) {
+        this.profiler = profiler;
+        this.storage = storage;
+        this.requests = new ArrayBlockingQueue<>(maxPendingRequests);
+    }
+
+    public void setThreadName(String threadName) {
+        if (hasStarted) throw new IllegalStateException("Can't change thread name after the recorder has started");
+        this.threadName = threadName;
+    }
+
+    public void start() {
+        if (hasStarted) throw new IllegalStateException("Can't start twice");
+        hasStarted = true;
+
+        recordThread = new Thread(this::startRecording);
+        recordThread.setDaemon(true);
+        recordThread.setName(threadName);
+        recordThread.start();
+    }
+
+    /**
+     * Causes the recorder to stop after handling all pending requests, and blocks the current thread until the
+     * recorder is really stopped. Requests that are submitted after calling this method are ignored.
+     */
+    public void stop() {
+        if (!hasStarted) throw new IllegalStateException("Can't stop before starting");
+        if (hasStopped) throw new IllegalStateException("Can't stop twice");
+        hasStopped = true;
+        try {
+            requests.put(STOP);
+            recordThread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Requests the recorder to capture the samples of the thread with ID `threadID` between `startTime` and `endTime`
+     * (both inclusive, using `System.nanoTime()`), and pass them to `sink` on the recorder thread. This method doesn't
+     * block.
+     * @return `false` if the request was dropped because there are already `maxPendingRequests` pending requests
+     */
+    public boolean captureWindow(long threadID, long startTime, long endTime, Consumer<Window> sink) {
+        if (requests.offer(new Request(threadID, startTime, endTime, sink))) return true;
+        numDroppedRequests.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Requests the recorder to capture the samples of the current thread between `startTime` and now. See
+     * `captureWindow(threadID, startTime, endTime, sink)`.
+     */
+    public boolean captureWindow(long startTime, Consumer<Window> sink) {
+        return captureWindow(Thread.currentThread().getId(), startTime, System.nanoTime(), sink);
+    }
+
+    /**
+     * @return The number of requests that were dropped because there were too many pending requests
+     */
+    public long getNumDroppedRequests() {
+        return numDroppedRequests.get();
+    }
+
+    private void startRecording() {
+        while (true) {
+            Request request;
+            try {
+                request = requests.take();
+            } catch (InterruptedException ignore) {
+                // When interrupted, just try again
+                continue;
+            }
+            if (request == STOP) return;
+
+            awaitSampleAfter(request.endTime);
+            TimelineThreadStorage threadStorage = storage.getThreadStorage(request.threadID);
+            TimelineThreadStorage.Snapshot snapshot = threadStorage != null ? threadStorage.snapshot() : null;
+            try {
+                request.sink.accept(capture(request, snapshot));
+            } catch (RuntimeException failure) {
+                // Report the failure, but keep handling the other requests
+                Thread.UncaughtExceptionHandler handler = recordThread.getUncaughtExceptionHandler();
+                handler.uncaughtException(recordThread, failure);
+            } finally {
+                if (snapshot != null) snapshot.close();
+            }
+        }
+    }
+
+    private void awaitSampleAfter(long endTime) {
+        while (profiler.getLastSampleTime() - endTime < 0 && System.nanoTime() - endTime < maxWaitTime) {
+            try {
+                //noinspection BusyWait
+                Thread.sleep(1);
+            } catch (InterruptedException ignore) {
+                // When interrupted, just check again
+            }
+        }
+    }
+
+    private Window capture(Request request, TimelineThreadStorage.Snapshot snapshot) {
+        if (snapshot == null) {
+            return new Window(
+                    request.threadID, request.startTime, request.endTime,
+                    Collections.emptyList(), Collections.emptyList()
+            );
+        }
+        return new Window(
+                request.threadID, request.startTime, request.endTime,
+                snapshot.getBetween(request.startTime, request.endTime),
+                snapshot.getIntervalsBetween(request.startTime, request.endTime)
+        );
+    }
+
+    private static class Request {
+
+        final long threadID, startTime, endTime;
+        final Consumer<Window> sink;
+
+        Request(long threadID, long startTime, long endTime, Consumer<Window> sink) {
+            this.threadID = threadID;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.sink = sink;
+        }
+    }
+
+    /**
+     * The samples of a thread during a captured time window. Unlike the storage, this won't change anymore.
+     */
+    public static class Window {
+
+        public final long threadID, startTime, endTime;
+        public final List<TimelineThreadStorage.Sample> samples;
+        public final List<TimelineThreadStorage.Interval> intervals;
+
+        public Window(
+                long threadID, long startTime, long endTime,
+                List<TimelineThreadStorage.Sample> samples, List<TimelineThreadStorage.Interval> intervals
+        ) {
+            this.threadID = threadID;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.samples = Collections.unmodifiableList(samples);
+            this.intervals = Collections.unmodifiableList(intervals);
+        }
+    }
+}
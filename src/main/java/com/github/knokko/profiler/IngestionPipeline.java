@@ -0,0 +1,147 @@
+package com.github.knokko.profiler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Decouples capturing samples from inserting them into the storage: the sampling thread only submits the captured
+ * `SampleBatch`es to bounded lock-free queues, and 1 or more worker threads take them from the queues and insert them.
+ * This keeps the capture latency stable, regardless of how long the storages need to insert the samples.<br>
+ * Each thread ID is routed to a fixed worker (see `getWorker`), so the samples of each thread are always inserted by
+ * the same worker, in the order in which they were captured. This is needed by storages like
+ * `TimelineThreadStorage`, which expect samples in timestamp order. Every worker has its own queue, and every batch
+ * is submitted to all queues, after which each worker only inserts the samples of its own threads. The last worker
+ * that finishes a batch passes it to `finishBatch`.
+ */
+class IngestionPipeline {
+
+    // The time that idle workers wait before polling the queue again
+    private static final long IDLE_PARK_TIME = 200_000L;
+
+    /**
+     * @return The index of the worker that inserts the samples of the thread with the given ID
+     */
+    static int getWorker(long threadID, int numWorkers) {
+        return ThreadPartitions.get(threadID, numWorkers);
+    }
+
+    private final BoundedQueue<SampleBatch>[] queues;
+    private final OverflowPolicy overflowPolicy;
+    private final Inserter insertSamples;
+    private final Consumer<SampleBatch> finishBatch;
+    private final Thread[] workers;
+    private final AtomicLong numDroppedBatches = new AtomicLong();
+
+    private volatile boolean shouldStop;
+
+    /**
+     * @param queueCapacity The capacity of the queue of each worker
+     * @param insertSamples Inserts the samples of the threads of a worker
+     * @param finishBatch Is called once for each batch, after all workers have inserted (or dropped) their samples
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    IngestionPipeline(
+            int numWorkers, int queueCapacity, OverflowPolicy overflowPolicy,
+            Inserter insertSamples, Consumer<SampleBatch> finishBatch
+    ) {
+        if (numWorkers < 1) throw new IllegalArgumentException("numWorkers (" + numWorkers + ") must be positive");
+        this.queues = new BoundedQueue[numWorkers];
+        for (int index = 0; index < numWorkers; index++) queues[index] = new BoundedQueue<>(queueCapacity);
+        this.overflowPolicy = overflowPolicy;
+        this.insertSamples = insertSamples;
+        this.finishBatch = finishBatch;
+        this.workers = new Thread[numWorkers];
+    }
+
+    void start(String threadName) {
+        for (int index = 0; index < workers.length; index++) {
+            int worker = index;
+            workers[index] = new Thread(() -> work(worker));
+            workers[index].setDaemon(true);
+            workers[index].setName(threadName + "-ingest-" + index);
+            workers[index].start();
+        }
+    }
+
+    /**
+     * Lets the workers insert all batches that are still in the queues, and blocks until they are finished. No new
+     * batches should be submitted after calling this method.
+     */
+    void stop() {
+        shouldStop = true;
+        try {
+            for (Thread worker : workers) worker.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    void submit(SampleBatch batch) {
+        batch.numPendingParts.set(queues.length);
+        for (BoundedQueue<SampleBatch> queue : queues) submit(queue, batch);
+    }
+
+    private void submit(BoundedQueue<SampleBatch> queue, SampleBatch batch) {
+        while (!queue.offer(batch)) {
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                drop(batch);
+                return;
+            }
+            if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                SampleBatch oldestBatch = queue.poll();
+                if (oldestBatch != null) drop(oldestBatch);
+            } else LockSupport.parkNanos(IDLE_PARK_TIME);
+        }
+    }
+
+    private void drop(SampleBatch batch) {
+        // When the batch is dropped from multiple queues, it should still be counted only once
+        if (batch.wasDropped.compareAndSet(false, true)) numDroppedBatches.incrementAndGet();
+        finishPart(batch);
+    }
+
+    private void finishPart(SampleBatch batch) {
+        if (batch.numPendingParts.decrementAndGet() == 0) finishBatch.accept(batch);
+    }
+
+    /**
+     * @return The number of batches of which at least 1 worker dropped its samples because its queue was full
+     */
+    long getNumDroppedBatches() {
+        return numDroppedBatches.get();
+    }
+
+    private void work(int worker) {
+        BoundedQueue<SampleBatch> queue = queues[worker];
+        while (true) {
+            SampleBatch batch = queue.poll();
+            if (batch != null) {
+                insert(batch, worker);
+                continue;
+            }
+
+            if (shouldStop) {
+                // The sampling thread has stopped before shouldStop was set, so polling again will find all batches
+                // that are left
+                while ((batch = queue.poll()) != null) insert(batch, worker);
+                return;
+            }
+            LockSupport.parkNanos(IDLE_PARK_TIME);
+        }
+    }
+
+    private void insert(SampleBatch batch, int worker) {
+        insertSamples.insert(batch, worker, queues.length);
+        finishPart(batch);
+    }
+
+    @FunctionalInterface
+    interface Inserter {
+
+        /**
+         * Inserts the samples of `batch` whose thread is routed to `worker` (see `getWorker`)
+         */
+        void insert(SampleBatch batch, int worker, int numWorkers);
+    }
+}
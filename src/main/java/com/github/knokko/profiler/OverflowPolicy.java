@@ -0,0 +1,25 @@
+package com.github.knokko.profiler;
+
+/**
+ * Determines what the profiler does when it captures a sample while the ingestion queue is full (see
+ * `SampleProfiler.enableAsyncIngestion`)
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Drop the new sample. This keeps the sampling rate stable, but loses the newest samples.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Drop the oldest sample in the queue, and enqueue the new sample. This keeps the sampling rate stable, but loses
+     * the oldest samples.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Wait until the queue has room for the new sample. This doesn't lose any samples, but it delays the sampling
+     * thread until the storage workers catch up.
+     */
+    BLOCK
+}
@@ -0,0 +1,100 @@
+package com.github.knokko.profiler;
+
+import com.github.knokko.profiler.storage.ContentionStorage;
+import com.github.knokko.profiler.storage.SampleSink;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The raw stacktraces of all threads that were captured during 1 sample, together with the settings of the profiler
+ * at the time of capturing. The stacktraces are not yet truncated, filtered, or converted to frame IDs.
+ */
+class SampleBatch {
+
+    final SampleSink storage;
+    final long timestamp, period;
+    final int maxDepth;
+
+    final long[] threadIDs;
+
+    // The captured threads, which are passed to SampleSink.onThreadSampled, since they may have terminated before
+    // the batch is inserted
+    final Thread[] threads;
+    final StackTraceElement[][] stackTraces;
+    final Thread.State[] states;
+    int size;
+
+    // The CPU time of each thread since its previous sample, which is only non-null when the CPU time is captured
+    long[] cpuTimes;
+
+    // The context tag of each thread (see SampleContext), which is only non-null when any thread has set a tag
+    int[] tags;
+
+    // The lock that each thread was waiting for (or null), the ID of the thread that owned that lock, and the
+    // stacktrace of the owner. These are only non-null when at least 1 thread was waiting for an owned lock.
+    String[] lockNames;
+    long[] lockOwnerIDs;
+    StackTraceElement[][] ownerStackTraces;
+    ContentionStorage contentionStorage;
+
+    // The sorted IDs of all live threads, which is only non-null when the storage should remove dead threads, and the
+    // System.nanoTime() just before they were computed
+    long[] liveThreadIDs;
+    long liveThreadsTime;
+
+    // Only used by the IngestionPipeline: the number of workers that haven't finished this batch yet, and whether any
+    // worker dropped this batch
+    final AtomicInteger numPendingParts = new AtomicInteger();
+    final AtomicBoolean wasDropped = new AtomicBoolean();
+
+    SampleBatch(SampleSink storage, long timestamp, long period, int maxDepth, int capacity) {
+        this.storage = storage;
+        this.timestamp = timestamp;
+        this.period = period;
+        this.maxDepth = maxDepth;
+        this.threadIDs = new long[capacity];
+        this.threads = new Thread[capacity];
+        this.stackTraces = new StackTraceElement[capacity][];
+        this.states = new Thread.State[capacity];
+    }
+
+    void add(Thread thread, StackTraceElement[] stackTrace, Thread.State state) {
+        threadIDs[size] = thread.getId();
+        threads[size] = thread;
+        stackTraces[size] = stackTrace;
+        states[size] = state;
+        size += 1;
+    }
+
+    /**
+     * Marks that the thread at `index` was waiting for the lock with the given name, which was owned by `ownerID`
+     */
+    void setLock(int index, String lockName, long ownerID) {
+        if (lockNames == null) {
+            lockNames = new String[threadIDs.length];
+            lockOwnerIDs = new long[threadIDs.length];
+            ownerStackTraces = new StackTraceElement[threadIDs.length][];
+        }
+        lockNames[index] = lockName;
+        lockOwnerIDs[index] = ownerID;
+    }
+
+    boolean isWaitingForOwnedLock(int index) {
+        return lockNames != null && lockNames[index] != null;
+    }
+
+    void move(int source, int destination) {
+        threadIDs[destination] = threadIDs[source];
+        threads[destination] = threads[source];
+        stackTraces[destination] = stackTraces[source];
+        states[destination] = states[source];
+        if (cpuTimes != null) cpuTimes[destination] = cpuTimes[source];
+        if (tags != null) tags[destination] = tags[source];
+        if (lockNames != null) {
+            lockNames[destination] = lockNames[source];
+            lockOwnerIDs[destination] = lockOwnerIDs[source];
+            ownerStackTraces[destination] = ownerStackTraces[source];
+        }
+    }
+}
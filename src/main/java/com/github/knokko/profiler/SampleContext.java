@@ -0,0 +1,168 @@
+package com.github.knokko.profiler;
+
+import com.github.knokko.profiler.storage.SampleSink;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Lets application threads attach a context tag (e.g. the endpoint or tenant that they are currently serving) to
+ * their samples. Tags are registered once using `tag(name)`, which returns a small `int`. The application threads
+ * can then use `set(tag)` on their request path, which doesn't allocate anything and doesn't need any locks: it
+ * only writes the tag into a slot of the current thread. The profiler reads the slot of each thread that it samples,
+ * and passes the tag to the storage (see `TaggedStorage`).<br>
+ * Each thread gets its slot during its first `set` call (which is the only call that allocates), and the slot is
+ * registered under the thread ID so that the profiler can find it. The registry only holds weak references to the
+ * threads, and the slots of terminated threads are removed whenever the registry has doubled in size, so threads
+ * that are short-lived (or virtual) don't leak memory. Note that a tag is only a hint: the profiler may read the slot
+ * of a thread slightly before or after the thread sampled its stacktrace.
+ */
+public final class SampleContext {
+
+    /**
+     * The maximum number of distinct tags. Tags are never removed, so they should identify a bounded set of things
+     * (like endpoints or tenants), rather than e.g. individual requests.
+     */
+    public static final int MAX_NUM_TAGS = 1 << 16;
+
+    private static final ConcurrentMap<String, Integer> tagIDs = new ConcurrentHashMap<>();
+
+    // Slot 0 is NO_TAG. The array is only modified while holding the lock of this class, and grows by doubling.
+    private static volatile String[] tagNames = new String[16];
+    private static int numTags = 1;
+
+    private static final ThreadLocal<Slot> currentSlot = new ThreadLocal<>();
+    private static final ConcurrentMap<Long, Slot> slots = new ConcurrentHashMap<>();
+
+    // The number of slots at which the slots of terminated threads will be removed, guarded by the lock of `slots`
+    private static int cleanupThreshold = 64;
+
+    private static volatile boolean hasTags;
+
+    private SampleContext() {}
+
+    /**
+     * Gets the tag with the given name, and registers it when no tag with this name exists yet. The result is never
+     * `SampleSink.NO_TAG`. This method may allocate, so you should call it once and store the result, rather than
+     * calling it on the request path.
+     * @throws IllegalStateException When `MAX_NUM_TAGS` tags have already been registered
+     */
+    public static int tag(String name) {
+        Integer tag = tagIDs.get(name);
+        if (tag != null) return tag;
+        return register(name);
+    }
+
+    private static synchronized int register(String name) {
+        Integer existing = tagIDs.get(name);
+        if (existing != null) return existing;
+        if (numTags == MAX_NUM_TAGS) {
+            throw new IllegalStateException("Can't register more than " + MAX_NUM_TAGS + " tags");
+        }
+
+        int tag = numTags;
+        String[] names = tagNames;
+        if (tag == names.length) names = Arrays.copyOf(names, 2 * names.length);
+        names[tag] = name;
+
+        // This volatile write ensures that readers of the tag can see its name
+        tagNames = names;
+        numTags += 1;
+        tagIDs.put(name, tag);
+        return tag;
+    }
+
+    /**
+     * @return The name of the given tag, or `null` when `tag` is `SampleSink.NO_TAG`
+     */
+    public static String getName(int tag) {
+        return tagNames[tag];
+    }
+
+    /**
+     * Sets the tag of the current thread, which will be attached to all its samples until the tag is changed again.
+     * Use `SampleSink.NO_TAG` to clear the tag.
+     * @return The previous tag of the current thread, which can be used to restore it
+     */
+    public static int set(int tag) {
+        Slot slot = currentSlot.get();
+        if (slot == null) {
+            if (tag == SampleSink.NO_TAG) return SampleSink.NO_TAG;
+            slot = createSlot();
+        }
+
+        int previous = slot.tag;
+
+        // Only the current thread writes its slot, so an ordered write is sufficient
+        Slot.TAG.lazySet(slot, tag);
+        return previous;
+    }
+
+    /**
+     * @return The current tag of the thread with the given ID, or `SampleSink.NO_TAG` if it doesn't have a tag
+     */
+    public static int get(long threadID) {
+        Slot slot = slots.get(threadID);
+        return slot != null ? slot.tag : SampleSink.NO_TAG;
+    }
+
+    /**
+     * @return `true` if any thread has ever set a tag, which allows the profiler to skip reading the slots when the
+     * application doesn't use tags
+     */
+    static boolean hasTags() {
+        return hasTags;
+    }
+
+    /**
+     * @return The number of threads that currently have a slot, which is only used for testing
+     */
+    static int getNumSlots() {
+        return slots.size();
+    }
+
+    private static Slot createSlot() {
+        Thread thread = Thread.currentThread();
+        Slot slot = new Slot(thread);
+        currentSlot.set(slot);
+
+        synchronized (slots) {
+            slots.put(thread.getId(), slot);
+
+            // Removing the slots of terminated threads whenever the number of slots doubles costs amortized O(1)
+            if (slots.size() >= cleanupThreshold) {
+                removeTerminatedThreads();
+                cleanupThreshold = Math.max(64, 2 * slots.size());
+            }
+        }
+        hasTags = true;
+        return slot;
+    }
+
+    /**
+     * Removes the slots of all threads that have terminated
+     */
+    static void removeTerminatedThreads() {
+        Iterator<Slot> iterator = slots.values().iterator();
+        while (iterator.hasNext()) {
+            Thread thread = iterator.next().thread.get();
+            if (thread == null || !thread.isAlive()) iterator.remove();
+        }
+    }
+
+    private static class Slot {
+
+        static final AtomicIntegerFieldUpdater<Slot> TAG = AtomicIntegerFieldUpdater.newUpdater(Slot.class, "tag");
+
+        final WeakReference<Thread> thread;
+        volatile int tag;
+
+        Slot(Thread thread) {
+            this.thread = new WeakReference<>(thread);
+        }
+    }
+}
@@ -1,9 +1,19 @@
 package com.github.knokko.profiler;
 
-import com.github.knokko.profiler.storage.SampleStorage;
+import com.github.knokko.profiler.storage.ContentionStorage;
+import com.github.knokko.profiler.storage.FrameDictionary;
+import com.github.knokko.profiler.storage.SampleSink;
+import com.github.knokko.profiler.storage.ThreadStorage;
+import com.github.knokko.profiler.util.StackTraceHelper;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Predicate;
 
 public class SampleProfiler {
@@ -29,33 +39,157 @@ public class SampleProfiler {
      */
     public volatile int sleepTime = 1;
 
+    /**
+     * When `samplePeriod` > 0, the profiler will take a sample every `samplePeriod` <b>nanoseconds</b> (at a fixed
+     * rate), and `sleepTime` will be ignored. Unlike `sleepTime`, the time needed to take each sample doesn't
+     * stretch the interval: the profiler waits (using `LockSupport.parkNanos`) until the next tick is due. When taking
+     * a sample takes longer than `samplePeriod`, the ticks that were missed are skipped, and counted in
+     * `getNumMissedTicks()`.<br>
+     * This makes it possible to use periods like 250 microseconds, and makes the sample counts comparable across
+     * runs. The `samplePeriod` can be changed at any point in time.
+     */
+    public volatile long samplePeriod = 0;
+
+    /**
+     * When `samplePeriod` > 0 and `samplePeriodJitter` > 0, each sample will be delayed by a random amount between 0
+     * and `samplePeriodJitter * samplePeriod` nanoseconds, without changing the average sampling rate. This avoids
+     * lockstep with periodic work in the application (which could cause the profiler to always see the same part of
+     * that work). It should be between 0 and 1.
+     */
+    public volatile double samplePeriodJitter = 0.0;
+
+    /**
+     * When `maxOverhead` > 0 and `samplePeriod` > 0, the profiler will adapt its sampling period such that the time
+     * spent taking samples is at most `maxOverhead` times the elapsed time. For instance, a `maxOverhead` of 0.01 means
+     * at most 1% of 1 core, and a `maxOverhead` of 0.00005 means at most 50 microseconds per second. The profiler
+     * measures how long each sample takes (this includes the time that the sampled threads need to reach a safepoint),
+     * and uses `samplePeriod` as the minimum period and `maxSamplePeriod` as the maximum period.<br>
+     * Since the period can change over time, the frequency storages also keep track of the sum of the periods of the
+     * samples (the <i>weight</i>), which should be used instead of the sample counts.
+     */
+    public volatile double maxOverhead = 0.0;
+
+    /**
+     * The maximum sampling period (in nanoseconds) that the profiler will use when `maxOverhead` > 0
+     */
+    public volatile long maxSamplePeriod = 100_000_000L;
+
     /**
      * Setting `isPaused` to `true` will cause the profiler to pause as soon as possible. While paused, the profiler
      * won't take any samples. Instead, it will keep sleeping `sleepTime` ms until `isPaused` is `false` again.
      */
     public volatile boolean isPaused = false;
+
+    /**
+     * When `captureCpuTime` is `true`, the profiler will use `ThreadMXBean.getThreadCpuTime` to measure how much CPU
+     * time each sampled thread used since its previous sample, and pass it to the storage (`FrequencyThreadStorage`
+     * adds it to the `cpuTime` of each node). This costs 1 extra call per sampled thread per sample, and does nothing
+     * when the JVM doesn't support measuring the CPU time of threads.
+     */
+    public volatile boolean captureCpuTime = false;
+
+    /**
+     * When `skipIdleSamples` is `true`, the profiler won't store the samples of threads that are `WAITING` or
+     * `TIMED_WAITING` (e.g. parked or sleeping threads), which can greatly reduce the number of stored samples when
+     * most threads are idle. Note that threads that wait for I/O are usually `RUNNABLE`, so they are not skipped.
+     * Samples of `BLOCKED` threads are not skipped either, since they indicate lock contention.
+     */
+    public volatile boolean skipIdleSamples = false;
+
+    /**
+     * When `contentionStorage` is not `null`, the profiler will insert the samples of threads that were waiting for a
+     * lock that was owned by another thread into this storage, together with the stacktrace of the owner. When
+     * `targetedSampling` is `true`, the lock information is included in the samples for free. Otherwise, the profiler
+     * needs 1 extra `ThreadMXBean.getThreadInfo` call for the blocked and waiting threads in each sample.
+     */
+    public volatile ContentionStorage contentionStorage;
+
+    /**
+     * When `virtualThreadRegistry` and `virtualThreadStorage` are not `null`, the profiler will also sample the
+     * threads that are running a task of `virtualThreadRegistry`, and insert their samples into `virtualThreadStorage`
+     * (rather than `storage`), tagged with their task type. Since the JVM doesn't expose virtual threads to
+     * `Thread.getAllStackTraces()`, this is the only way to sample virtual threads. Use a `TaggedStorage` as
+     * `virtualThreadStorage` to get 1 `ThreadStorage` per task type, rather than 1 per virtual thread.
+     */
+    public volatile VirtualThreadRegistry virtualThreadRegistry;
+
+    /**
+     * See `virtualThreadRegistry`
+     */
+    public volatile SampleSink virtualThreadStorage;
+
+    /**
+     * The maximum number of registered threads (see `virtualThreadRegistry`) whose stacktraces are captured during
+     * each sample. Since the stacktrace of each virtual thread must be captured separately, capturing all of them
+     * would be too expensive when there are many. When more threads are running, the profiler captures a random
+     * subset, and scales the period of their samples up accordingly.
+     */
+    public volatile int maxVirtualThreadsPerSample = 1000;
     private volatile boolean shouldStop = false;
     /**
      * All samples will be inserted into this `storage`. If you change this while the profiler is running, all new
-     * samples will be inserted into the new storage.
+     * samples will be inserted into the new storage. To fill multiple storages with the same samples, you can use a
+     * `CompositeStorage`.
      */
-    public volatile SampleStorage<?> storage;
+    public volatile SampleSink storage;
     /**
      * Only threads that satisfy this predicate will be profiled. You can change this filter whenever you want. Note:
      * the profiler will always skip its own profiling thread, regardless of the filter (because the stacktrace at
      * the moment of sampling is always the same).
      */
     public volatile Predicate<Thread> threadFilter = thread -> true;
+
+    private static final Predicate<String> ALL_CLASSES = className -> true;
+
     /**
      * Only stacktraces where the <b>full name</b> (including the package) of at least 1 class in the stacktrace
      * satisfies `classNameFilter` will be kept: all others stacktraces will be ignored. You can use this to filter out
-     * IDE threads or other threads that you don't care about.
+     * IDE threads or other threads that you don't care about. The filter is tested on the complete stacktrace, before
+     * it is truncated to `maxDepth`.<br>
+     * Note: when `targetedSampling` is `true` and this filter is changed, the profiler can no longer pass `maxDepth`
+     * to the JVM, since the matching classes may be deeper than `maxDepth`. It will capture the complete stacktraces
+     * instead, which makes capturing slower when the stacktraces are deep.
      */
-    public volatile Predicate<String> classNameFilter = className -> true;
+    public volatile Predicate<String> classNameFilter = ALL_CLASSES;
+    /**
+     * When `targetedSampling` is `true`, the profiler will only capture the stacktraces of the threads that satisfy
+     * `threadFilter` (using `ThreadMXBean.getThreadInfo`), rather than capturing the stacktraces of <b>all</b> threads
+     * (using `Thread.getAllStackTraces()`) and filtering them afterwards. This can greatly reduce the time needed to
+     * take each sample when the application has many threads, but only few of them satisfy `threadFilter`.<br>
+     * The IDs of the threads that satisfy `threadFilter` are cached, and recomputed whenever a new thread is started,
+     * a targeted thread dies, `threadFilter` is changed, or `threadRefreshPeriod` ms have passed.<br>
+     * When the profiler has multiple sampling threads (see `setNumSampleThreads`), it always uses targeted sampling.
+     */
+    public volatile boolean targetedSampling = false;
+    /**
+     * When `targetedSampling` is `true`, the profiler will re-evaluate `threadFilter` for all threads at least once
+     * per `threadRefreshPeriod` milliseconds. This is only needed when the result of `threadFilter` can change during
+     * the lifetime of a thread (e.g. when it tests the thread name, and threads are renamed).<br>
+     * The profiler also passes the IDs of all live threads to `SampleSink.removeDeadThreads` once per
+     * `threadRefreshPeriod` milliseconds, which allows the storage to clean up the data of terminated threads.
+     */
+    public volatile long threadRefreshPeriod = 1000;
+    /**
+     * The maximum number of (innermost) stacktrace elements that will be stored for each sample. Stacktraces that are
+     * deeper than `maxDepth` will be truncated, and `StackTraceHelper.TRUNCATED` will be appended to them, so that
+     * truncated stacktraces can be told apart from complete stacktraces. Using a small `maxDepth` reduces the memory
+     * usage of the storage.<br>
+     * When `targetedSampling` is `true` (and `classNameFilter` was not changed), `maxDepth` is also passed to the JVM,
+     * which reduces the time needed to capture the stacktraces. Otherwise, the stacktraces are truncated after
+     * capturing them.<br>
+     * Values smaller than 1 are treated as 1.
+     */
+    public volatile int maxDepth = Integer.MAX_VALUE;
 
-    private Thread sampleThread;
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private int numSampleThreads = 1;
+    private Thread[] sampleThreads;
+    private IngestionPipeline pipeline;
+    private final AtomicLong lastSampleTime = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong numMissedTicks = new AtomicLong();
+    private volatile long currentSamplePeriod;
 
-    public SampleProfiler(SampleStorage<?> storage) {
+    public SampleProfiler(SampleSink storage) {
         this.storage = storage;
     }
 
@@ -64,36 +198,147 @@ public class SampleProfiler {
         this.threadName = threadName;
     }
 
+    /**
+     * Lets the profiler use `numSampleThreads` sampling threads rather than 1. Each sampling thread owns a shard of
+     * the threads (based on the hash of their thread ID), and captures only the stacktraces of its own shard, using
+     * targeted sampling (regardless of the value of `targetedSampling`). Each sampling thread recomputes its shard
+     * whenever threads are started or stopped, so the shards stay balanced. This allows the profiler to sample
+     * thousands of threads at high rates, at the cost of using more cores. This method must be called before
+     * `start()`.
+     */
+    public void setNumSampleThreads(int numSampleThreads) {
+        if (hasStarted) {
+            throw new IllegalStateException("Can't change the number of sample threads after the profiler has started");
+        }
+        if (numSampleThreads < 1) {
+            throw new IllegalArgumentException("numSampleThreads (" + numSampleThreads + ") must be positive");
+        }
+        this.numSampleThreads = numSampleThreads;
+    }
+
+    /**
+     * Lets the profiler insert the samples asynchronously: the sampling thread will only capture the stacktraces,
+     * and pass them to bounded queues. The `numWorkers` storage worker threads will take the samples from the queues,
+     * and insert them into the storage. This keeps the time needed to take each sample stable, regardless of how long
+     * the storage needs to insert them. Each thread is assigned to a fixed worker, so the samples of each thread are
+     * still inserted in timestamp order (which timeline storages need). Each worker has its own queue with room for
+     * `queueCapacity` batches (rounded up to a power of 2). The `overflowPolicy` determines what happens when the
+     * queue of a worker is full. This method must be called before `start()`.
+     */
+    public void enableAsyncIngestion(int numWorkers, int queueCapacity, OverflowPolicy overflowPolicy) {
+        if (hasStarted) throw new IllegalStateException("Can't enable async ingestion after the profiler has started");
+        this.pipeline = new IngestionPipeline(
+                numWorkers, queueCapacity, overflowPolicy, this::insertSamples, this::finishBatch
+        );
+    }
+
+    /**
+     * @return The number of batches (samples of all threads at the same time) of which at least some samples were
+     * dropped because the ingestion queue of a worker was full (see `enableAsyncIngestion`)
+     */
+    public long getNumDroppedBatches() {
+        return pipeline != null ? pipeline.getNumDroppedBatches() : 0;
+    }
+
     public void start() {
         if (hasStarted) throw new IllegalStateException("Can't start twice");
         hasStarted = true;
 
-        sampleThread = new Thread(this::startSampling);
-        sampleThread.setDaemon(true);
-        sampleThread.setName(threadName);
-        sampleThread.start();
+        if (pipeline != null) pipeline.start(threadName);
+
+        sampleThreads = new Thread[numSampleThreads];
+        for (int shard = 0; shard < numSampleThreads; shard++) {
+            int currentShard = shard;
+            sampleThreads[shard] = new Thread(() -> startSampling(currentShard));
+            sampleThreads[shard].setDaemon(true);
+            sampleThreads[shard].setName(numSampleThreads == 1 ? threadName : threadName + "-" + shard);
+        }
+        for (Thread sampleThread : sampleThreads) sampleThread.start();
     }
 
     /**
      * Causes the profiler to stop (possibly after taking 1 more sample) and blocks the current thread until the
-     * profiler is really stopped.
+     * profiler is really stopped. When async ingestion is enabled, this also waits until all samples in the queue
+     * have been inserted.
      */
     public void stop() {
         if (!hasStarted) throw new IllegalStateException("Can't stop before starting");
         if (shouldStop) throw new IllegalStateException("Can't stop twice");
         shouldStop = true;
         try {
-            sampleThread.join();
+            for (Thread sampleThread : sampleThreads) sampleThread.join();
+            if (pipeline != null) pipeline.stop();
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void startSampling() {
+    private void startSampling(int shard) {
+        FixedRateScheduler scheduler = null;
+        TargetedThreads targetedThreads = null;
+        long previousSampleTime = Long.MIN_VALUE;
+        long missedTime = 0;
+
+        // The exponential moving average of the time needed to take a sample
+        double averageSampleCost = 0.0;
+
+        // Only the first sampling thread checks which threads are still alive
+        long lastLiveThreadsCheck = System.nanoTime();
+        CpuTimeTracker cpuTimeTracker = new CpuTimeTracker();
+
         while (!shouldStop) {
-            if (!isPaused) takeSample();
+            boolean isTargeted = targetedSampling || numSampleThreads > 1;
+            if (isTargeted && targetedThreads == null) {
+                targetedThreads = new TargetedThreads(shard, numSampleThreads, sampleThreads);
+            }
+            TargetedThreads currentTargets = isTargeted ? targetedThreads : null;
+            boolean shouldCheckLiveThreads = shard == 0 &&
+                    System.nanoTime() - lastLiveThreadsCheck >= 1_000_000L * threadRefreshPeriod;
+
+            long minSamplePeriod = samplePeriod;
+            if (minSamplePeriod > 0) {
+                if (isPaused) {
+                    // Start a new schedule after the pause, so that the pause isn't counted as missed ticks
+                    scheduler = null;
+                    missedTime = 0;
+                    LockSupport.parkNanos(minSamplePeriod);
+                    continue;
+                }
+
+                long period = chooseSamplePeriod(minSamplePeriod, averageSampleCost);
+                if (scheduler == null) scheduler = new FixedRateScheduler(period);
+                else scheduler.period = period;
+                currentSamplePeriod = period;
+
+                // A sample that was taken after missed ticks also represents the missed ticks
+                long startTime = System.nanoTime();
+                takeSample(
+                        startTime, period + missedTime, currentTargets,
+                        cpuTimeTracker, shouldCheckLiveThreads, shard == 0
+                );
+                if (shouldCheckLiveThreads) lastLiveThreadsCheck = startTime;
+                long cost = System.nanoTime() - startTime;
+                averageSampleCost = averageSampleCost == 0.0 ? cost : 0.9 * averageSampleCost + 0.1 * cost;
+
+                long newlyMissedTicks = scheduler.awaitNextTick(samplePeriodJitter);
+                missedTime = newlyMissedTicks * period;
+                if (newlyMissedTicks > 0) numMissedTicks.addAndGet(newlyMissedTicks);
+                continue;
+            }
+            scheduler = null;
 
             long currentSleepTime = sleepTime;
+            if (!isPaused) {
+                // Without a fixed rate, each sample represents the time since the previous sample
+                long timestamp = System.nanoTime();
+                long period = previousSampleTime != Long.MIN_VALUE ?
+                        timestamp - previousSampleTime : 1_000_000L * Math.max(1, currentSleepTime);
+                currentSamplePeriod = period;
+                takeSample(timestamp, period, currentTargets, cpuTimeTracker, shouldCheckLiveThreads, shard == 0);
+                if (shouldCheckLiveThreads) lastLiveThreadsCheck = timestamp;
+                previousSampleTime = timestamp;
+            } else previousSampleTime = Long.MIN_VALUE;
+
             if (currentSleepTime > 0) {
                 try {
                     //noinspection BusyWait
@@ -105,19 +350,291 @@ public class SampleProfiler {
         }
     }
 
-    private void takeSample() {
-        long timestamp = System.nanoTime();
-        SampleStorage<?> currentStorage = storage;
-        for (Map.Entry<Thread, StackTraceElement[]> dump : Thread.getAllStackTraces().entrySet()) {
+    private long chooseSamplePeriod(long minSamplePeriod, double averageSampleCost) {
+        double currentMaxOverhead = maxOverhead;
+        if (currentMaxOverhead <= 0.0 || averageSampleCost == 0.0) return minSamplePeriod;
+
+        long period = (long) Math.min(averageSampleCost / currentMaxOverhead, Long.MAX_VALUE);
+        return Math.max(minSamplePeriod, Math.min(period, maxSamplePeriod));
+    }
+
+    /**
+     * @return The sampling period (in nanoseconds) of the last sample. When `samplePeriod` is 0, this is the time
+     * between the last 2 samples.
+     */
+    public long getCurrentSamplePeriod() {
+        return currentSamplePeriod;
+    }
+
+    /**
+     * @return The number of ticks that were skipped because taking a sample took longer than `samplePeriod`
+     */
+    public long getNumMissedTicks() {
+        return numMissedTicks.get();
+    }
+
+    /**
+     * @return The timestamp (`System.nanoTime()`) of the last sample that was completely inserted into the storage,
+     * or `Long.MIN_VALUE` if no sample has been taken yet
+     */
+    public long getLastSampleTime() {
+        return lastSampleTime.get();
+    }
+
+    /**
+     * Takes a sample of the threads in `targetedThreads`, or of all threads when `targetedThreads` is `null`
+     */
+    private void takeSample(
+            long timestamp, long period, TargetedThreads targetedThreads,
+            CpuTimeTracker cpuTimeTracker, boolean shouldCheckLiveThreads, boolean shouldSampleVirtualThreads
+    ) {
+        SampleBatch batch = targetedThreads != null ?
+                takeTargetedSample(timestamp, period, targetedThreads) : takeFullSample(timestamp, period);
+        if (captureCpuTime && cpuTimeTracker.isSupported()) {
+            batch.cpuTimes = new long[batch.size];
+            for (int index = 0; index < batch.size; index++) {
+                batch.cpuTimes[index] = cpuTimeTracker.getCpuTimeDelta(batch.threadIDs[index]);
+            }
+            cpuTimeTracker.finishSample();
+        }
+        if (SampleContext.hasTags()) {
+            batch.tags = new int[batch.size];
+            for (int index = 0; index < batch.size; index++) {
+                batch.tags[index] = SampleContext.get(batch.threadIDs[index]);
+            }
+        }
+        if (skipIdleSamples) removeIdleSamples(batch);
+        if (shouldCheckLiveThreads) {
+            batch.liveThreadsTime = System.nanoTime();
+            long[] liveThreadIDs = threadBean.getAllThreadIds();
+            Arrays.sort(liveThreadIDs);
+            batch.liveThreadIDs = liveThreadIDs;
+            if (SampleContext.hasTags()) SampleContext.removeTerminatedThreads();
+        }
+        if (pipeline != null) pipeline.submit(batch);
+        else insertBatch(batch);
+
+        if (shouldSampleVirtualThreads) takeVirtualThreadSample(timestamp, period);
+    }
+
+    private void takeVirtualThreadSample(long timestamp, long period) {
+        VirtualThreadRegistry registry = virtualThreadRegistry;
+        SampleSink currentStorage = virtualThreadStorage;
+        if (registry == null || currentStorage == null) return;
+
+        SampleBatch batch = registry.capture(
+                currentStorage, timestamp, period, getMaxDepth(), maxVirtualThreadsPerSample, threadFilter
+        );
+        if (batch.size == 0) return;
+        if (skipIdleSamples) removeIdleSamples(batch);
+
+        if (pipeline != null) pipeline.submit(batch);
+        else insertBatch(batch);
+    }
+
+    private static void removeIdleSamples(SampleBatch batch) {
+        int newSize = 0;
+        for (int index = 0; index < batch.size; index++) {
+            Thread.State state = batch.states[index];
+            boolean isIdle = state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING;
+
+            // Threads that are waiting for a lock of another thread are not idle
+            if (isIdle && !batch.isWaitingForOwnedLock(index)) continue;
+
+            batch.move(index, newSize);
+            newSize += 1;
+        }
+        batch.size = newSize;
+    }
+
+    /**
+     * Finds the lock that each blocked or waiting thread in the batch was waiting for, since `getAllStackTraces`
+     * doesn't provide that information
+     */
+    private void captureLocks(SampleBatch batch) {
+        long[] waitingThreadIDs = new long[batch.size];
+        int[] waitingIndices = new int[batch.size];
+        int numWaitingThreads = 0;
+        for (int index = 0; index < batch.size; index++) {
+            if (batch.states[index] == Thread.State.RUNNABLE || batch.states[index] == Thread.State.NEW) continue;
+            waitingThreadIDs[numWaitingThreads] = batch.threadIDs[index];
+            waitingIndices[numWaitingThreads] = index;
+            numWaitingThreads += 1;
+        }
+        if (numWaitingThreads == 0) return;
+
+        ThreadInfo[] infos = threadBean.getThreadInfo(Arrays.copyOf(waitingThreadIDs, numWaitingThreads), 0);
+        for (int index = 0; index < numWaitingThreads; index++) {
+            ThreadInfo info = infos[index];
+            if (info != null && info.getLockOwnerId() != -1 && info.getLockName() != null) {
+                batch.setLock(waitingIndices[index], info.getLockName(), info.getLockOwnerId());
+            }
+        }
+    }
+
+    /**
+     * Finds the stacktrace of the owner of each lock that a thread in the batch was waiting for. The owner is usually
+     * in the batch itself or in `otherStackTraces`. Otherwise, it will be captured separately.
+     */
+    private void captureOwnerStackTraces(
+            SampleBatch batch, Map<Long, StackTraceElement[]> otherStackTraces, int captureDepth
+    ) {
+        if (batch.lockNames == null) return;
+
+        Map<Long, StackTraceElement[]> knownStackTraces = new HashMap<>(otherStackTraces);
+        for (int index = 0; index < batch.size; index++) {
+            knownStackTraces.put(batch.threadIDs[index], batch.stackTraces[index]);
+        }
+
+        long[] missingOwnerIDs = new long[batch.size];
+        int numMissingOwners = 0;
+        for (int index = 0; index < batch.size; index++) {
+            if (!batch.isWaitingForOwnedLock(index)) continue;
+            long ownerID = batch.lockOwnerIDs[index];
+            if (!knownStackTraces.containsKey(ownerID)) {
+                missingOwnerIDs[numMissingOwners++] = ownerID;
+                knownStackTraces.put(ownerID, null);
+            }
+        }
+
+        if (numMissingOwners > 0) {
+            long[] ownerIDs = Arrays.copyOf(missingOwnerIDs, numMissingOwners);
+            ThreadInfo[] infos = threadBean.getThreadInfo(ownerIDs, captureDepth);
+            for (ThreadInfo info : infos) {
+                if (info != null) knownStackTraces.put(info.getThreadId(), info.getStackTrace());
+            }
+        }
+
+        for (int index = 0; index < batch.size; index++) {
+            if (!batch.isWaitingForOwnedLock(index)) continue;
+            StackTraceElement[] ownerStackTrace = knownStackTraces.get(batch.lockOwnerIDs[index]);
+            batch.ownerStackTraces[index] = ownerStackTrace != null ? ownerStackTrace : new StackTraceElement[0];
+        }
+    }
+
+    private SampleBatch takeFullSample(long timestamp, long period) {
+        Predicate<Thread> currentThreadFilter = threadFilter;
+        Map<Thread, StackTraceElement[]> dumps = Thread.getAllStackTraces();
+        SampleBatch batch = new SampleBatch(storage, timestamp, period, getMaxDepth(), dumps.size());
+        for (Map.Entry<Thread, StackTraceElement[]> dump : dumps.entrySet()) {
 
             // Skip this thread because the sample result is guaranteed to be Thread.getAllStackTraces
             if (dump.getKey() == Thread.currentThread()) continue;
 
-            if (!threadFilter.test(dump.getKey())) continue;
+            if (!currentThreadFilter.test(dump.getKey())) continue;
+
+            batch.add(dump.getKey(), dump.getValue(), dump.getKey().getState());
+        }
+
+        batch.contentionStorage = contentionStorage;
+        if (batch.contentionStorage != null) {
+            captureLocks(batch);
+            if (batch.lockNames != null) {
+                // The owners may have been filtered out of the batch, but their stacktraces are still in the dumps
+                Map<Long, StackTraceElement[]> allStackTraces = new HashMap<>();
+                for (Map.Entry<Thread, StackTraceElement[]> dump : dumps.entrySet()) {
+                    allStackTraces.put(dump.getKey().getId(), dump.getValue());
+                }
+                captureOwnerStackTraces(batch, allStackTraces, Integer.MAX_VALUE);
+            }
+        }
+        return batch;
+    }
+
+    private int getMaxDepth() {
+        return Math.max(1, maxDepth);
+    }
+
+    private SampleBatch takeTargetedSample(long timestamp, long period, TargetedThreads targetedThreads) {
+        long[] threadIDs = targetedThreads.getThreadIDs(threadFilter, threadRefreshPeriod);
+        Thread[] threads = targetedThreads.getThreads();
+
+        int currentMaxDepth = getMaxDepth();
+        SampleBatch batch = new SampleBatch(storage, timestamp, period, currentMaxDepth, threadIDs.length);
+
+        // Capture 1 extra element so that we can tell whether the stacktrace was truncated. When the class name filter
+        // is used, the complete stacktrace is needed, since the matching classes may be deeper than maxDepth.
+        int captureDepth = currentMaxDepth == Integer.MAX_VALUE || classNameFilter != ALL_CLASSES ?
+                Integer.MAX_VALUE : currentMaxDepth + 1;
+        ThreadInfo[] infos = targetedThreads.capture(threadIDs, captureDepth);
+        for (int index = 0; index < infos.length; index++) {
+            ThreadInfo info = infos[index];
+
+            // The thread died after the thread IDs were computed
+            if (info == null) {
+                targetedThreads.markStale();
+                continue;
+            }
+
+            batch.add(threads[index], info.getStackTrace(), info.getThreadState());
+            if (info.getLockOwnerId() != -1 && info.getLockName() != null) {
+                batch.setLock(batch.size - 1, info.getLockName(), info.getLockOwnerId());
+            }
+        }
+
+        batch.contentionStorage = contentionStorage;
+        if (batch.contentionStorage != null) captureOwnerStackTraces(batch, new HashMap<>(), captureDepth);
+        return batch;
+    }
+
+    private void insertBatch(SampleBatch batch) {
+        insertSamples(batch, 0, 1);
+        finishBatch(batch);
+    }
+
+    /**
+     * Inserts the samples of the threads of `batch` that are routed to the given ingestion worker
+     */
+    private void insertSamples(SampleBatch batch, int worker, int numWorkers) {
+        for (int index = 0; index < batch.size; index++) {
+            if (IngestionPipeline.getWorker(batch.threadIDs[index], numWorkers) != worker) continue;
 
-            if (Arrays.stream(dump.getValue()).noneMatch(element -> classNameFilter.test(element.getClassName()))) continue;
+            long cpuTime = batch.cpuTimes != null ? batch.cpuTimes[index] : ThreadStorage.UNKNOWN_CPU_TIME;
+            int tag = batch.tags != null ? batch.tags[index] : SampleSink.NO_TAG;
+            batch.storage.onThreadSampled(batch.threads[index]);
+            insertSample(
+                    batch.storage, batch.threadIDs[index], batch.stackTraces[index], batch.states[index],
+                    cpuTime, tag, batch.timestamp, batch.period, batch.maxDepth
+            );
+            if (batch.contentionStorage != null && batch.isWaitingForOwnedLock(index)) {
+                FrameDictionary dictionary = FrameDictionary.GLOBAL;
+                batch.contentionStorage.insert(
+                        dictionary.getIDs(StackTraceHelper.truncate(batch.stackTraces[index], batch.maxDepth)),
+                        batch.lockNames[index],
+                        dictionary.getIDs(StackTraceHelper.truncate(batch.ownerStackTraces[index], batch.maxDepth)),
+                        batch.period
+                );
+            }
+        }
+    }
+
+    private void finishBatch(SampleBatch batch) {
+        // Remove the dead threads after inserting the batch, since the batch may contain their last samples
+        if (batch.liveThreadIDs != null) batch.storage.removeDeadThreads(batch.liveThreadIDs, batch.liveThreadsTime);
+
+        // When multiple workers insert batches concurrently, lastSampleTime can't be decreased
+        lastSampleTime.accumulateAndGet(batch.timestamp, Math::max);
+    }
+
+    private void insertSample(
+            SampleSink currentStorage, long threadID, StackTraceElement[] stackTrace, Thread.State state,
+            long cpuTime, int tag, long timestamp, long period, int maxDepth
+    ) {
+        // Apply the class name filter before truncating, since the matching classes may be deeper than maxDepth
+        Predicate<String> currentClassNameFilter = classNameFilter;
+        boolean matchesClassNameFilter = false;
+        for (StackTraceElement element : stackTrace) {
+            if (currentClassNameFilter.test(element.getClassName())) {
+                matchesClassNameFilter = true;
+                break;
+            }
+        }
 
-            currentStorage.insert(dump.getKey().getId(), dump.getValue(), timestamp);
+        if (matchesClassNameFilter) {
+            stackTrace = StackTraceHelper.truncate(stackTrace, maxDepth);
+            currentStorage.insert(
+                    threadID, FrameDictionary.GLOBAL.getIDs(stackTrace), timestamp, period, state, cpuTime, tag
+            );
         }
     }
 }
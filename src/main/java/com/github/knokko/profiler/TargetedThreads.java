@@ -0,0 +1,126 @@
+package com.github.knokko.profiler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Keeps track of the IDs of the threads that satisfy the thread filter of a `SampleProfiler`, so that the profiler
+ * can capture only those threads using `ThreadMXBean.getThreadInfo(ids, maxDepth)`. The thread IDs are only
+ * recomputed when a new thread was started, a targeted thread died, the thread filter was changed, or when
+ * `refreshPeriod` milliseconds have passed since the last refresh (to pick up changed thread names).<br>
+ * When the profiler has multiple sampling threads, each sampling thread has its own `TargetedThreads`, which only
+ * targets the threads in its own shard. The shard of a thread is determined by the hash of its ID, so the shards are
+ * rebalanced automatically whenever threads are started or stopped.<br>
+ * This class is <b>not</b> thread-safe: it should only be used by 1 sampling thread.
+ */
+class TargetedThreads {
+
+    private static final long[] NO_THREADS = {};
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final ThreadGroup rootGroup;
+    private final int shard, numShards;
+    private final Thread[] samplingThreads;
+
+    private Thread[] threadBuffer = new Thread[64];
+    private long[] threadIDs = NO_THREADS;
+    private Thread[] threads = {};
+
+    private Predicate<Thread> lastFilter;
+    private long lastStartedThreadCount = -1;
+    private long lastRefreshTime;
+    private boolean isStale = true;
+
+    /**
+     * @param shard The shard of the sampling thread that will use this instance
+     * @param numShards The number of sampling threads
+     * @param samplingThreads The sampling threads of the profiler, which will never be targeted
+     */
+    TargetedThreads(int shard, int numShards, Thread[] samplingThreads) {
+        this.shard = shard;
+        this.numShards = numShards;
+        this.samplingThreads = samplingThreads;
+
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        while (group.getParent() != null) group = group.getParent();
+        this.rootGroup = group;
+    }
+
+    /**
+     * Marks the cached thread IDs as stale, which will cause them to be recomputed during the next call to
+     * `getThreadIDs`. This should be called when one of the targeted threads turned out to be dead.
+     */
+    void markStale() {
+        isStale = true;
+    }
+
+    long[] getThreadIDs(Predicate<Thread> filter, long refreshPeriod) {
+        long currentTime = System.currentTimeMillis();
+        long startedThreadCount = threadBean.getTotalStartedThreadCount();
+        if (isStale || filter != lastFilter || startedThreadCount != lastStartedThreadCount
+                || currentTime - lastRefreshTime >= refreshPeriod) {
+            refresh(filter);
+            lastFilter = filter;
+            lastStartedThreadCount = startedThreadCount;
+            lastRefreshTime = currentTime;
+            isStale = false;
+        }
+        return threadIDs;
+    }
+
+    /**
+     * @return The threads whose IDs were returned by the last call to `getThreadIDs` (in the same order)
+     */
+    Thread[] getThreads() {
+        return threads;
+    }
+
+    ThreadInfo[] capture(long[] threadIDs, int maxDepth) {
+        if (threadIDs.length == 0) return new ThreadInfo[0];
+        return threadBean.getThreadInfo(threadIDs, maxDepth);
+    }
+
+    private void refresh(Predicate<Thread> filter) {
+        int numThreads = rootGroup.enumerate(threadBuffer, true);
+        while (numThreads == threadBuffer.length) {
+            threadBuffer = new Thread[2 * threadBuffer.length];
+            numThreads = rootGroup.enumerate(threadBuffer, true);
+        }
+
+        long[] newThreadIDs = new long[numThreads];
+        Thread[] newThreads = new Thread[numThreads];
+        int numTargets = 0;
+        for (int index = 0; index < numThreads; index++) {
+            Thread thread = threadBuffer[index];
+
+            if (ThreadPartitions.get(thread.getId(), numShards) != shard || isSamplingThread(thread)) continue;
+            if (filter.test(thread)) {
+                newThreadIDs[numTargets] = thread.getId();
+                newThreads[numTargets] = thread;
+                numTargets += 1;
+            }
+        }
+
+        // Don't keep the other threads alive longer than needed. The targeted threads are kept until the next refresh,
+        // which happens soon after one of them dies.
+        Arrays.fill(threadBuffer, 0, numThreads, null);
+
+        if (numTargets != newThreadIDs.length) {
+            newThreadIDs = Arrays.copyOf(newThreadIDs, numTargets);
+            newThreads = Arrays.copyOf(newThreads, numTargets);
+        }
+        this.threadIDs = newThreadIDs;
+        this.threads = newThreads;
+    }
+
+    private boolean isSamplingThread(Thread thread) {
+        // Skip the sampling threads because their stacktraces at the moment of sampling are always the same
+        for (Thread samplingThread : samplingThreads) {
+            if (thread == samplingThread) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,19 @@
+package com.github.knokko.profiler;
+
+/**
+ * Spreads thread IDs over a fixed number of partitions, like the shards of the sampling threads and the ingestion
+ * workers. Thread IDs are usually consecutive, so they are hashed (Fibonacci hashing) before taking the remainder.
+ */
+final class ThreadPartitions {
+
+    private ThreadPartitions() {}
+
+    /**
+     * @return The partition (between 0 and `numPartitions - 1`) of the thread with the given ID
+     */
+    static int get(long threadID, int numPartitions) {
+        if (numPartitions == 1) return 0;
+        long hash = threadID * 0x9E3779B97F4A7C15L;
+        return (int) ((hash >>> 32) % numPartitions);
+    }
+}
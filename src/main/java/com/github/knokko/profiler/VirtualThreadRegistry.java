@@ -0,0 +1,117 @@
+package com.github.knokko.profiler;
+
+import com.github.knokko.profiler.storage.SampleSink;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * Keeps track of the (virtual) threads that are running tasks, so that the profiler can sample them.
+ * `Thread.getAllStackTraces()` and `ThreadMXBean` don't see virtual threads, so the profiler can only sample the
+ * virtual threads that are registered here. Threads are registered by creating them with a thread factory of this
+ * registry (e.g. `newVirtualThreadFactory(taskType)`), or by wrapping their tasks using `wrap(task, taskType)`. A
+ * thread is only registered while it is running such a task, so terminated threads are never kept.<br>
+ * Each task has a task type, which is converted to a context tag (see `SampleContext`). The profiler inserts the
+ * samples of the registered threads into its `virtualThreadStorage` with that tag, so a `TaggedStorage` will
+ * maintain 1 `ThreadStorage` per task type, rather than 1 per virtual thread.
+ */
+public class VirtualThreadRegistry {
+
+    /**
+     * @return `true` if the current JVM supports virtual threads (Java 21 or later), which is needed for
+     * `newVirtualThreadFactory`
+     */
+    public static boolean isSupported() {
+        return VirtualThreads.isSupported();
+    }
+
+    private final ConcurrentMap<Thread, Integer> runningThreads = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a factory for virtual threads whose tasks will be registered with the given task type. The threads will
+     * be named `taskType-0`, `taskType-1`, etc. This can be combined with `Executors.newThreadPerTaskExecutor`.
+     * @throws UnsupportedOperationException When the JVM doesn't support virtual threads (see `isSupported()`)
+     */
+    public ThreadFactory newVirtualThreadFactory(String taskType) {
+        return wrap(VirtualThreads.newFactory(taskType + "-"), taskType);
+    }
+
+    /**
+     * Wraps the given thread factory such that the tasks of all threads that it creates will be registered with the
+     * given task type
+     */
+    public ThreadFactory wrap(ThreadFactory factory, String taskType) {
+        return task -> factory.newThread(wrap(task, taskType));
+    }
+
+    /**
+     * Wraps the given task such that the thread that runs it will be registered with the given task type while it
+     * runs the task. This is useful for executors that create their threads internally.
+     */
+    public Runnable wrap(Runnable task, String taskType) {
+        int tag = SampleContext.tag(taskType);
+        return () -> {
+            Thread thread = Thread.currentThread();
+            Integer previousTag = runningThreads.put(thread, tag);
+            try {
+                task.run();
+            } finally {
+                if (previousTag != null) runningThreads.put(thread, previousTag);
+                else runningThreads.remove(thread);
+            }
+        };
+    }
+
+    /**
+     * @return The number of threads that are currently running a registered task
+     */
+    public int getNumRunningThreads() {
+        return runningThreads.size();
+    }
+
+    /**
+     * Captures the stacktraces of at most `maxThreads` randomly chosen running threads that satisfy `threadFilter`.
+     * When more threads are running, the period of the batch is scaled up, so that the weights of the samples remain
+     * an estimate of the time spent by all threads.
+     */
+    SampleBatch capture(
+            SampleSink storage, long timestamp, long period, int maxDepth,
+            int maxThreads, Predicate<Thread> threadFilter
+    ) {
+        // Reservoir sampling, which chooses each candidate with the same probability
+        Thread[] chosenThreads = new Thread[maxThreads];
+        int[] chosenTags = new int[maxThreads];
+        int numCandidates = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (Map.Entry<Thread, Integer> entry : runningThreads.entrySet()) {
+            if (!threadFilter.test(entry.getKey())) continue;
+
+            int index = numCandidates < maxThreads ? numCandidates : random.nextInt(numCandidates + 1);
+            if (index < maxThreads) {
+                chosenThreads[index] = entry.getKey();
+                chosenTags[index] = entry.getValue();
+            }
+            numCandidates += 1;
+        }
+
+        int numChosen = Math.min(numCandidates, maxThreads);
+        long scaledPeriod = numChosen == 0 ? period : period * numCandidates / numChosen;
+        SampleBatch batch = new SampleBatch(storage, timestamp, scaledPeriod, maxDepth, numChosen);
+        batch.tags = new int[numChosen];
+        for (int index = 0; index < numChosen; index++) {
+            Thread thread = chosenThreads[index];
+            StackTraceElement[] stackTrace = thread.getStackTrace();
+
+            // The thread finished its task (or terminated) before its stacktrace was captured
+            if (stackTrace.length == 0) continue;
+
+            batch.tags[batch.size] = chosenTags[index];
+            batch.add(thread, stackTrace, thread.getState());
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,20 @@
+package com.github.knokko.profiler;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The Java 8 version of the virtual thread support, which is used on JDKs without virtual threads. The multi-release
+ * JAR contains another version of this class (in `src/main/java21`) that is used on Java 21 and later.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {}
+
+    static boolean isSupported() {
+        return false;
+    }
+
+    static ThreadFactory newFactory(String namePrefix) {
+        throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+    }
+}
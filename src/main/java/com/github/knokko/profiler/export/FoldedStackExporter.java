@@ -0,0 +1,120 @@
+package com.github.knokko.profiler.export;
+
+import com.github.knokko.profiler.storage.FrequencyThreadStorage;
+import com.github.knokko.profiler.storage.SampleStorage;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Exports frequency storages as <i>folded stacks</i> (also called collapsed stacks), which can be turned into flame
+ * graphs by tools like `flamegraph.pl` and speedscope. Each line contains the frames of a stacktrace (outermost
+ * first, separated by `;`) followed by a space and the number of samples that ended in that stacktrace.<br>
+ * The exporter walks the trees directly and writes each line as soon as it reaches a node: it only keeps the path to
+ * the current node in memory. The output is not sorted, and can contain the same stacktrace multiple times (when line
+ * numbers or threads are merged). Flame graph tools simply add the counts of such lines.<br>
+ * The storages can be exported while the profiler is still inserting samples, but the counts of such an export are
+ * not necessarily consistent with each other. An exporter reuses its buffers, so it must not be used by multiple
+ * threads at the same time.
+ */
+public class FoldedStackExporter {
+
+    private final boolean splitLines, splitThreads;
+
+    private final StringBuilder path = new StringBuilder();
+    private char[] lineBuffer = new char[256];
+
+    /**
+     * @param splitLines When `true`, each frame will include its line number (e.g. `Worker.work:12`), so that calls
+     *                   from different lines of the same method are shown separately
+     * @param splitThreads When `true`, each stacktrace will start with a frame that denotes the thread
+     *                     (e.g. `thread-1`), so that the threads are shown separately when exporting a `SampleStorage`.
+     *                     When the `SampleStorage` is grouped, the frame denotes the group key instead.
+     */
+    public FoldedStackExporter(boolean splitLines, boolean splitThreads) {
+        this.splitLines = splitLines;
+        this.splitThreads = splitThreads;
+    }
+
+    public void export(SampleStorage<FrequencyThreadStorage> storage, WritableByteChannel output) throws IOException {
+        export(storage, Channels.newWriter(output, StandardCharsets.UTF_8.newEncoder(), -1));
+    }
+
+    /**
+     * Exports the samples of all threads in the given storage to `output`, and flushes it (but doesn't close it)
+     */
+    public void export(SampleStorage<FrequencyThreadStorage> storage, Writer output) throws IOException {
+        BufferedWriter bufferedOutput = new BufferedWriter(output);
+        if (storage.isGrouped()) {
+            for (Map.Entry<Object, FrequencyThreadStorage> group : storage.getGroups().entrySet()) {
+                path.setLength(0);
+                if (splitThreads) path.append(group.getKey());
+                exportLineNode(group.getValue().rootNode, bufferedOutput);
+            }
+        } else {
+            for (long threadID : storage.getThreadIDs()) {
+                FrequencyThreadStorage threadStorage = storage.getThreadStorage(threadID);
+
+                // The thread may have been removed by removeDeadThreads in the meantime
+                if (threadStorage == null) continue;
+
+                path.setLength(0);
+                if (splitThreads) path.append("thread-").append(threadID);
+                exportLineNode(threadStorage.rootNode, bufferedOutput);
+            }
+        }
+        bufferedOutput.flush();
+    }
+
+    public void export(FrequencyThreadStorage storage, WritableByteChannel output) throws IOException {
+        export(storage, Channels.newWriter(output, StandardCharsets.UTF_8.newEncoder(), -1));
+    }
+
+    /**
+     * Exports the samples of the given thread storage to `output`, and flushes it (but doesn't close it)
+     */
+    public void export(FrequencyThreadStorage storage, Writer output) throws IOException {
+        BufferedWriter bufferedOutput = new BufferedWriter(output);
+        path.setLength(0);
+        exportLineNode(storage.rootNode, bufferedOutput);
+        bufferedOutput.flush();
+    }
+
+    private void exportLineNode(FrequencyThreadStorage.LineNode lineNode, Writer output) throws IOException {
+        long selfCounter = lineNode.counter.get();
+        int pathLength = path.length();
+
+        for (Map.Entry<FrequencyThreadStorage.MethodName, FrequencyThreadStorage.MethodNode> child : lineNode.children.entrySet()) {
+            FrequencyThreadStorage.MethodName methodName = child.getKey();
+            FrequencyThreadStorage.MethodNode methodNode = child.getValue();
+            selfCounter -= methodNode.counter.get();
+
+            for (Map.Entry<Integer, FrequencyThreadStorage.LineNode> line : methodNode.lines.entrySet()) {
+                if (pathLength > 0) path.append(';');
+                path.append(methodName.className).append('.').append(methodName.methodName);
+                if (splitLines) path.append(':').append(line.getKey().intValue());
+                exportLineNode(line.getValue(), output);
+                path.setLength(pathLength);
+            }
+        }
+
+        // The counters can be slightly inconsistent when samples are inserted during the export
+        if (selfCounter > 0 && pathLength > 0) {
+            path.append(' ').append(selfCounter).append('\n');
+            writePath(output);
+            path.setLength(pathLength);
+        }
+    }
+
+    private void writePath(Writer output) throws IOException {
+        int length = path.length();
+        if (length > lineBuffer.length) lineBuffer = new char[Math.max(length, 2 * lineBuffer.length)];
+        path.getChars(0, length, lineBuffer, 0);
+        output.write(lineBuffer, 0, length);
+    }
+}
@@ -0,0 +1,177 @@
+package com.github.knokko.profiler.export;
+
+import com.github.knokko.profiler.storage.FrequencyThreadStorage;
+import com.github.knokko.profiler.storage.SampleStorage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports a `SampleStorage<FrequencyThreadStorage>` as a gzipped pprof `Profile` message, which can be viewed with
+ * `go tool pprof` and other pprof tooling. Each node with a positive self count becomes a sample whose value is that
+ * self count, and whose `thread` label is the ID of its thread. Each distinct (method, line number) pair becomes a
+ * location, and each distinct method becomes a function. All strings are stored only once in the string table.<br>
+ * The samples are encoded directly while walking the trees, so the exporter only needs memory for the encoded
+ * output, the tables, and the path to the current node. An exporter must not be used by multiple threads at the
+ * same time.
+ */
+public class PprofExporter {
+
+    // The field numbers of the messages in profile.proto
+    private static final int PROFILE_SAMPLE_TYPE = 1, PROFILE_SAMPLE = 2, PROFILE_LOCATION = 4,
+            PROFILE_FUNCTION = 5, PROFILE_STRING_TABLE = 6;
+    private static final int VALUE_TYPE_TYPE = 1, VALUE_TYPE_UNIT = 2;
+    private static final int SAMPLE_LOCATION_ID = 1, SAMPLE_VALUE = 2, SAMPLE_LABEL = 3;
+    private static final int LABEL_KEY = 1, LABEL_STR = 2;
+    private static final int LOCATION_ID = 1, LOCATION_LINE = 4;
+    private static final int LINE_FUNCTION_ID = 1, LINE_LINE = 2;
+    private static final int FUNCTION_ID = 1, FUNCTION_NAME = 2, FUNCTION_SYSTEM_NAME = 3;
+
+    private final ProtobufWriter profile = new ProtobufWriter();
+    private final ProtobufWriter tables = new ProtobufWriter();
+    private final ProtobufWriter message = new ProtobufWriter();
+    private final ProtobufWriter nestedMessage = new ProtobufWriter();
+    private final ProtobufWriter threadLabel = new ProtobufWriter();
+
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final Map<FrequencyThreadStorage.MethodName, Function> functions = new HashMap<>();
+    private int numLocations;
+
+    private int[] path = new int[64];
+
+    /**
+     * Exports the samples of all threads in `storage` to `output`. This method finishes the gzip stream, but doesn't
+     * close `output`. The samples get a `thread` label with the thread ID, or a `group` label with the group key when
+     * the storage is grouped.
+     */
+    public void export(SampleStorage<FrequencyThreadStorage> storage, OutputStream output) throws IOException {
+        profile.reset();
+        tables.reset();
+        strings.clear();
+        functions.clear();
+        numLocations = 0;
+
+        getStringIndex("");
+        message.reset();
+        message.writeInt64(VALUE_TYPE_TYPE, getStringIndex("samples"));
+        message.writeInt64(VALUE_TYPE_UNIT, getStringIndex("count"));
+        profile.writeMessage(PROFILE_SAMPLE_TYPE, message);
+
+        if (storage.isGrouped()) {
+            long groupKey = getStringIndex("group");
+            for (Map.Entry<Object, FrequencyThreadStorage> group : storage.getGroups().entrySet()) {
+                threadLabel.reset();
+                threadLabel.writeInt64(LABEL_KEY, groupKey);
+                threadLabel.writeInt64(LABEL_STR, getStringIndex(String.valueOf(group.getKey())));
+                exportLineNode(group.getValue().rootNode, 0);
+            }
+        } else {
+            long threadKey = getStringIndex("thread");
+            for (long threadID : storage.getThreadIDs()) {
+                FrequencyThreadStorage threadStorage = storage.getThreadStorage(threadID);
+
+                // The thread may have been removed by removeDeadThreads in the meantime
+                if (threadStorage == null) continue;
+
+                threadLabel.reset();
+                threadLabel.writeInt64(LABEL_KEY, threadKey);
+                threadLabel.writeInt64(LABEL_STR, getStringIndex(Long.toString(threadID)));
+                exportLineNode(threadStorage.rootNode, 0);
+            }
+        }
+
+        // The string table must be written in index order
+        String[] stringTable = new String[strings.size()];
+        for (Map.Entry<String, Integer> entry : strings.entrySet()) stringTable[entry.getValue()] = entry.getKey();
+        for (String string : stringTable) tables.writeString(PROFILE_STRING_TABLE, string);
+
+        GZIPOutputStream gzipOutput = new GZIPOutputStream(output);
+        profile.writeTo(gzipOutput);
+        tables.writeTo(gzipOutput);
+        gzipOutput.finish();
+        gzipOutput.flush();
+    }
+
+    private void exportLineNode(FrequencyThreadStorage.LineNode lineNode, int depth) {
+        long selfCounter = lineNode.counter.get();
+
+        for (Map.Entry<FrequencyThreadStorage.MethodName, FrequencyThreadStorage.MethodNode> child : lineNode.children.entrySet()) {
+            FrequencyThreadStorage.MethodNode methodNode = child.getValue();
+            selfCounter -= methodNode.counter.get();
+
+            Function function = getFunction(child.getKey());
+            for (Map.Entry<Integer, FrequencyThreadStorage.LineNode> line : methodNode.lines.entrySet()) {
+                if (depth == path.length) path = Arrays.copyOf(path, 2 * depth);
+                path[depth] = getLocationID(function, line.getKey());
+                exportLineNode(line.getValue(), depth + 1);
+            }
+        }
+
+        // The counters can be slightly inconsistent when samples are inserted during the export
+        if (selfCounter > 0 && depth > 0) {
+            message.reset();
+
+            // pprof expects the leaf location first
+            message.writePackedReversed(SAMPLE_LOCATION_ID, path, 0, depth);
+            message.writePacked(SAMPLE_VALUE, selfCounter);
+            message.writeMessage(SAMPLE_LABEL, threadLabel);
+            profile.writeMessage(PROFILE_SAMPLE, message);
+        }
+    }
+
+    private int getStringIndex(String string) {
+        Integer index = strings.get(string);
+        if (index != null) return index;
+        index = strings.size();
+        strings.put(string, index);
+        return index;
+    }
+
+    private Function getFunction(FrequencyThreadStorage.MethodName methodName) {
+        Function function = functions.get(methodName);
+        if (function != null) return function;
+
+        function = new Function(functions.size() + 1);
+        functions.put(methodName, function);
+
+        long name = getStringIndex(methodName.className + "." + methodName.methodName);
+        message.reset();
+        message.writeInt64(FUNCTION_ID, function.id);
+        message.writeInt64(FUNCTION_NAME, name);
+        message.writeInt64(FUNCTION_SYSTEM_NAME, name);
+        tables.writeMessage(PROFILE_FUNCTION, message);
+        return function;
+    }
+
+    private int getLocationID(Function function, Integer lineNumber) {
+        Integer locationID = function.locations.get(lineNumber);
+        if (locationID != null) return locationID;
+
+        numLocations += 1;
+        locationID = numLocations;
+        function.locations.put(lineNumber, locationID);
+
+        nestedMessage.reset();
+        nestedMessage.writeInt64(LINE_FUNCTION_ID, function.id);
+        nestedMessage.writeInt64(LINE_LINE, lineNumber);
+        message.reset();
+        message.writeInt64(LOCATION_ID, locationID);
+        message.writeMessage(LOCATION_LINE, nestedMessage);
+        tables.writeMessage(PROFILE_LOCATION, message);
+        return locationID;
+    }
+
+    private static class Function {
+
+        final int id;
+        final Map<Integer, Integer> locations = new HashMap<>();
+
+        Function(int id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.knokko.profiler.export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A minimal protobuf encoder that writes the fields of a message into a growable byte array. Nested messages are
+ * encoded by writing them into another (reusable) `ProtobufWriter`, and then passing it to `writeMessage`.
+ */
+class ProtobufWriter {
+
+    private static final int VARINT = 0;
+    private static final int LENGTH_DELIMITED = 2;
+
+    private byte[] bytes = new byte[256];
+    private int size;
+
+    void reset() {
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void ensureCapacity(int extraBytes) {
+        if (size + extraBytes > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(size + extraBytes, 2 * bytes.length));
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        bytes[size] = (byte) value;
+        size += 1;
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+    private static int getVarintSize(long value) {
+        int varintSize = 1;
+        while ((value & ~0x7FL) != 0) {
+            varintSize += 1;
+            value >>>= 7;
+        }
+        return varintSize;
+    }
+
+    private void writeTag(int field, int wireType) {
+        writeVarint(((long) field << 3) | wireType);
+    }
+
+    /**
+     * Writes an `int64` or `uint64` field. Like proto3, this omits fields whose value is 0.
+     */
+    void writeInt64(int field, long value) {
+        if (value == 0) return;
+        writeTag(field, VARINT);
+        writeVarint(value);
+    }
+
+    void writeString(int field, String value) {
+        byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        writeTag(field, LENGTH_DELIMITED);
+        writeVarint(encoded.length);
+        ensureCapacity(encoded.length);
+        System.arraycopy(encoded, 0, bytes, size, encoded.length);
+        size += encoded.length;
+    }
+
+    /**
+     * Writes a packed repeated `uint64` field containing `values[startIndex]` up to `values[endIndex - 1]`, in
+     * reversed order
+     */
+    void writePackedReversed(int field, int[] values, int startIndex, int endIndex) {
+        int length = 0;
+        for (int index = startIndex; index < endIndex; index++) length += getVarintSize(values[index]);
+
+        writeTag(field, LENGTH_DELIMITED);
+        writeVarint(length);
+        for (int index = endIndex - 1; index >= startIndex; index--) writeVarint(values[index]);
+    }
+
+    /**
+     * Writes a packed repeated `int64` field containing only `value`
+     */
+    void writePacked(int field, long value) {
+        writeTag(field, LENGTH_DELIMITED);
+        writeVarint(getVarintSize(value));
+        writeVarint(value);
+    }
+
+    void writeMessage(int field, ProtobufWriter message) {
+        writeTag(field, LENGTH_DELIMITED);
+        writeVarint(message.size);
+        ensureCapacity(message.size);
+        System.arraycopy(message.bytes, 0, bytes, size, message.size);
+        size += message.size;
+    }
+
+    void writeTo(OutputStream output) throws IOException {
+        output.write(bytes, 0, size);
+    }
+}
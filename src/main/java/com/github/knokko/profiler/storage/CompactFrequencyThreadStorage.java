@@ -0,0 +1,315 @@
+package com.github.knokko.profiler.storage;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A more compact alternative for `FrequencyThreadStorage`: it maintains the same tree structure, but each node
+ * represents a frame (class name, method name, and line number) rather than a method or line, and the nodes are
+ * stored in flat primitive arrays rather than in maps. This costs roughly 48 bytes per node rather than roughly 200
+ * bytes per node, and inserting a stacktrace doesn't allocate anything unless new nodes are needed.<br>
+ * Inserting is synchronized, but is designed for a single writer (the profiler thread), so the lock is normally
+ * uncontended. Reading doesn't need any locks: use `view()` to get a `TreeView` that can be traversed while the
+ * profiler keeps inserting samples. Like `FrequencyThreadStorage`, the counters in such a view may not be entirely
+ * consistent with each other.
+ */
+public class CompactFrequencyThreadStorage implements ThreadStorage {
+
+    /**
+     * The index of the root node, whose counter is the total number of inserted samples
+     */
+    public static final int ROOT = 0;
+
+    /**
+     * Returned by the `TreeView` methods when a node has no (next) child
+     */
+    public static final int NONE = -1;
+
+    // These arrays are published to readers. Since ROOT can never be a child or sibling, 0 means 'none' in
+    // firstChildren and nextSiblings
+    private int[] parents, frames, firstChildren, nextSiblings;
+    private long[] counters, weights;
+    private volatile Columns published;
+
+    // Only the writer uses these arrays. The child table is an open-addressed hash table that maps
+    // (parent, frame) to (child + 1), where 0 means that the slot is empty
+    private int[] lastChildren;
+    private int[] childTable;
+
+    private int numNodes;
+    private volatile int publishedNumNodes;
+
+    public CompactFrequencyThreadStorage() {
+        int capacity = 64;
+        parents = new int[capacity];
+        frames = new int[capacity];
+        firstChildren = new int[capacity];
+        nextSiblings = new int[capacity];
+        counters = new long[capacity];
+        weights = new long[capacity];
+        lastChildren = new int[capacity];
+        childTable = new int[2 * capacity];
+
+        parents[ROOT] = NONE;
+        frames[ROOT] = NONE;
+        numNodes = 1;
+        publish();
+    }
+
+    @Override
+    public void insert(StackTraceElement[] stackTrace, long timestamp) {
+        insert(FrameDictionary.GLOBAL.getIDs(stackTrace), timestamp);
+    }
+
+    @Override
+    public void insert(int[] stackTrace, long timestamp) {
+        insert(stackTrace, timestamp, 0);
+    }
+
+    @Override
+    public synchronized void insert(int[] stackTrace, long timestamp, long period) {
+        counters[ROOT] += 1;
+        weights[ROOT] += period;
+
+        int parent = ROOT;
+        for (int index = stackTrace.length - 1; index >= 0; index--) {
+            int child = getOrCreateChild(parent, stackTrace[index]);
+            counters[child] += 1;
+            weights[child] += period;
+            parent = child;
+        }
+
+        // This volatile write ensures that readers will see the new counters and nodes
+        publishedNumNodes = numNodes;
+    }
+
+    /**
+     * Adds all counters and weights of `other` to the counters and weights of this storage. This is useful to
+     * aggregate the storages of threads that have terminated (see `DeadThreadPolicy`).
+     */
+    public synchronized void merge(CompactFrequencyThreadStorage other) {
+        TreeView source = other.view();
+        merge(ROOT, source, ROOT);
+        publishedNumNodes = numNodes;
+    }
+
+    private void merge(int destination, TreeView source, int sourceNode) {
+        counters[destination] += source.getCounter(sourceNode);
+        weights[destination] += source.getWeight(sourceNode);
+        for (int child = source.getFirstChild(sourceNode); child != NONE; child = source.getNextSibling(child)) {
+            merge(getOrCreateChild(destination, source.getFrame(child)), source, child);
+        }
+    }
+
+    private int getOrCreateChild(int parent, int frame) {
+        int mask = childTable.length - 1;
+        int slot = hash(parent, frame) & mask;
+        while (true) {
+            int entry = childTable[slot];
+            if (entry == 0) break;
+
+            int candidate = entry - 1;
+            if (parents[candidate] == parent && frames[candidate] == frame) return candidate;
+            slot = (slot + 1) & mask;
+        }
+
+        if (numNodes == parents.length) {
+            grow();
+            return getOrCreateChild(parent, frame);
+        }
+
+        int child = numNodes;
+        numNodes += 1;
+        parents[child] = parent;
+        frames[child] = frame;
+        childTable[slot] = child + 1;
+
+        // Append the child rather than prepending it, so that readers never see a link to an unpublished node
+        // before all older links
+        if (firstChildren[parent] == 0) firstChildren[parent] = child;
+        else nextSiblings[lastChildren[parent]] = child;
+        lastChildren[parent] = child;
+
+        return child;
+    }
+
+    private void grow() {
+        int capacity = 2 * parents.length;
+        parents = Arrays.copyOf(parents, capacity);
+        frames = Arrays.copyOf(frames, capacity);
+        firstChildren = Arrays.copyOf(firstChildren, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        counters = Arrays.copyOf(counters, capacity);
+        weights = Arrays.copyOf(weights, capacity);
+        lastChildren = Arrays.copyOf(lastChildren, capacity);
+
+        childTable = new int[2 * capacity];
+        int mask = childTable.length - 1;
+        for (int node = 1; node < numNodes; node++) {
+            int slot = hash(parents[node], frames[node]) & mask;
+            while (childTable[slot] != 0) slot = (slot + 1) & mask;
+            childTable[slot] = node + 1;
+        }
+
+        publish();
+    }
+
+    private void publish() {
+        published = new Columns(parents, frames, firstChildren, nextSiblings, counters, weights);
+        publishedNumNodes = numNodes;
+    }
+
+    private static int hash(int parent, int frame) {
+        int hash = parent * 0x9E3779B9 + frame;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Gets a view of the current tree, which can be traversed without locks while the profiler keeps inserting
+     * samples. The view will not contain nodes that are created after this method returns, but the counters of the
+     * existing nodes may still increase.
+     */
+    public TreeView view() {
+        // Read publishedNumNodes before published, to ensure that all published nodes fit in the published arrays
+        int currentNumNodes = publishedNumNodes;
+        return new TreeView(published, currentNumNodes);
+    }
+
+    public void print(PrintWriter output, int maxDepth, double thresholdPercentage) {
+        TreeView tree = view();
+        long total = tree.getCounter(ROOT);
+        tree.print(output, ROOT, "", total, maxDepth, (long) (total * thresholdPercentage * 0.01));
+        output.flush();
+    }
+
+    public void print(PrintStream output, int maxDepth, double thresholdPercentage) {
+        print(new PrintWriter(output), maxDepth, thresholdPercentage);
+    }
+
+    private static class Columns {
+
+        final int[] parents, frames, firstChildren, nextSiblings;
+        final long[] counters, weights;
+
+        Columns(
+                int[] parents, int[] frames, int[] firstChildren, int[] nextSiblings,
+                long[] counters, long[] weights
+        ) {
+            this.parents = parents;
+            this.frames = frames;
+            this.firstChildren = firstChildren;
+            this.nextSiblings = nextSiblings;
+            this.counters = counters;
+            this.weights = weights;
+        }
+    }
+
+    public static class TreeView {
+
+        private final Columns columns;
+        private final int numNodes;
+
+        private TreeView(Columns columns, int numNodes) {
+            this.columns = columns;
+            this.numNodes = numNodes;
+        }
+
+        public int getNumNodes() {
+            return numNodes;
+        }
+
+        public long getCounter(int node) {
+            return columns.counters[node];
+        }
+
+        /**
+         * @return The sum of the sampling periods (in nanoseconds) of the samples that were counted by the counter
+         * of the given node, which estimates how much time was spent in the node. Samples that were inserted without
+         * a period don't contribute to the weight.
+         */
+        public long getWeight(int node) {
+            return columns.weights[node];
+        }
+
+        /**
+         * @return The frame ID (see `FrameDictionary`) of the given node, or `NONE` for the root node
+         */
+        public int getFrame(int node) {
+            return columns.frames[node];
+        }
+
+        /**
+         * @return The parent of the given node, or `NONE` for the root node
+         */
+        public int getParent(int node) {
+            return columns.parents[node];
+        }
+
+        /**
+         * @return The first child of the given node, or `NONE` if it has no children
+         */
+        public int getFirstChild(int node) {
+            return toNode(columns.firstChildren[node]);
+        }
+
+        /**
+         * @return The next sibling of the given node, or `NONE` if it is the last child of its parent
+         */
+        public int getNextSibling(int node) {
+            return toNode(columns.nextSiblings[node]);
+        }
+
+        private int toNode(int link) {
+            // Links to nodes that were created after this view was created are ignored. Since children are always
+            // appended, all following siblings of such nodes are also newer.
+            return link == 0 || link >= numNodes ? NONE : link;
+        }
+
+        void print(PrintWriter output, int node, String prefix, long total, int maxDepth, long threshold) {
+            long nodeCounter = getCounter(node);
+            output.printf("%s%d samples (%.2f%%)\n", prefix, nodeCounter, 100.0 * nodeCounter / total);
+
+            FrameDictionary dictionary = FrameDictionary.GLOBAL;
+            Map<Integer, MethodGroup> methodGroups = new HashMap<>();
+            for (int child = getFirstChild(node); child != NONE; child = getNextSibling(child)) {
+                MethodGroup group = methodGroups.computeIfAbsent(
+                        dictionary.getMethodID(getFrame(child)), methodID -> new MethodGroup()
+                );
+                group.counter += getCounter(child);
+                group.lines.add(child);
+            }
+
+            List<MethodGroup> sortedGroups = new ArrayList<>(methodGroups.values());
+            sortedGroups.sort(Comparator.comparingLong(group -> -group.counter));
+            for (MethodGroup group : sortedGroups) {
+                if (group.counter < threshold) continue;
+
+                FrequencyThreadStorage.MethodName methodName = dictionary.getMethodName(getFrame(group.lines.get(0)));
+                output.printf(
+                        "%s  %d samples (%.2f%%) %s.%s:\n", prefix, group.counter,
+                        100.0 * group.counter / total, methodName.className, methodName.methodName
+                );
+
+                group.lines.sort(Comparator.comparingLong(line -> -getCounter(line)));
+                for (int line : group.lines) {
+                    if (getCounter(line) < threshold || maxDepth <= 1) continue;
+
+                    output.printf("%s  line %d:\n", prefix, dictionary.getLineNumber(getFrame(line)));
+                    print(output, line, prefix + "    ", total, maxDepth - 1, threshold);
+                }
+            }
+        }
+
+        private static class MethodGroup {
+
+            long counter;
+            final List<Integer> lines = new ArrayList<>();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.github.knokko.profiler.storage;
+
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+
+/**
+ * Feeds each sample to multiple sinks (e.g. a frequency `SampleStorage` and a timeline `SampleStorage`), which
+ * allows 1 profiler to fill all of them with a single capture. The stacktraces are converted to frame IDs only once
+ * (by the profiler), and the same frame ID array is passed to all sinks.<br>
+ * Each sink can have its own thread filter and class name filter, which are applied on top of the filters of the
+ * profiler. Sinks can be added at any time, even while the profiler is running: the new sink will receive all
+ * samples that are inserted after `add` returns.
+ */
+public class CompositeStorage implements SampleSink {
+
+    private static final Entry[] NO_SINKS = {};
+
+    private volatile Entry[] entries = NO_SINKS;
+
+    /**
+     * Adds a sink that will receive all samples
+     */
+    public void add(SampleSink sink) {
+        add(sink, threadID -> true, className -> true);
+    }
+
+    /**
+     * Adds a sink that will only receive the samples of the threads whose ID satisfies `threadFilter`, and whose
+     * stacktrace contains at least 1 class whose full name satisfies `classNameFilter`.
+     */
+    public synchronized void add(SampleSink sink, LongPredicate threadFilter, Predicate<String> classNameFilter) {
+        Entry[] newEntries = Arrays.copyOf(entries, entries.length + 1);
+        newEntries[entries.length] = new Entry(sink, threadFilter, classNameFilter);
+        entries = newEntries;
+    }
+
+    /**
+     * Adds a `ThreadStorage` that will receive all samples of the thread with the given ID
+     */
+    public void add(long threadID, ThreadStorage threadStorage) {
+        add(new SampleSink() {
+            @Override
+            public void insert(long sampledThreadID, int[] stackTrace, long timestamp, long period) {
+                threadStorage.insert(stackTrace, timestamp, period);
+            }
+
+            @Override
+            public void insert(
+                    long sampledThreadID, int[] stackTrace, long timestamp,
+                    long period, Thread.State state, long cpuTime
+            ) {
+                threadStorage.insert(stackTrace, timestamp, period, state, cpuTime);
+            }
+        }, sampledThreadID -> sampledThreadID == threadID, className -> true);
+    }
+
+    /**
+     * Removes the given sink (or all its occurrences if it was added multiple times)
+     */
+    public synchronized void remove(SampleSink sink) {
+        entries = Arrays.stream(entries).filter(entry -> entry.sink != sink).toArray(Entry[]::new);
+    }
+
+    @Override
+    public void insert(long threadID, int[] stackTrace, long timestamp, long period) {
+        insert(threadID, stackTrace, timestamp, period, null, ThreadStorage.UNKNOWN_CPU_TIME);
+    }
+
+    @Override
+    public void insert(
+            long threadID, int[] stackTrace, long timestamp, long period, Thread.State state, long cpuTime
+    ) {
+        insert(threadID, stackTrace, timestamp, period, state, cpuTime, NO_TAG);
+    }
+
+    @Override
+    public void insert(
+            long threadID, int[] stackTrace, long timestamp, long period,
+            Thread.State state, long cpuTime, int tag
+    ) {
+        for (Entry entry : entries) {
+            if (entry.threadFilter.test(threadID) && entry.matchesClassName(stackTrace)) {
+                entry.sink.insert(threadID, stackTrace, timestamp, period, state, cpuTime, tag);
+            }
+        }
+    }
+
+    @Override
+    public void onThreadSampled(Thread thread) {
+        for (Entry entry : entries) {
+            if (entry.threadFilter.test(thread.getId())) entry.sink.onThreadSampled(thread);
+        }
+    }
+
+    @Override
+    public void removeDeadThreads(long[] sortedLiveThreadIDs) {
+        for (Entry entry : entries) entry.sink.removeDeadThreads(sortedLiveThreadIDs);
+    }
+
+    @Override
+    public void removeDeadThreads(long[] sortedLiveThreadIDs, long snapshotTime) {
+        for (Entry entry : entries) entry.sink.removeDeadThreads(sortedLiveThreadIDs, snapshotTime);
+    }
+
+    private static class Entry {
+
+        final SampleSink sink;
+        final LongPredicate threadFilter;
+        final Predicate<String> classNameFilter;
+
+        Entry(SampleSink sink, LongPredicate threadFilter, Predicate<String> classNameFilter) {
+            this.sink = sink;
+            this.threadFilter = threadFilter;
+            this.classNameFilter = classNameFilter;
+        }
+
+        boolean matchesClassName(int[] stackTrace) {
+            FrameDictionary dictionary = FrameDictionary.GLOBAL;
+            for (int frame : stackTrace) {
+                if (classNameFilter.test(dictionary.getMethodName(frame).className)) return true;
+            }
+            return false;
+        }
+    }
+}
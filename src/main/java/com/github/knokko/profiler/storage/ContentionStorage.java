@@ -0,0 +1,129 @@
+package com.github.knokko.profiler.storage;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Aggregates the samples of threads that were waiting for a lock that was owned by another thread. Each sample is
+ * stored as a <i>waiter stacktrace -> lock -> owner stacktrace</i> edge, and edges with the same lock and stacktraces
+ * are merged. Each lock and edge keeps track of its number of samples and the sum of their sampling periods (the
+ * sampled blocked time), which shows which locks cause the most contention, and what their owners were doing.<br>
+ * Locks are identified by `ThreadInfo.getLockName()`, which is the class name and identity hash code of the lock
+ * (e.g. `java.lang.Object@1b6d3586`).<br>
+ * Contended samples are normally rare compared to regular samples, so this storage simply uses a lock for inserting
+ * and querying.
+ */
+public class ContentionStorage {
+
+    private final StackTraceCache cache = new StackTraceCache();
+    private final Map<String, LockNode> locks = new HashMap<>();
+
+    /**
+     * Inserts a contended sample
+     * @param waiterStackTrace The stacktrace of the thread that was waiting for the lock
+     * @param lockName The name of the lock (see `ThreadInfo.getLockName()`)
+     * @param ownerStackTrace The stacktrace of the thread that owned the lock, or an empty array when unknown
+     * @param period The sampling period (in nanoseconds)
+     */
+    public synchronized void insert(int[] waiterStackTrace, String lockName, int[] ownerStackTrace, long period) {
+        LockNode lock = locks.computeIfAbsent(lockName, name -> new LockNode());
+        lock.counter += 1;
+        lock.weight += period;
+
+        long key = ((long) cache.getID(waiterStackTrace) << 32) | (cache.getID(ownerStackTrace) & 0xFFFFFFFFL);
+        Edge edge = lock.edges.computeIfAbsent(key, edgeKey -> new Edge());
+        edge.counter += 1;
+        edge.weight += period;
+    }
+
+    /**
+     * @return All contended locks (and their edges), sorted by descending weight. The result is a copy, so it won't
+     * change when more samples are inserted.
+     */
+    public synchronized List<ContendedLock> getLocks() {
+        List<ContendedLock> result = new ArrayList<>(locks.size());
+        for (Map.Entry<String, LockNode> lock : locks.entrySet()) {
+            List<Contention> contentions = new ArrayList<>(lock.getValue().edges.size());
+            for (Map.Entry<Long, Edge> edge : lock.getValue().edges.entrySet()) {
+                contentions.add(new Contention(
+                        cache.getStackTrace((int) (edge.getKey() >>> 32)),
+                        cache.getStackTrace((int) (long) edge.getKey()),
+                        edge.getValue().counter, edge.getValue().weight
+                ));
+            }
+            contentions.sort(Comparator.comparingLong(contention -> -contention.weight));
+            result.add(new ContendedLock(
+                    lock.getKey(), lock.getValue().counter, lock.getValue().weight,
+                    Collections.unmodifiableList(contentions)
+            ));
+        }
+        result.sort(Comparator.comparingLong(lock -> -lock.weight));
+        return result;
+    }
+
+    /**
+     * Prints the `maxLocks` most contended locks, and the `maxContentions` heaviest edges of each of them
+     */
+    public void print(PrintWriter output, int maxLocks, int maxContentions) {
+        List<ContendedLock> contendedLocks = getLocks();
+        for (ContendedLock lock : contendedLocks.subList(0, Math.min(maxLocks, contendedLocks.size()))) {
+            output.printf("%s: %d samples (%.3f ms)\n", lock.name, lock.counter, lock.weight / 1_000_000.0);
+            for (Contention contention : lock.contentions.subList(0, Math.min(maxContentions, lock.contentions.size()))) {
+                output.printf(
+                        "  %d samples (%.3f ms) waiting at:\n", contention.counter, contention.weight / 1_000_000.0
+                );
+                for (StackTraceElement element : contention.waiterStackTrace) output.println("    " + element);
+                output.println("  while the owner was at:");
+                for (StackTraceElement element : contention.ownerStackTrace) output.println("    " + element);
+            }
+        }
+        output.flush();
+    }
+
+    public void print(PrintStream output, int maxLocks, int maxContentions) {
+        print(new PrintWriter(output), maxLocks, maxContentions);
+    }
+
+    private static class LockNode {
+
+        long counter, weight;
+
+        // Maps (waiter stack ID << 32 | owner stack ID) to the edge
+        final Map<Long, Edge> edges = new HashMap<>();
+    }
+
+    private static class Edge {
+
+        long counter, weight;
+    }
+
+    public static class ContendedLock {
+
+        public final String name;
+        public final long counter, weight;
+        public final List<Contention> contentions;
+
+        public ContendedLock(String name, long counter, long weight, List<Contention> contentions) {
+            this.name = name;
+            this.counter = counter;
+            this.weight = weight;
+            this.contentions = contentions;
+        }
+    }
+
+    public static class Contention {
+
+        public final StackTraceElement[] waiterStackTrace, ownerStackTrace;
+        public final long counter, weight;
+
+        public Contention(
+                StackTraceElement[] waiterStackTrace, StackTraceElement[] ownerStackTrace, long counter, long weight
+        ) {
+            this.waiterStackTrace = waiterStackTrace;
+            this.ownerStackTrace = ownerStackTrace;
+            this.counter = counter;
+            this.weight = weight;
+        }
+    }
+}
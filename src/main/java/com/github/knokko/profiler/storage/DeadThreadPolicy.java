@@ -0,0 +1,45 @@
+package com.github.knokko.profiler.storage;
+
+/**
+ * Determines what a `SampleStorage` does with the `ThreadStorage` of a thread that has terminated. The storage of the
+ * dead thread is removed from the `SampleStorage` before `onThreadDied` is called, so the memory usage of the
+ * `SampleStorage` is bounded by the number of live threads, rather than by the number of threads that ever lived.
+ * You can implement this interface to archive the storage in any form you like (e.g. write it to a file using a
+ * `FoldedStackExporter`).
+ */
+@FunctionalInterface
+public interface DeadThreadPolicy<T extends ThreadStorage> {
+
+    /**
+     * Simply drops the storage of dead threads (after closing it)
+     */
+    static <T extends ThreadStorage> DeadThreadPolicy<T> evict() {
+        return (threadID, threadStorage) -> threadStorage.close();
+    }
+
+    /**
+     * Merges the storage of each dead thread into `aggregate`, which accumulates the samples of all dead threads
+     */
+    static DeadThreadPolicy<FrequencyThreadStorage> mergeInto(FrequencyThreadStorage aggregate) {
+        return (threadID, threadStorage) -> {
+            aggregate.merge(threadStorage);
+            threadStorage.close();
+        };
+    }
+
+    /**
+     * Merges the storage of each dead thread into `aggregate`, which accumulates the samples of all dead threads
+     */
+    static DeadThreadPolicy<CompactFrequencyThreadStorage> mergeInto(CompactFrequencyThreadStorage aggregate) {
+        return (threadID, threadStorage) -> {
+            aggregate.merge(threadStorage);
+            threadStorage.close();
+        };
+    }
+
+    /**
+     * Called after the storage of the dead thread with the given ID was removed from the `SampleStorage`. Custom
+     * policies should call `threadStorage.close()` when they no longer need the storage.
+     */
+    void onThreadDied(long threadID, T threadStorage);
+}
@@ -0,0 +1,177 @@
+package com.github.knokko.profiler.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maintains the self and total counters and weights of each method of a `FrequencyThreadStorage`, in an open-addressed
+ * hash table (from method ID to counters) of primitive arrays, so inserting a sample doesn't allocate anything unless
+ * the table needs to grow. The total counter of a method is incremented only once per sample, even when the method
+ * occurs multiple times in the stacktrace (recursion).<br>
+ * This class is <b>not</b> thread-safe: it is guarded by the lock of its storage.
+ */
+class FlatProfile {
+
+    // The method ID + 1 of each slot, where 0 means that the slot is empty
+    private int[] keys = new int[64];
+
+    // The sample in which each method was last counted, which is used to count recursive methods only once
+    private int[] lastSamples = new int[64];
+    private long[] selfCounters = new long[64], totalCounters = new long[64];
+    private long[] selfWeights = new long[64], totalWeights = new long[64];
+    private int size;
+    private int currentSample;
+
+    void insert(int[] stackTrace, long period) {
+        if (stackTrace.length == 0) return;
+
+        currentSample += 1;
+        if (currentSample == 0) {
+            // After 2^32 samples, the sample numbers wrap around
+            Arrays.fill(lastSamples, 0);
+            currentSample = 1;
+        }
+
+        FrameDictionary dictionary = FrameDictionary.GLOBAL;
+        for (int index = 0; index < stackTrace.length; index++) {
+            int slot = getOrCreateSlot(dictionary.getMethodID(stackTrace[index]));
+            if (index == 0) {
+                selfCounters[slot] += 1;
+                selfWeights[slot] += period;
+            }
+            if (lastSamples[slot] != currentSample) {
+                lastSamples[slot] = currentSample;
+                totalCounters[slot] += 1;
+                totalWeights[slot] += period;
+            }
+        }
+    }
+
+    void add(FrequencyThreadStorage.MethodStats method) {
+        int slot = getOrCreateSlot(method.methodID);
+        selfCounters[slot] += method.selfCount;
+        totalCounters[slot] += method.totalCount;
+        selfWeights[slot] += method.selfWeight;
+        totalWeights[slot] += method.totalWeight;
+    }
+
+    private int getOrCreateSlot(int methodID) {
+        int slot = findSlot(keys, methodID);
+        if (keys[slot] != 0) return slot;
+
+        if (2 * (size + 1) > keys.length) {
+            grow();
+            slot = findSlot(keys, methodID);
+        }
+        keys[slot] = methodID + 1;
+        size += 1;
+        return slot;
+    }
+
+    private static int findSlot(int[] keys, int methodID) {
+        int mask = keys.length - 1;
+        int hash = methodID * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (keys[slot] != 0 && keys[slot] != methodID + 1) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys, oldLastSamples = lastSamples;
+        long[] oldSelfCounters = selfCounters, oldTotalCounters = totalCounters;
+        long[] oldSelfWeights = selfWeights, oldTotalWeights = totalWeights;
+
+        int capacity = 2 * oldKeys.length;
+        keys = new int[capacity];
+        lastSamples = new int[capacity];
+        selfCounters = new long[capacity];
+        totalCounters = new long[capacity];
+        selfWeights = new long[capacity];
+        totalWeights = new long[capacity];
+
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            if (oldKeys[oldSlot] == 0) continue;
+            int slot = findSlot(keys, oldKeys[oldSlot] - 1);
+            keys[slot] = oldKeys[oldSlot];
+            lastSamples[slot] = oldLastSamples[oldSlot];
+            selfCounters[slot] = oldSelfCounters[oldSlot];
+            totalCounters[slot] = oldTotalCounters[oldSlot];
+            selfWeights[slot] = oldSelfWeights[oldSlot];
+            totalWeights[slot] = oldTotalWeights[oldSlot];
+        }
+    }
+
+    private FrequencyThreadStorage.MethodStats getStats(int slot) {
+        int methodID = keys[slot] - 1;
+        return new FrequencyThreadStorage.MethodStats(
+                methodID, FrameDictionary.GLOBAL.getMethodNameByMethodID(methodID),
+                selfCounters[slot], totalCounters[slot], selfWeights[slot], totalWeights[slot]
+        );
+    }
+
+    List<FrequencyThreadStorage.MethodStats> getAll() {
+        List<FrequencyThreadStorage.MethodStats> methods = new ArrayList<>(size);
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) methods.add(getStats(slot));
+        }
+        return methods;
+    }
+
+    /**
+     * Finds the `n` methods with the largest self counter (or self weight), using a binary min-heap of at most `n`
+     * slots, which is stored in a primitive array
+     */
+    List<FrequencyThreadStorage.MethodStats> top(int n, boolean useWeights) {
+        long[] values = useWeights ? selfWeights : selfCounters;
+        int[] heap = new int[Math.max(0, Math.min(n, size))];
+        int heapSize = 0;
+        for (int slot = 0; slot < keys.length && heap.length > 0; slot++) {
+            if (keys[slot] == 0) continue;
+            if (heapSize < heap.length) {
+                heap[heapSize] = slot;
+                heapSize += 1;
+                siftUp(heap, heapSize - 1, values);
+            } else if (values[slot] > values[heap[0]]) {
+                heap[0] = slot;
+                siftDown(heap, heapSize, values);
+            }
+        }
+
+        // Repeatedly removing the smallest element yields the methods in increasing order
+        FrequencyThreadStorage.MethodStats[] methods = new FrequencyThreadStorage.MethodStats[heapSize];
+        while (heapSize > 0) {
+            methods[heapSize - 1] = getStats(heap[0]);
+            heapSize -= 1;
+            heap[0] = heap[heapSize];
+            siftDown(heap, heapSize, values);
+        }
+        return Arrays.asList(methods);
+    }
+
+    private static void siftUp(int[] heap, int index, long[] values) {
+        int slot = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (values[heap[parent]] <= values[slot]) break;
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = slot;
+    }
+
+    private static void siftDown(int[] heap, int heapSize, long[] values) {
+        if (heapSize == 0) return;
+        int slot = heap[0];
+        int index = 0;
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && values[heap[child + 1]] < values[heap[child]]) child += 1;
+            if (values[slot] <= values[heap[child]]) break;
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = slot;
+    }
+}
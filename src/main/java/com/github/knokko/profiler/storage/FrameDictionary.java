@@ -0,0 +1,216 @@
+package com.github.knokko.profiler.storage;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Assigns a compact `int` ID to each distinct (class name, method name, line number) combination, and a separate
+ * `int` ID to each distinct (class name, method name) combination. The IDs are assigned in order, starting at 0. Once
+ * an ID is assigned, it will never change. This allows storages to work with `int[]` stacktraces, which are much
+ * cheaper to hash, compare, and store than `StackTraceElement[]`s.<br>
+ * Looking up the ID of a frame that was seen before doesn't allocate anything and doesn't need any locks. Assigning a
+ * new ID requires a lock, but that should rarely happen after the application has warmed up. Resolving an ID never
+ * needs any locks.<br>
+ * All storages of this library use `GLOBAL`, so frame IDs can be shared between storages.
+ */
+public class FrameDictionary {
+
+    public static final FrameDictionary GLOBAL = new FrameDictionary();
+
+    private final ConcurrentMap<StackTraceElement, Integer> elementIDs = new ConcurrentHashMap<>();
+
+    // These maps are only used while holding the lock of this dictionary
+    private final Map<FrameKey, Integer> frameIDs = new HashMap<>();
+    private final Map<FrequencyThreadStorage.MethodName, Integer> methodIDs = new HashMap<>();
+
+    private volatile Table table = new Table(64, 64);
+
+    /**
+     * Gets the frame ID of the given element, and assigns a new ID if this dictionary has never seen an element with
+     * the same class name, method name, and line number.
+     */
+    public int getID(StackTraceElement element) {
+        Integer id = elementIDs.get(element);
+        if (id != null) return id;
+        return register(element);
+    }
+
+    /**
+     * Converts the given stacktrace to an array of frame IDs (in the same order)
+     */
+    public int[] getIDs(StackTraceElement[] stackTrace) {
+        int[] ids = new int[stackTrace.length];
+        for (int index = 0; index < stackTrace.length; index++) ids[index] = getID(stackTrace[index]);
+        return ids;
+    }
+
+    /**
+     * Gets the first `StackTraceElement` that was assigned the given frame ID
+     */
+    public StackTraceElement getFrame(int frameID) {
+        return table.elements[frameID];
+    }
+
+    /**
+     * Converts the given array of frame IDs back to a stacktrace
+     */
+    public StackTraceElement[] getFrames(int[] frameIDs) {
+        Table currentTable = table;
+        StackTraceElement[] stackTrace = new StackTraceElement[frameIDs.length];
+        for (int index = 0; index < frameIDs.length; index++) stackTrace[index] = currentTable.elements[frameIDs[index]];
+        return stackTrace;
+    }
+
+    public int getMethodID(int frameID) {
+        return table.frameMethodIDs[frameID];
+    }
+
+    /**
+     * Gets the (shared) method name of the given frame ID. The result is always the same instance for all frames
+     * with the same class name and method name.
+     */
+    public FrequencyThreadStorage.MethodName getMethodName(int frameID) {
+        Table currentTable = table;
+        return currentTable.methodNames[currentTable.frameMethodIDs[frameID]];
+    }
+
+    /**
+     * Gets the (shared) method name that was assigned the given method ID
+     */
+    public FrequencyThreadStorage.MethodName getMethodNameByMethodID(int methodID) {
+        return table.methodNames[methodID];
+    }
+
+    public int getLineNumber(int frameID) {
+        return table.lineNumbers[frameID];
+    }
+
+    /**
+     * Gets the (shared) boxed line number, which can be used as map key without allocating a new `Integer`
+     */
+    Integer getBoxedLineNumber(int frameID) {
+        return table.lineNumbers[frameID];
+    }
+
+    /**
+     * @return The number of frame IDs that have been assigned
+     */
+    public int getNumFrames() {
+        return table.numFrames;
+    }
+
+    /**
+     * @return The number of method IDs that have been assigned
+     */
+    public int getNumMethods() {
+        return table.numMethods;
+    }
+
+    private synchronized int register(StackTraceElement element) {
+        Integer existingID = elementIDs.get(element);
+        if (existingID != null) return existingID;
+
+        FrameKey key = new FrameKey(element.getClassName(), element.getMethodName(), element.getLineNumber());
+        Integer frameID = frameIDs.get(key);
+        if (frameID == null) {
+            Table currentTable = table;
+            FrequencyThreadStorage.MethodName methodName = new FrequencyThreadStorage.MethodName(element);
+
+            Integer methodID = methodIDs.get(methodName);
+            if (methodID == null) {
+                methodID = currentTable.numMethods;
+                if (methodID == currentTable.methodNames.length) {
+                    currentTable = currentTable.grow(currentTable.elements.length, 2 * methodID);
+                }
+                currentTable.methodNames[methodID] = methodName;
+                methodIDs.put(methodName, methodID);
+            }
+
+            frameID = currentTable.numFrames;
+            if (frameID == currentTable.elements.length) {
+                currentTable = currentTable.grow(2 * frameID, currentTable.methodNames.length);
+            }
+            currentTable.elements[frameID] = element;
+            currentTable.frameMethodIDs[frameID] = methodID;
+            currentTable.lineNumbers[frameID] = element.getLineNumber();
+
+            // Publish the new frame (and possibly method) by writing the volatile table field
+            table = currentTable.withSize(frameID + 1, Math.max(currentTable.numMethods, methodID + 1));
+            frameIDs.put(key, frameID);
+        }
+
+        // The table is published before the element ID, so any thread that sees the ID can also resolve it
+        elementIDs.put(element, frameID);
+        return frameID;
+    }
+
+    private static class Table {
+
+        final StackTraceElement[] elements;
+        final int[] frameMethodIDs;
+        final Integer[] lineNumbers;
+        final FrequencyThreadStorage.MethodName[] methodNames;
+
+        final int numFrames, numMethods;
+
+        Table(
+                StackTraceElement[] elements, int[] frameMethodIDs, Integer[] lineNumbers,
+                FrequencyThreadStorage.MethodName[] methodNames, int numFrames, int numMethods
+        ) {
+            this.elements = elements;
+            this.frameMethodIDs = frameMethodIDs;
+            this.lineNumbers = lineNumbers;
+            this.methodNames = methodNames;
+            this.numFrames = numFrames;
+            this.numMethods = numMethods;
+        }
+
+        Table(int frameCapacity, int methodCapacity) {
+            this(
+                    new StackTraceElement[frameCapacity], new int[frameCapacity], new Integer[frameCapacity],
+                    new FrequencyThreadStorage.MethodName[methodCapacity], 0, 0
+            );
+        }
+
+        Table grow(int frameCapacity, int methodCapacity) {
+            return new Table(
+                    Arrays.copyOf(elements, frameCapacity), Arrays.copyOf(frameMethodIDs, frameCapacity),
+                    Arrays.copyOf(lineNumbers, frameCapacity), Arrays.copyOf(methodNames, methodCapacity),
+                    numFrames, numMethods
+            );
+        }
+
+        Table withSize(int numFrames, int numMethods) {
+            return new Table(elements, frameMethodIDs, lineNumbers, methodNames, numFrames, numMethods);
+        }
+    }
+
+    private static class FrameKey {
+
+        final String className, methodName;
+        final int lineNumber;
+
+        FrameKey(String className, String methodName, int lineNumber) {
+            this.className = className;
+            this.methodName = methodName;
+            this.lineNumber = lineNumber;
+        }
+
+        @Override
+        public int hashCode() {
+            return className.hashCode() + 13 * methodName.hashCode() + 31 * lineNumber;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other instanceof FrameKey) {
+                FrameKey otherKey = (FrameKey) other;
+                return this.className.equals(otherKey.className) && this.methodName.equals(otherKey.methodName)
+                        && this.lineNumber == otherKey.lineNumber;
+            } else return false;
+        }
+    }
+}
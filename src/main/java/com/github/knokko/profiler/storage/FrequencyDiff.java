@@ -0,0 +1,303 @@
+package com.github.knokko.profiler.storage;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.ToLongFunction;
+
+/**
+ * Compares a baseline profile with a candidate profile (e.g. of the previous release and the next release). The
+ * constructor merges both trees into 1 tree of `DiffNode`s, where each node represents a frame (method and line), and
+ * contains the normalized counts (the fraction of all samples of its profile) of the baseline and the candidate. Each
+ * profile can consist of multiple trees (e.g. the threads of a `SampleStorage`), which are walked together in place,
+ * without merging them into a copy first.<br>
+ * The comparison needs only 1 pass over all trees: it visits each node at most once, and it doesn't sort the children
+ * of any node. Frames whose normalized count is below `pruneThreshold` in both profiles are pruned, together with
+ * their descendants (whose normalized counts can't be larger). The `maxRegressions` nodes whose <i>self</i> share
+ * (the share of samples that ended in the frame itself) increased the most are collected during the same pass using
+ * a bounded heap.
+ */
+public class FrequencyDiff {
+
+    private static List<FrequencyThreadStorage.LineNode> getRootNodes(
+            SampleStorage<FrequencyThreadStorage> storage
+    ) {
+        List<FrequencyThreadStorage.LineNode> rootNodes = new ArrayList<>();
+        if (storage.isGrouped()) {
+            for (FrequencyThreadStorage groupStorage : storage.getGroups().values()) {
+                rootNodes.add(groupStorage.rootNode);
+            }
+        } else {
+            for (long threadID : storage.getThreadIDs()) {
+                FrequencyThreadStorage threadStorage = storage.getThreadStorage(threadID);
+                if (threadStorage != null) rootNodes.add(threadStorage.rootNode);
+            }
+        }
+        return rootNodes;
+    }
+
+    /**
+     * The root of the merged tree, whose shares are always 1 (unless the profile is empty)
+     */
+    public final DiffNode root;
+
+    /**
+     * The nodes whose self share increased the most, sorted by decreasing `getSelfDelta()`. Only nodes whose self
+     * share increased are included.
+     */
+    public final List<DiffNode> regressions;
+
+    private final ToLongFunction<FrequencyThreadStorage.Node> getValue;
+    private final double baselineTotal, candidateTotal;
+    private final double pruneThreshold;
+    private final int maxRegressions;
+    private final PriorityQueue<DiffNode> regressionHeap;
+
+    public FrequencyDiff(
+            SampleStorage<FrequencyThreadStorage> baseline, SampleStorage<FrequencyThreadStorage> candidate,
+            boolean useWeights, double pruneThreshold, int maxRegressions
+    ) {
+        this(getRootNodes(baseline), getRootNodes(candidate), useWeights, pruneThreshold, maxRegressions);
+    }
+
+    /**
+     * @param useWeights When `true`, the weights (time) of the nodes are compared rather than their counters, which
+     *                   is needed when the sampling period of the profiles differs
+     * @param pruneThreshold Frames whose share is below this fraction (e.g. 0.001 for 0.1%) in both profiles are
+     *                       pruned
+     * @param maxRegressions The maximum number of nodes in `regressions`
+     */
+    public FrequencyDiff(
+            FrequencyThreadStorage baseline, FrequencyThreadStorage candidate,
+            boolean useWeights, double pruneThreshold, int maxRegressions
+    ) {
+        this(
+                Collections.singletonList(baseline.rootNode), Collections.singletonList(candidate.rootNode),
+                useWeights, pruneThreshold, maxRegressions
+        );
+    }
+
+    private FrequencyDiff(
+            List<FrequencyThreadStorage.LineNode> baseline, List<FrequencyThreadStorage.LineNode> candidate,
+            boolean useWeights, double pruneThreshold, int maxRegressions
+    ) {
+        this.getValue = useWeights ? FrequencyThreadStorage.Node::getWeight : node -> node.counter.get();
+        this.baselineTotal = sum(baseline);
+        this.candidateTotal = sum(candidate);
+        this.pruneThreshold = pruneThreshold;
+        this.maxRegressions = maxRegressions;
+        this.regressionHeap = new PriorityQueue<>(
+                Math.max(1, maxRegressions), Comparator.comparingDouble(DiffNode::getSelfDelta)
+        );
+
+        this.root = new DiffNode(null, null, -1);
+        compare(root, baseline, candidate, (long) baselineTotal, (long) candidateTotal);
+
+        List<DiffNode> sortedRegressions = new ArrayList<>(regressionHeap);
+        sortedRegressions.sort(Comparator.comparingDouble(node -> -node.getSelfDelta()));
+        this.regressions = Collections.unmodifiableList(sortedRegressions);
+    }
+
+    private double share(long value, double total) {
+        return total == 0.0 ? 0.0 : value / total;
+    }
+
+    private long sum(List<? extends FrequencyThreadStorage.Node> nodes) {
+        long total = 0;
+        for (FrequencyThreadStorage.Node node : nodes) total += getValue.applyAsLong(node);
+        return total;
+    }
+
+    /**
+     * Fills `node` using the given line nodes of the baseline trees and the candidate trees, either of which may be
+     * empty when the frame doesn't occur in its profile. The values are the sums of the counters (or weights) of the
+     * given line nodes.
+     */
+    private void compare(
+            DiffNode node, List<FrequencyThreadStorage.LineNode> baseline,
+            List<FrequencyThreadStorage.LineNode> candidate, long baselineValue, long candidateValue
+    ) {
+        node.baselineValue = baselineValue;
+        node.candidateValue = candidateValue;
+
+        // Group the children of all trees by frame. Only the children of this node are grouped at the same time.
+        Map<FrequencyThreadStorage.MethodName, Map<Integer, ChildGroup>> children = new HashMap<>();
+        addChildren(children, baseline, true);
+        addChildren(children, candidate, false);
+
+        long baselineChildren = 0, candidateChildren = 0;
+        for (Map.Entry<FrequencyThreadStorage.MethodName, Map<Integer, ChildGroup>> method : children.entrySet()) {
+            for (Map.Entry<Integer, ChildGroup> line : method.getValue().entrySet()) {
+                ChildGroup group = line.getValue();
+                baselineChildren += group.baselineValue;
+                candidateChildren += group.candidateValue;
+                compareChild(node, method.getKey(), line.getKey(), group);
+            }
+        }
+
+        // The counters of the children can be slightly larger than the counter of the parent when the profiler
+        // inserts samples during the comparison
+        node.baselineSelfValue = Math.max(0, node.baselineValue - baselineChildren);
+        node.candidateSelfValue = Math.max(0, node.candidateValue - candidateChildren);
+        if (node != root && node.getSelfDelta() > 0.0 && maxRegressions > 0) {
+            if (regressionHeap.size() < maxRegressions) regressionHeap.add(node);
+            else if (node.getSelfDelta() > regressionHeap.peek().getSelfDelta()) {
+                regressionHeap.poll();
+                regressionHeap.add(node);
+            }
+        }
+    }
+
+    private void addChildren(
+            Map<FrequencyThreadStorage.MethodName, Map<Integer, ChildGroup>> children,
+            List<FrequencyThreadStorage.LineNode> parents, boolean isBaseline
+    ) {
+        for (FrequencyThreadStorage.LineNode parent : parents) {
+            for (Map.Entry<FrequencyThreadStorage.MethodName, FrequencyThreadStorage.MethodNode> method :
+                    parent.children.entrySet()) {
+                Map<Integer, ChildGroup> lines = children.computeIfAbsent(method.getKey(), name -> new HashMap<>());
+                for (Map.Entry<Integer, FrequencyThreadStorage.LineNode> line : method.getValue().lines.entrySet()) {
+                    ChildGroup group = lines.computeIfAbsent(line.getKey(), lineNumber -> new ChildGroup());
+                    long value = getValue.applyAsLong(line.getValue());
+                    if (isBaseline) {
+                        group.baseline.add(line.getValue());
+                        group.baselineValue += value;
+                    } else {
+                        group.candidate.add(line.getValue());
+                        group.candidateValue += value;
+                    }
+                }
+            }
+        }
+    }
+
+    private void compareChild(
+            DiffNode parent, FrequencyThreadStorage.MethodName method, int lineNumber, ChildGroup group
+    ) {
+        double baselineShare = share(group.baselineValue, baselineTotal);
+        double candidateShare = share(group.candidateValue, candidateTotal);
+        if (baselineShare < pruneThreshold && candidateShare < pruneThreshold) return;
+
+        DiffNode child = new DiffNode(parent, method, lineNumber);
+        parent.children.add(child);
+        compare(child, group.baseline, group.candidate, group.baselineValue, group.candidateValue);
+    }
+
+    /**
+     * Prints the regressions, together with the stacktrace that leads to each of them
+     * @param maxDepth The maximum number of frames to print for each regression
+     */
+    public void printRegressions(PrintWriter output, int maxDepth) {
+        for (DiffNode regression : regressions) {
+            output.printf(
+                    "%+.2f%% self (%.2f%% -> %.2f%%), %+.2f%% total (%.2f%% -> %.2f%%):\n",
+                    100.0 * regression.getSelfDelta(), 100.0 * regression.getBaselineSelfShare(),
+                    100.0 * regression.getCandidateSelfShare(), 100.0 * regression.getDelta(),
+                    100.0 * regression.getBaselineShare(), 100.0 * regression.getCandidateShare()
+            );
+            int depth = 0;
+            for (DiffNode frame = regression; frame != root && depth < maxDepth; frame = frame.parent, depth++) {
+                output.printf("  %s.%s:%d\n", frame.method.className, frame.method.methodName, frame.lineNumber);
+            }
+        }
+        output.flush();
+    }
+
+    public void printRegressions(PrintStream output, int maxDepth) {
+        printRegressions(new PrintWriter(output), maxDepth);
+    }
+
+    private static class ChildGroup {
+
+        final List<FrequencyThreadStorage.LineNode> baseline = new ArrayList<>(1);
+        final List<FrequencyThreadStorage.LineNode> candidate = new ArrayList<>(1);
+        long baselineValue, candidateValue;
+    }
+
+    public class DiffNode {
+
+        /**
+         * The parent of this node, or `null` for the root
+         */
+        public final DiffNode parent;
+        /**
+         * The method of this frame, or `null` for the root
+         */
+        public final FrequencyThreadStorage.MethodName method;
+        public final int lineNumber;
+        /**
+         * The children of this node that were not pruned, in no particular order
+         */
+        public final List<DiffNode> children = new ArrayList<>();
+
+        long baselineValue, candidateValue, baselineSelfValue, candidateSelfValue;
+
+        DiffNode(DiffNode parent, FrequencyThreadStorage.MethodName method, int lineNumber) {
+            this.parent = parent;
+            this.method = method;
+            this.lineNumber = lineNumber;
+        }
+
+        /**
+         * @return The counter (or weight) of this frame in the baseline
+         */
+        public long getBaselineValue() {
+            return baselineValue;
+        }
+
+        /**
+         * @return The counter (or weight) of this frame in the candidate
+         */
+        public long getCandidateValue() {
+            return candidateValue;
+        }
+
+        /**
+         * @return The fraction of all baseline samples that contain this frame
+         */
+        public double getBaselineShare() {
+            return share(baselineValue, baselineTotal);
+        }
+
+        /**
+         * @return The fraction of all candidate samples that contain this frame
+         */
+        public double getCandidateShare() {
+            return share(candidateValue, candidateTotal);
+        }
+
+        /**
+         * @return The fraction of all baseline samples that ended in this frame
+         */
+        public double getBaselineSelfShare() {
+            return share(baselineSelfValue, baselineTotal);
+        }
+
+        /**
+         * @return The fraction of all candidate samples that ended in this frame
+         */
+        public double getCandidateSelfShare() {
+            return share(candidateSelfValue, candidateTotal);
+        }
+
+        /**
+         * @return `getCandidateShare() - getBaselineShare()`, which is positive when this frame got more expensive
+         */
+        public double getDelta() {
+            return getCandidateShare() - getBaselineShare();
+        }
+
+        /**
+         * @return `getCandidateSelfShare() - getBaselineSelfShare()`
+         */
+        public double getSelfDelta() {
+            return getCandidateSelfShare() - getBaselineSelfShare();
+        }
+    }
+}
@@ -2,40 +2,166 @@ package com.github.knokko.profiler.storage;
 
 import java.io.PrintStream;
 import java.io.PrintWriter;
-import java.util.Comparator;
-import java.util.Map;
-import java.util.Objects;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 
+/**
+ * Maintains a tree that counts how often each stacktrace was inserted. The `rootNode` can be inspected live, but the
+ * counters may not be consistent with each other while samples are being inserted. Use `snapshot()` to get a
+ * consistent view of the tree without pausing the profiler.<br>
+ * Snapshots are based on <i>epochs</i>: each call to `snapshot()` ends the current epoch, and the snapshot shows the
+ * tree at the end of that epoch. Before a node is modified for the first time in a new epoch, the insert method
+ * saves its old counters in a small per-node history, but only while there are open snapshots that need them. When
+ * there are no open snapshots, inserting costs just 1 extra comparison per node.<br>
+ * Besides the number of samples (`counter`) and the wall-clock time (`weight`), each node also keeps track of the CPU
+ * time and the blocked time of its samples, when the profiler provides them.<br>
+ * The storage also maintains a <i>flat profile</i> during each insert: the self and total counters of each method,
+ * where recursive calls are counted only once in the total. Use `topMethods(n)` to find the methods with the largest
+ * self counters without traversing the tree.
+ */
 public class FrequencyThreadStorage implements ThreadStorage {
 
+    private static final long NO_SNAPSHOT = -1;
+
     public final LineNode rootNode = new LineNode();
 
+    // These fields are guarded by the lock of this storage
+    private long epoch = 1;
+    private final TreeSet<Long> openSnapshots = new TreeSet<>();
+    private long oldestSnapshot = NO_SNAPSHOT, newestSnapshot = NO_SNAPSHOT;
+    private final FlatProfile flatProfile = new FlatProfile();
+
     @Override
     public void insert(StackTraceElement[] stackTrace, long timestamp) {
+        insert(FrameDictionary.GLOBAL.getIDs(stackTrace), timestamp);
+    }
+
+    @Override
+    public void insert(int[] stackTrace, long timestamp) {
+        insert(stackTrace, timestamp, 0);
+    }
+
+    @Override
+    public void insert(int[] stackTrace, long timestamp, long period) {
+        insert(stackTrace, timestamp, period, null, UNKNOWN_CPU_TIME);
+    }
+
+    /**
+     * Inserts a stacktrace. This method is synchronized to ensure that snapshots are never taken halfway an insert,
+     * but the lock is normally uncontended since there is only 1 writer per thread storage.
+     */
+    @Override
+    public synchronized void insert(int[] stackTrace, long timestamp, long period, Thread.State state, long cpuTime) {
+        long sampleCpuTime = Math.max(0, cpuTime);
+        boolean isBlocked = state == Thread.State.BLOCKED || state == Thread.State.WAITING ||
+                state == Thread.State.TIMED_WAITING;
+        long blockedTime = isBlocked ? period : 0;
+
+        FrameDictionary dictionary = FrameDictionary.GLOBAL;
         LineNode parentLineNode = rootNode;
-        parentLineNode.counter.incrementAndGet();
+        parentLineNode.increment(1, period, sampleCpuTime, blockedTime, this);
 
         for (int index = stackTrace.length - 1; index >= 0; index--) {
-            StackTraceElement child = stackTrace[index];
-            MethodName childName = new MethodName(child.getClassName(), child.getMethodName());
+            int child = stackTrace[index];
 
-            parentLineNode.children.computeIfAbsent(childName, name -> new MethodNode());
+            // The method names and line numbers are shared by the dictionary, so this loop doesn't allocate anything
+            // unless it needs to create a new node
+            MethodName childName = dictionary.getMethodName(child);
             MethodNode childMethodNode = parentLineNode.children.get(childName);
-            childMethodNode.counter.incrementAndGet();
+            if (childMethodNode == null) {
+                childMethodNode = parentLineNode.children.computeIfAbsent(childName, name -> new MethodNode());
+            }
+            childMethodNode.increment(1, period, sampleCpuTime, blockedTime, this);
+
+            Integer lineNumber = dictionary.getBoxedLineNumber(child);
+            parentLineNode = childMethodNode.lines.get(lineNumber);
+            if (parentLineNode == null) {
+                parentLineNode = childMethodNode.lines.computeIfAbsent(lineNumber, line -> new LineNode());
+            }
+            parentLineNode.increment(1, period, sampleCpuTime, blockedTime, this);
+        }
+
+        flatProfile.insert(stackTrace, period);
+    }
+
+    /**
+     * Adds all counters and weights of `other` to the counters and weights of this storage. This is useful to
+     * aggregate the storages of threads that have terminated (see `DeadThreadPolicy`).
+     */
+    public void merge(FrequencyThreadStorage other) {
+        // Get the flat profile of other before taking the lock of this storage, to avoid nested locks
+        List<MethodStats> otherMethods = other.getMethodStats();
+        synchronized (this) {
+            merge(rootNode, other.rootNode);
+            for (MethodStats method : otherMethods) flatProfile.add(method);
+        }
+    }
 
-            childMethodNode.lines.computeIfAbsent(child.getLineNumber(), line -> new LineNode());
-            parentLineNode = childMethodNode.lines.get(child.getLineNumber());
-            parentLineNode.counter.incrementAndGet();
+    private void merge(LineNode destination, LineNode source) {
+        destination.increment(source, this);
+        for (Map.Entry<MethodName, MethodNode> child : source.children.entrySet()) {
+            MethodNode sourceMethod = child.getValue();
+            MethodNode destinationMethod = destination.children.computeIfAbsent(child.getKey(), name -> new MethodNode());
+            destinationMethod.increment(sourceMethod, this);
+
+            for (Map.Entry<Integer, LineNode> line : sourceMethod.lines.entrySet()) {
+                merge(destinationMethod.lines.computeIfAbsent(line.getKey(), lineNumber -> new LineNode()), line.getValue());
+            }
         }
     }
 
+    /**
+     * Takes a consistent snapshot of the tree: the counters of the snapshot will never change, and the counter of each
+     * node is at least the sum of the counters of its children. This is cheap: it doesn't copy the tree, and it doesn't
+     * block the profiler. You should close the snapshot when you no longer need it, since the storage needs to keep
+     * the old counters of modified nodes while it is open.
+     */
+    public synchronized Snapshot snapshot() {
+        long snapshotEpoch = epoch;
+        epoch += 1;
+        openSnapshots.add(snapshotEpoch);
+        oldestSnapshot = openSnapshots.first();
+        newestSnapshot = snapshotEpoch;
+        return new Snapshot(snapshotEpoch);
+    }
+
+    private synchronized void closeSnapshot(long snapshotEpoch) {
+        openSnapshots.remove(snapshotEpoch);
+        oldestSnapshot = openSnapshots.isEmpty() ? NO_SNAPSHOT : openSnapshots.first();
+        newestSnapshot = openSnapshots.isEmpty() ? NO_SNAPSHOT : openSnapshots.last();
+    }
+
+    /**
+     * Gets the `n` methods with the largest self counter (the number of samples in which the method was the innermost
+     * frame), sorted by decreasing self counter. This takes O(methods) time, regardless of the size of the tree.
+     */
+    public List<MethodStats> topMethods(int n) {
+        return topMethods(n, false);
+    }
+
+    /**
+     * Like `topMethods(n)`, but sorts the methods by their self weight instead when `useWeights` is `true`
+     */
+    public synchronized List<MethodStats> topMethods(int n, boolean useWeights) {
+        return flatProfile.top(n, useWeights);
+    }
+
+    /**
+     * @return The flat profile of all methods that occurred in at least 1 sample, in no particular order
+     */
+    public synchronized List<MethodStats> getMethodStats() {
+        return flatProfile.getAll();
+    }
+
     public void print(PrintWriter output, int maxDepth, double thresholdPercentage) {
         long total = rootNode.counter.get();
-        rootNode.print(output, "", total, maxDepth, (long) (total * thresholdPercentage * 0.01));
+        rootNode.print(
+                output, "", total, maxDepth, (long) (total * thresholdPercentage * 0.01), node -> node.counter.get()
+        );
         output.flush();
     }
 
@@ -70,41 +196,310 @@ public class FrequencyThreadStorage implements ThreadStorage {
         }
     }
 
-    public static class MethodNode {
+    /**
+     * The flat profile of a method (see `topMethods`)
+     */
+    public static class MethodStats {
+
+        /**
+         * The method ID that `FrameDictionary.GLOBAL` assigned to this method
+         */
+        public final int methodID;
+        public final MethodName method;
+        /**
+         * The number of samples in which this method was the innermost frame
+         */
+        public final long selfCount;
+        /**
+         * The number of samples in which this method occurred at least once
+         */
+        public final long totalCount;
+        /**
+         * The sum of the sampling periods of the samples that were counted by `selfCount`
+         */
+        public final long selfWeight;
+        /**
+         * The sum of the sampling periods of the samples that were counted by `totalCount`
+         */
+        public final long totalWeight;
+
+        public MethodStats(
+                int methodID, MethodName method, long selfCount, long totalCount, long selfWeight, long totalWeight
+        ) {
+            this.methodID = methodID;
+            this.method = method;
+            this.selfCount = selfCount;
+            this.totalCount = totalCount;
+            this.selfWeight = selfWeight;
+            this.totalWeight = totalWeight;
+        }
+
+        @Override
+        public String toString() {
+            return method.className + "." + method.methodName + ": self " + selfCount + ", total " + totalCount;
+        }
+    }
+
+    public abstract static class Node {
 
+        /**
+         * The number of samples that contain this node. Only the storage modifies it (while holding its lock), and
+         * each write to it also publishes the other counters of this node to readers.
+         */
         public final AtomicLong counter = new AtomicLong(0);
+
+        // These fields are only modified while holding the lock of the storage, and they are published by the
+        // (ordered) writes to counter, so they don't need to be atomic or volatile. Most nodes are never blocked and
+        // don't have CPU time, so those counters are only allocated when needed.
+        private long weight;
+        private ThreadTimes threadTimes;
+
+        // The epoch in which this node was last modified, and the counters of this node at the end of older epochs
+        // (newest first), which are only kept while there are open snapshots that need them
+        private volatile long writeEpoch;
+        private volatile Version history;
+
+        /**
+         * @return The sum of the sampling periods (in nanoseconds) of the samples that were counted by `counter`,
+         * which estimates how much time was spent in this node. Samples that were inserted without a period don't
+         * contribute to the weight.
+         */
+        public long getWeight() {
+            // Reading counter ensures that this thread sees the weight of all samples that were counted by it
+            counter.get();
+            return weight;
+        }
+
+        /**
+         * @return The sum of the CPU time (in nanoseconds) that the thread used between the previous sample and each
+         * sample that was counted by `counter`. This is only tracked when the profiler captures CPU time (see
+         * `SampleProfiler.captureCpuTime`), and can be used to find the CPU hot spots.
+         */
+        public long getCpuTime() {
+            counter.get();
+            ThreadTimes currentTimes = threadTimes;
+            return currentTimes != null ? currentTimes.cpuTime : 0;
+        }
+
+        /**
+         * @return The sum of the sampling periods (in nanoseconds) of the samples that were counted by `counter`,
+         * during which the thread was `BLOCKED`, `WAITING`, or `TIMED_WAITING`
+         */
+        public long getBlockedTime() {
+            counter.get();
+            ThreadTimes currentTimes = threadTimes;
+            return currentTimes != null ? currentTimes.blockedTime : 0;
+        }
+
+        /**
+         * Adds all counters of `source` to the counters of this node. Must only be called while holding the lock of
+         * the storage.
+         */
+        void increment(Node source, FrequencyThreadStorage storage) {
+            increment(
+                    source.counter.get(), source.getWeight(), source.getCpuTime(),
+                    source.getBlockedTime(), storage
+            );
+        }
+
+        /**
+         * Must only be called while holding the lock of the storage
+         */
+        void increment(long count, long weight, long cpuTime, long blockedTime, FrequencyThreadStorage storage) {
+            long lastEpoch = writeEpoch;
+            if (lastEpoch != storage.epoch) {
+                Version older = Version.prune(history, storage.oldestSnapshot);
+
+                // The counters at the end of lastEpoch are needed by all open snapshots of lastEpoch or later
+                if (lastEpoch != 0 && storage.newestSnapshot >= lastEpoch) {
+                    older = new Version(
+                            lastEpoch, counter.get(), this.weight,
+                            getCpuTime(), getBlockedTime(), older
+                    );
+                }
+                history = older;
+
+                // Readers that see the new writeEpoch will also see the new history
+                writeEpoch = storage.epoch;
+            }
+
+            this.weight += weight;
+            if (cpuTime != 0 || blockedTime != 0) {
+                ThreadTimes currentTimes = threadTimes;
+                if (currentTimes == null) {
+                    currentTimes = new ThreadTimes();
+                    threadTimes = currentTimes;
+                }
+                currentTimes.cpuTime += cpuTime;
+                currentTimes.blockedTime += blockedTime;
+            }
+
+            // The lock of the storage ensures that there is only 1 writer, so this doesn't need a CAS. The ordered
+            // write publishes the other counters.
+            counter.lazySet(counter.get() + count);
+        }
+
+        long get(long snapshotEpoch, ToLongFunction<Version> getOld, ToLongFunction<Node> getCurrent) {
+            long lastEpoch = writeEpoch;
+            if (lastEpoch <= snapshotEpoch) {
+                long value = getCurrent.applyAsLong(this);
+
+                // When writeEpoch didn't change, the node wasn't modified after the snapshot was taken
+                if (writeEpoch == lastEpoch) return value;
+            }
+
+            for (Version version = history; version != null; version = version.older) {
+                if (version.epoch <= snapshotEpoch) return getOld.applyAsLong(version);
+            }
+
+            // The node didn't exist yet when the snapshot was taken
+            return 0;
+        }
+    }
+
+    private static class ThreadTimes {
+
+        long cpuTime, blockedTime;
+    }
+
+    private static class Version {
+
+        final long epoch, counter, weight, cpuTime, blockedTime;
+        volatile Version older;
+
+        Version(long epoch, long counter, long weight, long cpuTime, long blockedTime, Version older) {
+            this.epoch = epoch;
+            this.counter = counter;
+            this.weight = weight;
+            this.cpuTime = cpuTime;
+            this.blockedTime = blockedTime;
+            this.older = older;
+        }
+
+        /**
+         * Drops the versions that are no longer needed by any open snapshot, and returns the new head of the history
+         */
+        static Version prune(Version history, long oldestSnapshot) {
+            if (oldestSnapshot == NO_SNAPSHOT) return null;
+
+            // The oldest snapshot needs the newest version at or before its epoch, but nothing older than that
+            for (Version version = history; version != null; version = version.older) {
+                if (version.epoch <= oldestSnapshot) {
+                    version.older = null;
+                    break;
+                }
+            }
+            return history;
+        }
+    }
+
+    public static class MethodNode extends Node {
+
         public final ConcurrentMap<Integer, LineNode> lines = new ConcurrentHashMap<>();
     }
 
-    public static class LineNode {
+    public static class LineNode extends Node {
 
-        public final AtomicLong counter = new AtomicLong(0);
         public final ConcurrentMap<MethodName, MethodNode> children = new ConcurrentHashMap<>();
 
-        void print(PrintWriter output, String prefix, long total, int maxDepth, long threshold) {
-            long lineCounter = this.counter.get();
+        void print(
+                PrintWriter output, String prefix, long total, int maxDepth,
+                long threshold, ToLongFunction<Node> getCounter
+        ) {
+            long lineCounter = getCounter.applyAsLong(this);
             output.printf("%s%d samples (%.2f%%)\n", prefix, lineCounter, 100.0 * lineCounter / total);
             for (Map.Entry<MethodName, MethodNode> child : children.entrySet().stream().sorted(
-                    Comparator.comparingLong(entry -> -entry.getValue().counter.get())
+                    Comparator.comparingLong(entry -> -getCounter.applyAsLong(entry.getValue()))
             ).collect(Collectors.toList())) {
                 MethodName methodName = child.getKey();
                 MethodNode node = child.getValue();
-                long nodeCounter = node.counter.get();
-                if (nodeCounter < threshold) continue;
+                long nodeCounter = getCounter.applyAsLong(node);
+                if (nodeCounter == 0 || nodeCounter < threshold) continue;
 
                 output.printf(
                         "%s  %d samples (%.2f%%) %s.%s:\n", prefix, nodeCounter,
                         100.0 * nodeCounter / total, methodName.className, methodName.methodName
                 );
                 for (Map.Entry<Integer, LineNode> line : node.lines.entrySet().stream().sorted(
-                        Comparator.comparingLong(entry -> -entry.getValue().counter.get())
+                        Comparator.comparingLong(entry -> -getCounter.applyAsLong(entry.getValue()))
                 ).collect(Collectors.toList())) {
-                    if (line.getValue().counter.get() < threshold || maxDepth <= 1) continue;
+                    long lineNodeCounter = getCounter.applyAsLong(line.getValue());
+                    if (lineNodeCounter == 0 || lineNodeCounter < threshold || maxDepth <= 1) continue;
 
                     output.printf("%s  line %d:\n", prefix, line.getKey());
-                    line.getValue().print(output, prefix + "    ", total, maxDepth - 1, threshold);
+                    line.getValue().print(output, prefix + "    ", total, maxDepth - 1, threshold, getCounter);
                 }
             }
         }
     }
+
+    /**
+     * An immutable and consistent view of the tree at the moment `snapshot()` was called. It shares the nodes with the
+     * live tree, but it hides the nodes that were created later, and it reports the counters that the nodes had when
+     * the snapshot was taken. The results are undefined after the snapshot is closed.
+     */
+    public class Snapshot implements AutoCloseable {
+
+        private final long epoch;
+        private boolean isClosed;
+
+        private Snapshot(long epoch) {
+            this.epoch = epoch;
+        }
+
+        public long getCounter(Node node) {
+            return node.get(epoch, version -> version.counter, current -> current.counter.get());
+        }
+
+        public long getWeight(Node node) {
+            return node.get(epoch, version -> version.weight, Node::getWeight);
+        }
+
+        public long getCpuTime(Node node) {
+            return node.get(epoch, version -> version.cpuTime, Node::getCpuTime);
+        }
+
+        public long getBlockedTime(Node node) {
+            return node.get(epoch, version -> version.blockedTime, Node::getBlockedTime);
+        }
+
+        /**
+         * @return The children of the given line node that existed when this snapshot was taken
+         */
+        public Map<MethodName, MethodNode> getChildren(LineNode node) {
+            return filter(node.children);
+        }
+
+        /**
+         * @return The lines of the given method node that existed when this snapshot was taken
+         */
+        public Map<Integer, LineNode> getLines(MethodNode node) {
+            return filter(node.lines);
+        }
+
+        private <K, N extends Node> Map<K, N> filter(Map<K, N> nodes) {
+            Map<K, N> result = new HashMap<>();
+            for (Map.Entry<K, N> entry : nodes.entrySet()) {
+                if (getCounter(entry.getValue()) > 0) result.put(entry.getKey(), entry.getValue());
+            }
+            return Collections.unmodifiableMap(result);
+        }
+
+        public void print(PrintWriter output, int maxDepth, double thresholdPercentage) {
+            long total = getCounter(rootNode);
+            rootNode.print(output, "", total, maxDepth, (long) (total * thresholdPercentage * 0.01), this::getCounter);
+            output.flush();
+        }
+
+        public void print(PrintStream output, int maxDepth, double thresholdPercentage) {
+            print(new PrintWriter(output), maxDepth, thresholdPercentage);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (isClosed) return;
+            isClosed = true;
+            closeSnapshot(epoch);
+        }
+    }
 }
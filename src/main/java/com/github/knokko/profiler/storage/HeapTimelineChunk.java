@@ -0,0 +1,53 @@
+package com.github.knokko.profiler.storage;
+
+/**
+ * A `TimelineChunk` that stores its entries in primitive arrays on the heap. Only the writer of the storage can append
+ * to a heap chunk.
+ */
+class HeapTimelineChunk extends TimelineChunk {
+
+    final long[] timestamps;
+    final int[] stackIDs;
+
+    HeapTimelineChunk(int capacity) {
+        this.timestamps = new long[capacity];
+        this.stackIDs = new int[capacity];
+    }
+
+    HeapTimelineChunk(long[] timestamps, int[] stackIDs, int size) {
+        this.timestamps = timestamps;
+        this.stackIDs = stackIDs;
+        this.size = size;
+    }
+
+    @Override
+    long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    @Override
+    int getStackID(int index) {
+        return stackIDs[index];
+    }
+
+    @Override
+    long estimateHeapBytes() {
+        return 12L * timestamps.length + 64;
+    }
+
+    boolean isFull() {
+        return size == timestamps.length;
+    }
+
+    /**
+     * Appends the given entry, which must have a timestamp that is not smaller than that of the last entry
+     */
+    void append(long timestamp, int stackID) {
+        int index = size;
+        timestamps[index] = timestamp;
+        stackIDs[index] = stackID;
+
+        // This volatile write publishes the new entry
+        size = index + 1;
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.knokko.profiler.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A sealed `TimelineChunk` whose entries were written to a memory-mapped spill file: first all timestamps, and then
+ * all stacktrace IDs. The timestamp of the last entry is kept on the heap, so that finding the chunks of a time range
+ * doesn't need to touch the file.
+ */
+class MappedTimelineChunk extends TimelineChunk {
+
+    final SpillFile.Segment segment;
+    private final ByteBuffer buffer;
+    private final int timestampsOffset, stackIDsOffset;
+    private final long lastTimestamp;
+
+    MappedTimelineChunk(SpillFile.Segment segment, int offset, int size, long lastTimestamp) {
+        this.segment = segment;
+        this.buffer = segment.buffer;
+        this.timestampsOffset = offset;
+        this.stackIDsOffset = offset + 8 * size;
+        this.lastTimestamp = lastTimestamp;
+        this.size = size;
+    }
+
+    static int getNumBytes(int size) {
+        return 12 * size;
+    }
+
+    @Override
+    long getTimestamp(int index) {
+        return buffer.getLong(timestampsOffset + 8 * index);
+    }
+
+    @Override
+    int getStackID(int index) {
+        return buffer.getInt(stackIDsOffset + 4 * index);
+    }
+
+    @Override
+    long getLastTimestamp(int size) {
+        return lastTimestamp;
+    }
+
+    @Override
+    long estimateHeapBytes() {
+        return 64;
+    }
+}
@@ -0,0 +1,188 @@
+package com.github.knokko.profiler.storage;
+
+import com.github.knokko.profiler.util.StackTraceHelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A timeline storage that merges consecutive samples with the same stacktrace into a single `Run` while inserting
+ * them, rather than storing each sample. This needs much less memory than `TimelineThreadStorage` for threads that
+ * are mostly idle or blocked, and `getIntervalsBetween` can simply return the precomputed intervals. The downside is
+ * that it doesn't remember the individual samples: it only knows when each run started and ended, and how many
+ * samples it contained.<br>
+ * The intervals have the same meaning as those of `TimelineThreadStorage`: the `startTime` of an interval is the
+ * timestamp of its first sample, and its `endTime` is the timestamp of the first sample of the next interval (or the
+ * timestamp of its last sample, if it is the last interval).<br>
+ * This storage expects the samples to be inserted in timestamp order. A sample that is older than the last sample
+ * is merged into the last run when it has the same stacktrace, and dropped otherwise (see
+ * `getNumDroppedSamples()`).<br>
+ * Inserting needs a (normally uncontended) lock, but reading doesn't.
+ */
+public class RunLengthTimelineThreadStorage implements ThreadStorage {
+
+    private final StackTraceCache cache = new StackTraceCache();
+
+    // The writer only modifies the fields below while holding the write lock, and readers use optimistic reads. Only
+    // the writer can append to closedRuns, and readers should never look beyond numClosedRuns.
+    private final StampedLock lock = new StampedLock();
+    private Run[] closedRuns = new Run[16];
+    private int numClosedRuns;
+    private long openStartTime, openEndTime;
+    private int openStackID = -1;
+    private int openNumSamples;
+
+    private volatile long numDroppedSamples;
+
+    @Override
+    public void insert(StackTraceElement[] stackTrace, long timestamp) {
+        insert(FrameDictionary.GLOBAL.getIDs(stackTrace), timestamp);
+    }
+
+    @Override
+    public void insert(int[] stackTrace, long timestamp) {
+        int stackID = cache.getID(stackTrace);
+        long stamp = lock.writeLock();
+        try {
+            if (openStackID == stackID) {
+                openNumSamples += 1;
+                if (timestamp > openEndTime) openEndTime = timestamp;
+                return;
+            }
+
+            if (openStackID != -1) {
+                if (timestamp < openEndTime) {
+                    //noinspection NonAtomicOperationOnVolatileField
+                    numDroppedSamples += 1;
+                    return;
+                }
+                closeRun(timestamp);
+            }
+
+            openStartTime = timestamp;
+            openEndTime = timestamp;
+            openStackID = stackID;
+            openNumSamples = 1;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void closeRun(long endTime) {
+        Run run = new Run(new TimelineThreadStorage.Interval(
+                openStartTime, endTime, cache.getStackTrace(openStackID)
+        ), openNumSamples);
+
+        if (numClosedRuns == closedRuns.length) closedRuns = Arrays.copyOf(closedRuns, 2 * numClosedRuns);
+        closedRuns[numClosedRuns] = run;
+        numClosedRuns += 1;
+    }
+
+    /**
+     * @return The number of samples that were dropped because they were inserted out of order
+     */
+    public long getNumDroppedSamples() {
+        return numDroppedSamples;
+    }
+
+    /**
+     * Gets all runs that overlap with the time range [startTime, endTime], sorted by time. Unlike
+     * `TimelineThreadStorage.getIntervalsBetween`, the runs are not clipped to the time range.
+     */
+    public List<Run> getRunsBetween(long startTime, long endTime) {
+        Snapshot snapshot = snapshot();
+
+        List<Run> result = new ArrayList<>();
+        int numRuns = snapshot.numClosedRuns;
+        for (int index = firstRunEndingAtOrAfter(snapshot.closedRuns, numRuns, startTime); index < numRuns; index++) {
+            Run run = snapshot.closedRuns[index];
+            if (run.interval.startTime > endTime) return result;
+            result.add(run);
+        }
+
+        Run openRun = snapshot.openRun();
+        if (openRun != null && openRun.interval.endTime >= startTime && openRun.interval.startTime <= endTime) {
+            result.add(openRun);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the intervals of all runs that overlap with the time range [startTime, endTime], sorted by time. Unlike
+     * `TimelineThreadStorage.getIntervalsBetween`, the intervals are not clipped to the time range.
+     */
+    public List<TimelineThreadStorage.Interval> getIntervalsBetween(long startTime, long endTime) {
+        List<Run> runs = getRunsBetween(startTime, endTime);
+        List<TimelineThreadStorage.Interval> intervals = new ArrayList<>(runs.size());
+        for (Run run : runs) intervals.add(run.interval);
+        return intervals;
+    }
+
+    /**
+     * Gets the common 'ancestor' stacktrace of all runs that overlap with the time range [startTime, endTime]
+     */
+    public StackTraceElement[] sample(long startTime, long endTime) {
+        List<Run> runs = getRunsBetween(startTime, endTime);
+        return StackTraceHelper.longestCommonStackTrace(runs.stream().map(run -> run.interval.stackTrace).iterator());
+    }
+
+    private Snapshot snapshot() {
+        long stamp = lock.tryOptimisticRead();
+        Snapshot snapshot = new Snapshot();
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                snapshot = new Snapshot();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return snapshot;
+    }
+
+    private class Snapshot {
+
+        final Run[] closedRuns = RunLengthTimelineThreadStorage.this.closedRuns;
+        final int numClosedRuns = RunLengthTimelineThreadStorage.this.numClosedRuns;
+        final long openStartTime = RunLengthTimelineThreadStorage.this.openStartTime;
+        final long openEndTime = RunLengthTimelineThreadStorage.this.openEndTime;
+        final int openStackID = RunLengthTimelineThreadStorage.this.openStackID;
+        final int openNumSamples = RunLengthTimelineThreadStorage.this.openNumSamples;
+
+        Run openRun() {
+            if (openStackID == -1) return null;
+            return new Run(new TimelineThreadStorage.Interval(
+                    openStartTime, openEndTime, cache.getStackTrace(openStackID)
+            ), openNumSamples);
+        }
+    }
+
+    private static int firstRunEndingAtOrAfter(Run[] runs, int numRuns, long timestamp) {
+        int low = 0;
+        int high = numRuns;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (runs[middle].interval.endTime < timestamp) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    public static class Run {
+
+        public final TimelineThreadStorage.Interval interval;
+        public final int numSamples;
+
+        public Run(TimelineThreadStorage.Interval interval, int numSamples) {
+            this.interval = interval;
+            this.numSamples = numSamples;
+        }
+
+        @Override
+        public String toString() {
+            return numSamples + " samples: " + interval;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.knokko.profiler.storage;
+
+/**
+ * Anything that the `SampleProfiler` can insert its samples into, like a `SampleStorage` or a `CompositeStorage`
+ */
+public interface SampleSink {
+
+    /**
+     * Inserts a stacktrace whose elements were converted to frame IDs using `FrameDictionary.GLOBAL`, and that was
+     * sampled with the given sampling `period` (in nanoseconds). The same `stackTrace` array may be shared with other
+     * sinks, so implementations must <b>not</b> modify it.
+     */
+    void insert(long threadID, int[] stackTrace, long timestamp, long period);
+
+    /**
+     * Like `insert(threadID, stackTrace, timestamp, period)`, but also passes the state of the thread and the CPU time
+     * that it used since its previous sample (see `ThreadStorage.insert(stackTrace, timestamp, period, state,
+     * cpuTime)`)
+     */
+    default void insert(
+            long threadID, int[] stackTrace, long timestamp, long period, Thread.State state, long cpuTime
+    ) {
+        insert(threadID, stackTrace, timestamp, period);
+    }
+
+    /**
+     * Like `insert(threadID, stackTrace, timestamp, period, state, cpuTime)`, but also passes the context tag that
+     * the thread had when it was sampled (see `SampleContext`), or `NO_TAG`. Sinks that break samples down by tag
+     * (like `TaggedStorage`) should override this method.
+     */
+    default void insert(
+            long threadID, int[] stackTrace, long timestamp, long period,
+            Thread.State state, long cpuTime, int tag
+    ) {
+        insert(threadID, stackTrace, timestamp, period, state, cpuTime);
+    }
+
+    /**
+     * The profiler calls this method with the captured thread before inserting each of its samples. Since the thread
+     * may have terminated by the time its samples are inserted (e.g. with async ingestion), sinks that need more
+     * information about a thread than its ID (like a grouped `SampleStorage`) should use this method, rather than
+     * looking up the thread by its ID.
+     */
+    default void onThreadSampled(Thread thread) {}
+
+    /**
+     * The profiler periodically calls this method with the (sorted) IDs of all threads that are still alive, which
+     * allows sinks to clean up the data of terminated threads.
+     */
+    default void removeDeadThreads(long[] sortedLiveThreadIDs) {}
+
+    /**
+     * The profiler calls this method (rather than `removeDeadThreads(sortedLiveThreadIDs)`) with the
+     * `System.nanoTime()` just before it computed `sortedLiveThreadIDs`. Since other sampling threads or ingestion
+     * workers may insert the first samples of a new thread before this method is called, sinks should not treat
+     * threads whose data was created at or after `snapshotTime` as dead. The default implementation ignores
+     * `snapshotTime`.
+     */
+    default void removeDeadThreads(long[] sortedLiveThreadIDs, long snapshotTime) {
+        removeDeadThreads(sortedLiveThreadIDs);
+    }
+
+    /**
+     * The tag of samples of threads that don't have a context tag
+     */
+    int NO_TAG = 0;
+}
@@ -1,33 +1,234 @@
 package com.github.knokko.profiler.storage;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
-public class SampleStorage<T extends ThreadStorage> {
+/**
+ * Propagates the samples of each thread to the `ThreadStorage` of that thread. By default, each thread gets its own
+ * `ThreadStorage`, but you can pass a `groupKey` function to the constructor to let all threads with the same key
+ * (e.g. all threads of a thread pool) share the same `ThreadStorage`. The thread storages that are used for groups
+ * will receive concurrent inserts when the profiler uses multiple sampling threads or ingestion workers. All built-in
+ * thread storages support this, but they guard their inserts with a single lock, so concurrent inserts into the same
+ * group are serialized: adding sampling threads or ingestion workers won't speed up the ingestion of a single large
+ * group.
+ */
+public class SampleStorage<T extends ThreadStorage> implements SampleSink {
+
+    /**
+     * A group key function that removes the numeric suffix from the thread name, so that e.g. `pool-3-thread-1` and
+     * `pool-3-thread-25` are both in the group `pool-3-thread-`
+     */
+    public static String getPoolName(Thread thread) {
+        String name = thread.getName();
+        int length = name.length();
+        while (length > 0 && Character.isDigit(name.charAt(length - 1))) length -= 1;
+        return name.substring(0, length);
+    }
 
     public static SampleStorage<FrequencyThreadStorage> frequency() {
         return new SampleStorage<>(FrequencyThreadStorage::new);
     }
 
+    public static SampleStorage<CompactFrequencyThreadStorage> compactFrequency() {
+        return new SampleStorage<>(CompactFrequencyThreadStorage::new);
+    }
+
     public static SampleStorage<TimelineThreadStorage> timeline() {
         return new SampleStorage<>(TimelineThreadStorage::new);
     }
 
-    private final ConcurrentMap<Long, T> threads = new ConcurrentHashMap<>();
+    public static SampleStorage<TimelineThreadStorage> timeline(TimelineRetention retention) {
+        return new SampleStorage<>(() -> new TimelineThreadStorage(retention));
+    }
+
+    public static SampleStorage<TimelineThreadStorage> timeline(TimelineRetention retention, TimelineSpill spill) {
+        return new SampleStorage<>(() -> new TimelineThreadStorage(retention, spill));
+    }
+
+    public static SampleStorage<RunLengthTimelineThreadStorage> runLengthTimeline() {
+        return new SampleStorage<>(RunLengthTimelineThreadStorage::new);
+    }
+
+    private final ConcurrentMap<Long, ThreadEntry<T>> threads = new ConcurrentHashMap<>();
     private final Supplier<T> createThreadStorage;
+    private final Function<Thread, ?> groupKey;
+    private final ConcurrentMap<Object, T> groups = new ConcurrentHashMap<>();
+
+    /**
+     * Determines what happens with the storage of threads that have terminated. When this is `null` (the default),
+     * the storage of dead threads is kept forever.
+     */
+    public volatile DeadThreadPolicy<? super T> deadThreadPolicy;
 
     public SampleStorage(Supplier<T> createThreadStorage) {
+        this(createThreadStorage, null);
+    }
+
+    /**
+     * @param createThreadStorage Creates the storage of each thread, or of each group when `groupKey` is not `null`
+     * @param groupKey When not `null`, this function will be used to determine the group of each thread, and all
+     *                 threads in the same group will share the same thread storage. It is called only once per
+     *                 thread, with the thread that the profiler captured, so it also works for threads that
+     *                 terminated before their first sample was inserted. Examples are `SampleStorage::getPoolName`
+     *                 and `Thread::getThreadGroup`. Threads for which it returns `null` get their own group.
+     */
+    public SampleStorage(Supplier<T> createThreadStorage, Function<Thread, ?> groupKey) {
         this.createThreadStorage = createThreadStorage;
+        this.groupKey = groupKey;
     }
 
     public void insert(long threadID, StackTraceElement[] stackTrace, long timestamp) {
-        T threadStorage = threads.computeIfAbsent(threadID, key -> createThreadStorage.get());
-        if (threadStorage == null) threadStorage = threads.get(threadID);
-        threadStorage.insert(stackTrace, timestamp);
+        insert(threadID, FrameDictionary.GLOBAL.getIDs(stackTrace), timestamp);
+    }
+
+    /**
+     * Inserts a stacktrace whose elements were converted to frame IDs using `FrameDictionary.GLOBAL`
+     */
+    public void insert(long threadID, int[] stackTrace, long timestamp) {
+        getOrCreateThreadStorage(threadID).insert(stackTrace, timestamp);
+    }
+
+    @Override
+    public void insert(long threadID, int[] stackTrace, long timestamp, long period) {
+        getOrCreateThreadStorage(threadID).insert(stackTrace, timestamp, period);
+    }
+
+    @Override
+    public void insert(
+            long threadID, int[] stackTrace, long timestamp, long period, Thread.State state, long cpuTime
+    ) {
+        getOrCreateThreadStorage(threadID).insert(stackTrace, timestamp, period, state, cpuTime);
+    }
+
+    /**
+     * Computes the group of the given thread (if this storage has a `groupKey` and the group of the thread is not
+     * yet known)
+     */
+    @Override
+    public void onThreadSampled(Thread thread) {
+        if (groupKey == null) return;
+        long threadID = thread.getId();
+        if (!threads.containsKey(threadID)) {
+            threads.computeIfAbsent(threadID, id -> new ThreadEntry<>(getGroupStorage(thread, id)));
+        }
+    }
+
+    private T getOrCreateThreadStorage(long threadID) {
+        ThreadEntry<T> entry = threads.get(threadID);
+        if (entry == null) entry = threads.computeIfAbsent(threadID, this::createThreadEntry);
+        return entry.storage;
+    }
+
+    private ThreadEntry<T> createThreadEntry(long threadID) {
+        if (groupKey == null) return new ThreadEntry<>(createThreadStorage.get());
+
+        // The profiler normally calls onThreadSampled before inserting the first sample, so we only need to search
+        // the thread when samples are inserted manually
+        return new ThreadEntry<>(getGroupStorage(findThread(threadID), threadID));
     }
 
+    private T getGroupStorage(Thread thread, long threadID) {
+        Object key = thread != null ? groupKey.apply(thread) : null;
+        if (key == null) key = "thread-" + threadID;
+        return groups.computeIfAbsent(key, group -> createThreadStorage.get());
+    }
+
+    private static Thread findThread(long threadID) {
+        ThreadGroup rootGroup = Thread.currentThread().getThreadGroup();
+        while (rootGroup.getParent() != null) rootGroup = rootGroup.getParent();
+
+        Thread[] candidates;
+        int numCandidates;
+        do {
+            candidates = new Thread[rootGroup.activeCount() + 16];
+            numCandidates = rootGroup.enumerate(candidates, true);
+        } while (numCandidates == candidates.length);
+
+        for (int index = 0; index < numCandidates; index++) {
+            if (candidates[index].getId() == threadID) return candidates[index];
+        }
+        return null;
+    }
+
+    /**
+     * Removes the storage of all threads whose ID is not in `sortedLiveThreadIDs`, and passes them to the
+     * `deadThreadPolicy`. This method does nothing when `deadThreadPolicy` is `null`.<br>
+     * When this storage has a `groupKey`, the dead threads are removed from their group, but the storage of the group
+     * is kept (and not passed to the `deadThreadPolicy`), regardless of the `deadThreadPolicy`.
+     */
+    @Override
+    public void removeDeadThreads(long[] sortedLiveThreadIDs) {
+        removeDeadThreads(sortedLiveThreadIDs, false, 0L);
+    }
+
+    /**
+     * Like `removeDeadThreads(sortedLiveThreadIDs)`, but keeps the storages that were created at or after
+     * `snapshotTime`: their threads may have been started after `sortedLiveThreadIDs` was computed.
+     */
+    @Override
+    public void removeDeadThreads(long[] sortedLiveThreadIDs, long snapshotTime) {
+        removeDeadThreads(sortedLiveThreadIDs, true, snapshotTime);
+    }
+
+    private void removeDeadThreads(long[] sortedLiveThreadIDs, boolean hasSnapshotTime, long snapshotTime) {
+        DeadThreadPolicy<? super T> policy = deadThreadPolicy;
+        if (groupKey == null && policy == null) return;
+
+        for (Map.Entry<Long, ThreadEntry<T>> entry : threads.entrySet()) {
+            long threadID = entry.getKey();
+            if (Arrays.binarySearch(sortedLiveThreadIDs, threadID) >= 0) continue;
+            if (hasSnapshotTime && entry.getValue().creationTime - snapshotTime >= 0) continue;
+
+            if (!threads.remove(threadID, entry.getValue())) continue;
+            if (groupKey == null) policy.onThreadDied(threadID, entry.getValue().storage);
+        }
+    }
+
+    /**
+     * Gets the storage of the given thread, which is the storage of its group when this storage has a `groupKey`
+     */
     public T getThreadStorage(long threadID) {
-        return threads.get(threadID);
+        ThreadEntry<T> entry = threads.get(threadID);
+        return entry != null ? entry.storage : null;
+    }
+
+    /**
+     * @return `true` if this storage has a `groupKey`, in which case `getGroups()` should be used to iterate over the
+     * thread storages, since multiple thread IDs would map to the same storage
+     */
+    public boolean isGrouped() {
+        return groupKey != null;
+    }
+
+    /**
+     * @return A (live) view of the storage of each group, or an empty map when this storage doesn't have a `groupKey`
+     */
+    public Map<Object, T> getGroups() {
+        return Collections.unmodifiableMap(groups);
+    }
+
+    /**
+     * @return A (live) view of the IDs of all threads for which at least 1 sample was inserted
+     */
+    public Set<Long> getThreadIDs() {
+        return Collections.unmodifiableSet(threads.keySet());
+    }
+
+    private static class ThreadEntry<T> {
+
+        final T storage;
+
+        // The System.nanoTime() at which the first sample of the thread was inserted
+        final long creationTime = System.nanoTime();
+
+        ThreadEntry(T storage) {
+            this.storage = storage;
+        }
     }
 }
@@ -0,0 +1,138 @@
+package com.github.knokko.profiler.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The spill file of a `TimelineThreadStorage`. The file is mapped in segments of (at least) 4 MB, and the chunks are
+ * written directly into the mapped segments, so reading them back doesn't need any system calls. Only the writer of
+ * the storage can use this class, but readers can use the `MappedTimelineChunk`s that it creates.<br>
+ * Each segment counts its live chunks. Once all chunks of a segment have been released (because they were evicted or
+ * replaced), the segment is reused for new chunks, so the file only grows when all segments are in use. The segments
+ * are never unmapped (until the file is deleted): lock-free readers may still be reading a released chunk, which is
+ * harmless in a reused mapping (they will retry), but could crash the JVM in an unmapped one. The number of mappings
+ * is bounded by the maximum number of segments that were in use at the same time.
+ */
+class SpillFile {
+
+    static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private final File file;
+    private final FileChannel channel;
+
+    private final List<Segment> freeSegments = new ArrayList<>();
+    private Segment segment;
+    private long fileSize;
+
+    SpillFile(File directory) {
+        try {
+            this.file = File.createTempFile("timeline", ".bin", directory);
+            this.file.deleteOnExit();
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes the entries of the given chunk to the file, and returns a chunk that reads them from the file
+     */
+    MappedTimelineChunk write(TimelineChunk chunk) {
+        int size = chunk.size;
+        int numBytes = MappedTimelineChunk.getNumBytes(size);
+        if (segment == null || segment.position + numBytes > segment.buffer.capacity()) {
+            Segment previousSegment = segment;
+            segment = claimSegment(numBytes);
+            if (previousSegment != null && previousSegment.numChunks == 0) free(previousSegment);
+        }
+
+        ByteBuffer buffer = segment.buffer;
+        int offset = segment.position;
+        for (int index = 0; index < size; index++) buffer.putLong(offset + 8 * index, chunk.getTimestamp(index));
+        int stackIDsOffset = offset + 8 * size;
+        for (int index = 0; index < size; index++) buffer.putInt(stackIDsOffset + 4 * index, chunk.getStackID(index));
+        segment.position += numBytes;
+        segment.numChunks += 1;
+
+        return new MappedTimelineChunk(segment, offset, size, chunk.getLastTimestamp(size));
+    }
+
+    /**
+     * Releases the space of the given chunk, which must have been created by this file. The caller must ensure that
+     * no snapshot can read the chunk anymore, and that lock-free readers of the chunk will retry their query.
+     */
+    void release(MappedTimelineChunk chunk) {
+        Segment owner = chunk.segment;
+        owner.numChunks -= 1;
+        if (owner.numChunks == 0 && owner != segment) free(owner);
+    }
+
+    private void free(Segment freedSegment) {
+        freedSegment.position = 0;
+        freeSegments.add(freedSegment);
+    }
+
+    private Segment claimSegment(int numBytes) {
+        for (int index = freeSegments.size() - 1; index >= 0; index--) {
+            Segment candidate = freeSegments.get(index);
+            if (candidate.buffer.capacity() >= numBytes) {
+                freeSegments.remove(index);
+                return candidate;
+            }
+        }
+
+        int newSegmentSize = Math.max(SEGMENT_SIZE, numBytes);
+        ByteBuffer buffer;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, fileSize, newSegmentSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.order(ByteOrder.nativeOrder());
+        fileSize += newSegmentSize;
+        return new Segment(buffer);
+    }
+
+    /**
+     * Closes and deletes the file. Chunks that were already mapped may remain readable until they are garbage
+     * collected, depending on the OS.
+     */
+    void delete() {
+        segment = null;
+        freeSegments.clear();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /**
+     * A mapped region of the file, which is filled with chunks from start to end
+     */
+    static class Segment {
+
+        final ByteBuffer buffer;
+        int position;
+
+        // The number of chunks in this segment that have not been released
+        int numChunks;
+
+        Segment(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
@@ -4,32 +4,124 @@ import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Assigns an `int` ID to each distinct stacktrace (array of frame IDs), starting at 0. Looking up the ID of a
+ * stacktrace that was seen before doesn't need any locks, and neither does resolving an ID.<br>
+ * Stacktraces can be released when they are no longer needed, after which their ID can be reused for another
+ * stacktrace. Users that release stacktraces must ensure that readers can detect that they may have resolved a
+ * released ID.
+ */
 class StackTraceCache {
 
-    private final ConcurrentMap<StackTrace, StackTraceElement[]> map = new ConcurrentHashMap<>();
+    private final ConcurrentMap<FrameStack, Integer> ids = new ConcurrentHashMap<>();
+
+    private volatile StackTraceElement[][] stackTraces = new StackTraceElement[16][];
+
+    // These fields are only used while holding the lock of this cache
+    private FrameStack[] keys = new FrameStack[16];
+    private int numStackTraces;
+    private int[] freeIDs = new int[0];
+    private int numFreeIDs;
 
-    // TODO Test this
     public StackTraceElement[] getCached(StackTraceElement[] stackTrace) {
-        return map.computeIfAbsent(new StackTrace(stackTrace), key -> stackTrace);
+        return getStackTrace(getID(FrameDictionary.GLOBAL.getIDs(stackTrace), stackTrace));
+    }
+
+    /**
+     * Gets the cached stacktrace whose frame IDs are `stackTrace`. Since all stacktraces with the same frame IDs
+     * share the same cached array, the results of this method can be compared by reference.
+     */
+    public StackTraceElement[] getCached(int[] stackTrace) {
+        return getStackTrace(getID(stackTrace));
+    }
+
+    /**
+     * Gets the ID of the given stacktrace (array of frame IDs), and assigns a new ID if needed
+     */
+    public int getID(int[] stackTrace) {
+        return getID(stackTrace, null);
+    }
+
+    private int getID(int[] stackTrace, StackTraceElement[] elements) {
+        FrameStack key = new FrameStack(stackTrace);
+        Integer id = ids.get(key);
+        if (id != null) return id;
+        return register(key, elements);
+    }
+
+    private synchronized int register(FrameStack key, StackTraceElement[] elements) {
+        Integer existingID = ids.get(key);
+        if (existingID != null) return existingID;
+
+        int id;
+        StackTraceElement[][] currentStackTraces = stackTraces;
+        if (numFreeIDs > 0) {
+            numFreeIDs -= 1;
+            id = freeIDs[numFreeIDs];
+        } else {
+            id = numStackTraces;
+            if (id == currentStackTraces.length) {
+                currentStackTraces = Arrays.copyOf(currentStackTraces, 2 * id);
+                keys = Arrays.copyOf(keys, 2 * id);
+            }
+            numStackTraces = id + 1;
+        }
+        currentStackTraces[id] = elements != null ? elements : FrameDictionary.GLOBAL.getFrames(key.ids);
+        keys[id] = key;
+
+        // Publish the stacktrace before its ID, so any thread that sees the ID can also resolve it
+        stackTraces = currentStackTraces;
+        ids.put(key, id);
+        return id;
+    }
+
+    /**
+     * @return The stacktrace with the given ID, or `null` if the ID is not in use
+     */
+    public StackTraceElement[] getStackTrace(int id) {
+        StackTraceElement[][] currentStackTraces = stackTraces;
+
+        // Lock-free readers may pass IDs that they read from reused memory, which they will detect later
+        return id >= 0 && id < currentStackTraces.length ? currentStackTraces[id] : null;
+    }
+
+    /**
+     * Releases the stacktrace with the given ID, after which its ID can be reused for another stacktrace
+     */
+    public synchronized void release(int id) {
+        ids.remove(keys[id]);
+        keys[id] = null;
+        stackTraces[id] = null;
+
+        if (numFreeIDs == freeIDs.length) freeIDs = Arrays.copyOf(freeIDs, Math.max(16, 2 * numFreeIDs));
+        freeIDs[numFreeIDs] = id;
+        numFreeIDs += 1;
+    }
+
+    /**
+     * @return The number of stacktraces that are currently cached
+     */
+    public int size() {
+        return ids.size();
     }
 
-    private static class StackTrace {
+    private static class FrameStack {
 
-        final StackTraceElement[] elements;
+        final int[] ids;
+        final int hashCode;
 
-        StackTrace(StackTraceElement[] elements) {
-            this.elements = elements;
+        FrameStack(int[] ids) {
+            this.ids = ids;
+            this.hashCode = Arrays.hashCode(ids);
         }
 
         @Override
         public boolean equals(Object other) {
-            return other instanceof StackTrace && Arrays.equals(this.elements, ((StackTrace) other).elements);
+            return other instanceof FrameStack && Arrays.equals(this.ids, ((FrameStack) other).ids);
         }
 
         @Override
         public int hashCode() {
-            int hashCode = 0;
-            for (StackTraceElement element : elements) hashCode += element.hashCode();
             return hashCode;
         }
     }
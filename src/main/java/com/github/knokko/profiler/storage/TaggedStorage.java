@@ -0,0 +1,72 @@
+package com.github.knokko.profiler.storage;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Breaks the samples down by their context tag (see `SampleContext`): the samples of all threads with the same tag
+ * are inserted into the same `ThreadStorage`, so e.g. `TaggedStorage.frequency()` maintains 1 frequency tree per
+ * tag. Samples without tag are inserted into the storage of `NO_TAG`.<br>
+ * Like the groups of a `SampleStorage`, the storage of a tag can receive concurrent inserts when the profiler uses
+ * multiple sampling threads or ingestion workers.
+ */
+public class TaggedStorage<T extends ThreadStorage> implements SampleSink {
+
+    public static TaggedStorage<FrequencyThreadStorage> frequency() {
+        return new TaggedStorage<>(FrequencyThreadStorage::new);
+    }
+
+    public static TaggedStorage<CompactFrequencyThreadStorage> compactFrequency() {
+        return new TaggedStorage<>(CompactFrequencyThreadStorage::new);
+    }
+
+    private final ConcurrentMap<Integer, T> tags = new ConcurrentHashMap<>();
+    private final Supplier<T> createTagStorage;
+
+    public TaggedStorage(Supplier<T> createTagStorage) {
+        this.createTagStorage = createTagStorage;
+    }
+
+    @Override
+    public void insert(long threadID, int[] stackTrace, long timestamp, long period) {
+        getOrCreateTagStorage(NO_TAG).insert(stackTrace, timestamp, period);
+    }
+
+    @Override
+    public void insert(
+            long threadID, int[] stackTrace, long timestamp, long period, Thread.State state, long cpuTime
+    ) {
+        insert(threadID, stackTrace, timestamp, period, state, cpuTime, NO_TAG);
+    }
+
+    @Override
+    public void insert(
+            long threadID, int[] stackTrace, long timestamp, long period,
+            Thread.State state, long cpuTime, int tag
+    ) {
+        getOrCreateTagStorage(tag).insert(stackTrace, timestamp, period, state, cpuTime);
+    }
+
+    private T getOrCreateTagStorage(int tag) {
+        T tagStorage = tags.get(tag);
+        if (tagStorage == null) tagStorage = tags.computeIfAbsent(tag, key -> createTagStorage.get());
+        return tagStorage;
+    }
+
+    /**
+     * Gets the storage of the given tag, or `null` if no samples with this tag were inserted
+     */
+    public T getTagStorage(int tag) {
+        return tags.get(tag);
+    }
+
+    /**
+     * @return A (live) view of the storage of each tag. Use `SampleContext.getName(tag)` to get the name of a tag.
+     */
+    public Map<Integer, T> getTags() {
+        return Collections.unmodifiableMap(tags);
+    }
+}
@@ -3,4 +3,44 @@ package com.github.knokko.profiler.storage;
 public interface ThreadStorage {
 
     void insert(StackTraceElement[] stackTrace, long timestamp);
+
+    /**
+     * Inserts a stacktrace whose elements were converted to frame IDs using `FrameDictionary.GLOBAL`. Storages
+     * should override this method when they can work with frame IDs directly, since that avoids converting the frame
+     * IDs back to `StackTraceElement`s.
+     */
+    default void insert(int[] stackTrace, long timestamp) {
+        insert(FrameDictionary.GLOBAL.getFrames(stackTrace), timestamp);
+    }
+
+    /**
+     * Inserts a stacktrace that was sampled with the given sampling `period` (in nanoseconds), which is the amount
+     * of time that the sample represents. Storages that count samples should override this method to weight the
+     * samples by their period, which keeps the counts comparable when the sampling period changes. Storages that
+     * keep the timestamp of each sample don't need the period.
+     */
+    default void insert(int[] stackTrace, long timestamp, long period) {
+        insert(stackTrace, timestamp);
+    }
+
+    /**
+     * Inserts a stacktrace together with the state of the thread when it was sampled (or `null` when unknown), and the
+     * CPU time (in nanoseconds) that the thread used since its previous sample (or `UNKNOWN_CPU_TIME`). Storages that
+     * can distinguish CPU time or blocked time should override this method.
+     */
+    default void insert(int[] stackTrace, long timestamp, long period, Thread.State state, long cpuTime) {
+        insert(stackTrace, timestamp, period);
+    }
+
+    /**
+     * Releases the resources of this storage that the garbage collector can't release, like memory budgets and
+     * files. This is called by `DeadThreadPolicy.evict()` and `DeadThreadPolicy.mergeInto` after the thread died.
+     * The storage must not be used after calling this method. The default implementation does nothing.
+     */
+    default void close() {}
+
+    /**
+     * The value of `cpuTime` when the CPU time of a sample is not known
+     */
+    long UNKNOWN_CPU_TIME = -1;
 }
@@ -0,0 +1,56 @@
+package com.github.knokko.profiler.storage;
+
+/**
+ * A chunk of (timestamp, stacktrace ID) pairs of a `TimelineThreadStorage`, sorted by timestamp. Readers can use all
+ * entries below `size` without locks: the entries of a chunk are never modified after they have been published.
+ */
+abstract class TimelineChunk {
+
+    volatile int size;
+
+    abstract long getTimestamp(int index);
+
+    abstract int getStackID(int index);
+
+    /**
+     * @return The estimated number of bytes of heap memory used by this chunk
+     */
+    abstract long estimateHeapBytes();
+
+    /**
+     * @return The timestamp of the last entry below `size`
+     */
+    long getLastTimestamp(int size) {
+        return getTimestamp(size - 1);
+    }
+
+    /**
+     * @return The index of the first entry (below `size`) whose timestamp is at least `timestamp`, or `size` if
+     * there is no such entry
+     */
+    int lowerBound(long timestamp, int size) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getTimestamp(middle) < timestamp) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * @return The index of the first entry (below `size`) whose timestamp is larger than `timestamp`, or `size` if
+     * there is no such entry
+     */
+    int upperBound(long timestamp, int size) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getTimestamp(middle) <= timestamp) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+}
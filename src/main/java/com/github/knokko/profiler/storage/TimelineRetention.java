@@ -0,0 +1,89 @@
+package com.github.knokko.profiler.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Determines how long a `TimelineThreadStorage` keeps its samples. The storage evicts its oldest samples in bulk
+ * (whole chunks), so it can temporarily keep up to 1 chunk (1024 samples) more than the limits allow.
+ */
+public class TimelineRetention {
+
+    public static final TimelineRetention UNLIMITED = new TimelineRetention(Long.MAX_VALUE, Long.MAX_VALUE, null);
+
+    /**
+     * Creates a retention policy that evicts samples that are more than `maxAge` nanoseconds older than the newest
+     * sample. For instance, `maxAge(60_000_000_000L)` will keep a timeline of the last minute.
+     */
+    public static TimelineRetention maxAge(long maxAge) {
+        return new TimelineRetention(maxAge, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Creates a retention policy that keeps (approximately) the newest `maxSamples` samples of each thread
+     */
+    public static TimelineRetention maxSamples(long maxSamples) {
+        return new TimelineRetention(Long.MAX_VALUE, maxSamples, null);
+    }
+
+    /**
+     * Creates a retention policy that limits the total memory usage of all storages that share the given `budget`
+     */
+    public static TimelineRetention budget(Budget budget) {
+        return new TimelineRetention(Long.MAX_VALUE, Long.MAX_VALUE, budget);
+    }
+
+    /**
+     * The maximum difference (in nanoseconds) between the timestamp of the newest sample and the oldest sample
+     */
+    public final long maxAge;
+
+    /**
+     * The maximum number of samples in each storage
+     */
+    public final long maxSamples;
+
+    /**
+     * The memory budget that is shared by all storages with this retention policy, or `null` if there is none
+     */
+    public final Budget budget;
+
+    public TimelineRetention(long maxAge, long maxSamples, Budget budget) {
+        if (maxAge < 0) throw new IllegalArgumentException("maxAge (" + maxAge + ") must not be negative");
+        if (maxSamples < 0) throw new IllegalArgumentException("maxSamples (" + maxSamples + ") must not be negative");
+        this.maxAge = maxAge;
+        this.maxSamples = maxSamples;
+        this.budget = budget;
+    }
+
+    /**
+     * A memory budget that can be shared by multiple storages. When a storage needs to allocate a new chunk while the
+     * budget is exceeded, it will evict its own oldest chunks until the budget is no longer exceeded (or until it has
+     * no other chunks left). Since the threads that insert the most samples allocate the most chunks, they will also
+     * evict the most chunks.
+     */
+    public static class Budget {
+
+        public final long maxBytes;
+        private final AtomicLong usedBytes = new AtomicLong();
+
+        public Budget(long maxBytes) {
+            if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes (" + maxBytes + ") must be positive");
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @return The (estimated) number of bytes used by the chunks of all storages that share this budget
+         */
+        public long getUsedBytes() {
+            return usedBytes.get();
+        }
+
+        boolean isExceeded() {
+            return usedBytes.get() > maxBytes;
+        }
+
+        void add(long bytes) {
+            usedBytes.addAndGet(bytes);
+        }
+    }
+}
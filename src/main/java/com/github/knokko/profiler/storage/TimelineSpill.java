@@ -0,0 +1,28 @@
+package com.github.knokko.profiler.storage;
+
+import java.io.File;
+
+/**
+ * Determines when a `TimelineThreadStorage` moves its older chunks from the heap to a memory-mapped file. Each
+ * storage creates its own (temporary) file in `directory` when it spills its first chunk, and keeps at most
+ * `maxHeapChunks` chunks on the heap.
+ */
+public class TimelineSpill {
+
+    /**
+     * The directory in which the spill files will be created
+     */
+    public final File directory;
+
+    /**
+     * The maximum number of chunks that each storage keeps on the heap (including the chunk to which new samples are
+     * appended). Each chunk on the heap needs about 12 KB.
+     */
+    public final int maxHeapChunks;
+
+    public TimelineSpill(File directory, int maxHeapChunks) {
+        if (maxHeapChunks < 1) throw new IllegalArgumentException("maxHeapChunks (" + maxHeapChunks + ") must be positive");
+        this.directory = directory;
+        this.maxHeapChunks = maxHeapChunks;
+    }
+}
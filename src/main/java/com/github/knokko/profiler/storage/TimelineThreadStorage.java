@@ -2,67 +2,581 @@ package com.github.knokko.profiler.storage;
 
 import com.github.knokko.profiler.util.StackTraceHelper;
 
+import java.io.File;
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
+/**
+ * Stores a timeline of samples in chunks of primitive columns: each chunk contains a `long[]` of timestamps and an
+ * `int[]` of stacktrace IDs, sorted by timestamp. Since the profiler inserts the samples in timestamp order, inserting
+ * a sample is normally just an append. Samples with an older timestamp than the last sample are also supported, but
+ * they require the affected chunk to be copied.<br>
+ * Inserting is synchronized (but normally uncontended since there is only 1 writer), and reading doesn't need any
+ * locks: each query works on a consistent view of the chunks and the number of published samples.<br>
+ * By default, the timeline grows without limit. You can pass a `TimelineRetention` to the constructor to evict old
+ * samples (in bulk). When a chunk is evicted, the cached stacktraces that are no longer used by any sample are
+ * released as well.<br>
+ * You can also pass a `TimelineSpill` to the constructor to move the older chunks to a memory-mapped file, which
+ * allows the timeline to grow much larger than the heap. The time range of each chunk stays on the heap, so queries
+ * only touch the pages of the file that contain the chunks they need. The space of evicted chunks is reused for new
+ * chunks, so the file doesn't keep growing when the storage also has a retention policy. Call `close()` to delete the
+ * file when the storage is no longer needed.<br>
+ * Use `snapshot()` to run multiple queries on the same consistent view of the timeline. While a snapshot is open, the
+ * storage defers releasing the stacktraces (and the spill file space) of evicted chunks, so the snapshot never needs
+ * to retry its queries.
+ */
 public class TimelineThreadStorage implements ThreadStorage {
 
-    private static final StackTraceElement[] DUMMY_TRACE = {};
+    static final int CHUNK_SIZE = 1024;
+    private static final StackTraceElement[] RELEASED_STACK_TRACE = {};
 
-    private final NavigableSet<Sample> samples = new ConcurrentSkipListSet<>();
     private final StackTraceCache cache = new StackTraceCache();
+    private final TimelineRetention retention;
+    private final TimelineSpill spill;
+
+    private volatile ChunkList chunkList = new ChunkList(new TimelineChunk[4], 0, 0);
+
+    // Readers use this to detect whether they may have resolved the ID of a stacktrace that was released
+    private volatile long evictionCounter;
+
+    // While this is positive, evicted stacktraces are not released, but added to deferredReleases instead
+    private final AtomicInteger numOpenSnapshots = new AtomicInteger();
+
+    // These fields are only used by the writer
+    private int[] stackReferenceCounts = new int[16];
+    private int[] deferredReleases = new int[0];
+    private int numDeferredReleases;
+    private final List<MappedTimelineChunk> deferredChunkReleases = new ArrayList<>();
+    private long numSamples;
+    private SpillFile spillFile;
+
+    // The spilled chunks are always the oldest chunks
+    private int numSpilledChunks;
+
+    /**
+     * @param retention Determines when old samples are evicted
+     * @param spill Determines when old chunks are moved to a memory-mapped file, or `null` to keep all chunks on the
+     *              heap
+     */
+    public TimelineThreadStorage(TimelineRetention retention, TimelineSpill spill) {
+        this.retention = retention;
+        this.spill = spill;
+    }
+
+    public TimelineThreadStorage(TimelineRetention retention) {
+        this(retention, null);
+    }
+
+    public TimelineThreadStorage() {
+        this(TimelineRetention.UNLIMITED);
+    }
 
     @Override
     public void insert(StackTraceElement[] stackTrace, long timestamp) {
-        samples.add(new Sample(cache.getCached(stackTrace), timestamp));
+        insert(FrameDictionary.GLOBAL.getIDs(stackTrace), timestamp);
+    }
+
+    @Override
+    public synchronized void insert(int[] stackTrace, long timestamp) {
+        boolean hasDeferredReleases = numDeferredReleases > 0 || !deferredChunkReleases.isEmpty();
+        if (hasDeferredReleases && numOpenSnapshots.get() == 0) releaseDeferred();
+
+        int stackID = cache.getID(stackTrace);
+        if (stackID >= stackReferenceCounts.length) {
+            stackReferenceCounts = Arrays.copyOf(stackReferenceCounts, 2 * stackID);
+        }
+        stackReferenceCounts[stackID] += 1;
+        numSamples += 1;
+
+        ChunkList currentList = chunkList;
+        // The last chunk is never spilled, so it is always a heap chunk
+        HeapTimelineChunk lastChunk = currentList.size() > 0 ?
+                (HeapTimelineChunk) currentList.get(currentList.size() - 1) : null;
+
+        if (lastChunk != null && lastChunk.size > 0 && lastChunk.timestamps[lastChunk.size - 1] > timestamp) {
+            insertOutOfOrder(currentList, stackID, timestamp);
+        } else {
+            if (lastChunk == null || lastChunk.isFull()) {
+                lastChunk = new HeapTimelineChunk(CHUNK_SIZE);
+                addToBudget(lastChunk.estimateHeapBytes());
+                currentList = currentList.withAppended(lastChunk);
+                chunkList = currentList;
+                spillIfNeeded();
+            }
+            lastChunk.append(timestamp, stackID);
+        }
+
+        evictIfNeeded();
+    }
+
+    private void spillIfNeeded() {
+        if (spill == null) return;
+
+        ChunkList currentList = chunkList;
+        while (currentList.size() - numSpilledChunks > spill.maxHeapChunks) {
+            if (spillFile == null) spillFile = new SpillFile(spill.directory);
+
+            TimelineChunk heapChunk = currentList.get(numSpilledChunks);
+            TimelineChunk spilledChunk = spillFile.write(heapChunk);
+            addToBudget(spilledChunk.estimateHeapBytes() - heapChunk.estimateHeapBytes());
+            currentList = currentList.withReplaced(numSpilledChunks, spilledChunk);
+            numSpilledChunks += 1;
+        }
+        chunkList = currentList;
+    }
+
+    private void addToBudget(long bytes) {
+        if (retention.budget != null) retention.budget.add(bytes);
+    }
+
+    /**
+     * Removes all samples from this storage, returns their bytes to the `TimelineRetention.Budget` (if any), and
+     * deletes the spill file of this storage (if it has one). This storage must not be used after calling this
+     * method. Calling this method more than once has no effect.
+     */
+    @Override
+    public synchronized void close() {
+        ChunkList currentList = chunkList;
+        for (int index = 0; index < currentList.size(); index++) {
+            addToBudget(-currentList.get(index).estimateHeapBytes());
+        }
+        chunkList = new ChunkList(new TimelineChunk[4], 0, 0);
+        //noinspection NonAtomicOperationOnVolatileField
+        evictionCounter += 1;
+        numSamples = 0;
+        numSpilledChunks = 0;
+        deferredChunkReleases.clear();
+
+        if (spillFile != null) {
+            spillFile.delete();
+            spillFile = null;
+        }
+    }
+
+    File getSpillFile() {
+        return spillFile != null ? spillFile.getFile() : null;
+    }
+
+    private void evictIfNeeded() {
+        ChunkList currentList = chunkList;
+        TimelineChunk lastChunk = currentList.get(currentList.size() - 1);
+        long newestTimestamp = lastChunk.getLastTimestamp(lastChunk.size);
+
+        // Never evict the last chunk, since new samples are appended to it
+        int numEvicted = 0;
+        while (numEvicted < currentList.size() - 1) {
+            TimelineChunk oldestChunk = currentList.get(numEvicted);
+            boolean isTooOld = newestTimestamp - oldestChunk.getLastTimestamp(oldestChunk.size) > retention.maxAge;
+            boolean hasTooManySamples = numSamples - oldestChunk.size >= retention.maxSamples;
+            boolean exceedsBudget = retention.budget != null && retention.budget.isExceeded();
+            if (!isTooOld && !hasTooManySamples && !exceedsBudget) break;
+
+            numSamples -= oldestChunk.size;
+            addToBudget(-oldestChunk.estimateHeapBytes());
+            numEvicted += 1;
+        }
+        if (numEvicted == 0) return;
+        numSpilledChunks = Math.max(0, numSpilledChunks - numEvicted);
+
+        // Publish the new chunk list before releasing any stacktraces, so readers that see a released stacktrace
+        // will also see the changed evictionCounter
+        chunkList = currentList.withEvicted(numEvicted);
+        //noinspection NonAtomicOperationOnVolatileField
+        evictionCounter += 1;
+
+        // Snapshots that are opened after this check will see the new chunk list, so they can't see the evicted chunks
+        boolean shouldDefer = numOpenSnapshots.get() > 0;
+        for (int index = 0; index < numEvicted; index++) {
+            TimelineChunk chunk = currentList.get(index);
+            releaseSpilledChunk(chunk, shouldDefer);
+            for (int entry = 0; entry < chunk.size; entry++) {
+                int stackID = chunk.getStackID(entry);
+                stackReferenceCounts[stackID] -= 1;
+                if (stackReferenceCounts[stackID] != 0) continue;
+
+                if (shouldDefer) {
+                    if (numDeferredReleases == deferredReleases.length) {
+                        deferredReleases = Arrays.copyOf(deferredReleases, Math.max(16, 2 * numDeferredReleases));
+                    }
+                    deferredReleases[numDeferredReleases++] = stackID;
+                } else cache.release(stackID);
+            }
+        }
+    }
+
+    private void releaseDeferred() {
+        for (int index = 0; index < numDeferredReleases; index++) {
+            int stackID = deferredReleases[index];
+
+            // The stacktrace may have been inserted again after it was evicted, and it may occur multiple times
+            if (stackReferenceCounts[stackID] == 0 && cache.getStackTrace(stackID) != null) cache.release(stackID);
+        }
+        numDeferredReleases = 0;
+
+        for (MappedTimelineChunk chunk : deferredChunkReleases) spillFile.release(chunk);
+        deferredChunkReleases.clear();
+    }
+
+    /**
+     * Releases the space of the given chunk in the spill file (if it was spilled). Readers of the chunk must be able
+     * to detect that it was released, so the evictionCounter must be changed before calling this method.
+     */
+    private void releaseSpilledChunk(TimelineChunk chunk, boolean shouldDefer) {
+        if (!(chunk instanceof MappedTimelineChunk)) return;
+        if (shouldDefer) deferredChunkReleases.add((MappedTimelineChunk) chunk);
+        else spillFile.release((MappedTimelineChunk) chunk);
+    }
+
+    int getNumCachedStackTraces() {
+        return cache.size();
+    }
+
+    private void insertOutOfOrder(ChunkList currentList, int stackID, long timestamp) {
+        Cursor position = new View(currentList).upperBound(timestamp);
+        TimelineChunk chunk = currentList.get(position.chunk);
+        int size = chunk.size;
+
+        // Give the last chunk room for future appends
+        boolean isLastChunk = position.chunk == currentList.size() - 1;
+        int capacity = isLastChunk ? Math.max(CHUNK_SIZE, size + 1) : size + 1;
+        long[] timestamps = new long[capacity];
+        int[] stackIDs = new int[capacity];
+        for (int index = 0; index < size; index++) {
+            int newIndex = index < position.index ? index : index + 1;
+            timestamps[newIndex] = chunk.getTimestamp(index);
+            stackIDs[newIndex] = chunk.getStackID(index);
+        }
+        timestamps[position.index] = timestamp;
+        stackIDs[position.index] = stackID;
+
+        TimelineChunk replacement = new HeapTimelineChunk(timestamps, stackIDs, size + 1);
+        if (position.chunk < numSpilledChunks) replacement = spillFile.write(replacement);
+
+        addToBudget(replacement.estimateHeapBytes() - chunk.estimateHeapBytes());
+        chunkList = currentList.withReplaced(position.chunk, replacement);
+
+        if (chunk instanceof MappedTimelineChunk) {
+            // The space of the replaced chunk may be reused, so readers that are still reading it need to retry
+            //noinspection NonAtomicOperationOnVolatileField
+            evictionCounter += 1;
+            releaseSpilledChunk(chunk, numOpenSnapshots.get() > 0);
+        }
+    }
+
+    /**
+     * Runs the given query on a view of the chunks, and retries it when chunks were evicted while the query was
+     * running (since the query may have resolved stacktraces that were released during the eviction).
+     */
+    private <R> R query(Function<View, R> query) {
+        while (true) {
+            // Read the evictionCounter before the chunk list
+            long initialEvictionCounter = evictionCounter;
+            R result = query.apply(new View(chunkList));
+            if (evictionCounter == initialEvictionCounter) return result;
+        }
+    }
+
+    private StackTraceElement[] resolve(int stackID) {
+        StackTraceElement[] stackTrace = cache.getStackTrace(stackID);
+
+        // When the stacktrace was released (or the stackID was read from a spilled chunk whose space was reused), the
+        // evictionCounter will have changed, so the query will be retried
+        return stackTrace != null ? stackTrace : RELEASED_STACK_TRACE;
+    }
+
+    /**
+     * Takes a consistent snapshot of the timeline: all queries on the snapshot will only see the samples that were
+     * inserted before the snapshot was taken, and they will never be affected by evictions. This is cheap: it doesn't
+     * copy any samples, and it doesn't block the profiler. You should close the snapshot when you no longer need it,
+     * since the storage can't release the stacktraces of evicted samples while a snapshot is open.
+     */
+    public Snapshot snapshot() {
+        // Increment numOpenSnapshots before reading the chunk list, see evictIfNeeded
+        numOpenSnapshots.incrementAndGet();
+        return new Snapshot(new View(chunkList));
     }
 
     public List<Sample> getBetween(long startTime, long endTime) {
-        return new ArrayList<>(samples.subSet(
-                new Sample(DUMMY_TRACE, startTime), true, new Sample(DUMMY_TRACE, endTime), true
-        ));
+        return query(view -> getBetween(view, startTime, endTime));
+    }
+
+    private List<Sample> getBetween(View view, long startTime, long endTime) {
+        List<Sample> result = new ArrayList<>();
+        for (Cursor cursor = view.lowerBound(startTime); cursor.isValid(); cursor.next()) {
+            long timestamp = cursor.getTimestamp();
+            if (timestamp > endTime) break;
+            result.add(new Sample(resolve(cursor.getStackID()), timestamp));
+        }
+        return result;
     }
 
     public List<Interval> getIntervalsBetween(long startTime, long endTime) {
-        List<Sample> samples = getBetween(startTime, endTime);
-        if (samples.isEmpty()) return new ArrayList<>();
+        return query(view -> getIntervalsBetween(view, startTime, endTime));
+    }
 
+    private List<Interval> getIntervalsBetween(View view, long startTime, long endTime) {
         List<Interval> intervals = new ArrayList<>();
 
-        Sample previousSample = samples.get(0);
-        for (Sample sample : samples) {
-            if (Arrays.equals(sample.stackTrace, previousSample.stackTrace)) continue;
-            intervals.add(new Interval(previousSample.timestamp, sample.timestamp, previousSample.stackTrace));
-            previousSample = sample;
+        Cursor cursor = view.lowerBound(startTime);
+        if (!cursor.isValid() || cursor.getTimestamp() > endTime) return intervals;
+
+        long intervalStart = cursor.getTimestamp();
+        int intervalStackID = cursor.getStackID();
+        long lastTimestamp = intervalStart;
+        boolean hasMoreSamples = false;
+        for (cursor.next(); cursor.isValid(); cursor.next()) {
+            long timestamp = cursor.getTimestamp();
+            if (timestamp > endTime) break;
+
+            int stackID = cursor.getStackID();
+            if (stackID != intervalStackID) {
+                intervals.add(new Interval(intervalStart, timestamp, resolve(intervalStackID)));
+                intervalStart = timestamp;
+                intervalStackID = stackID;
+                hasMoreSamples = false;
+            } else hasMoreSamples = true;
+            lastTimestamp = timestamp;
         }
 
-        Sample lastSample = samples.get(samples.size() - 1);
-        if (lastSample != previousSample) intervals.add(new Interval(previousSample.timestamp, lastSample.timestamp, lastSample.stackTrace));
+        if (hasMoreSamples) {
+            intervals.add(new Interval(intervalStart, lastTimestamp, resolve(intervalStackID)));
+        }
 
         return intervals;
     }
 
     public StackTraceElement[] sample(long startTime, long endTime) {
-        Sample startSample = samples.floor(new Sample(DUMMY_TRACE, startTime));
-        if (startSample == null) {
-            try {
-                Sample first = samples.first();
-                if (first.timestamp <= endTime) startSample = first;
-            } catch (NoSuchElementException ignored) {}
-        }
-        if (startSample == null) return new StackTraceElement[0];
-
-        Sample endSample = samples.ceiling(new Sample(DUMMY_TRACE, endTime));
-        if (endSample == null) {
-            try {
-                Sample last = samples.last();
-                if (last.timestamp >= startTime) endSample = last;
-            } catch (NoSuchElementException ignored) {}
-        }
-        if (endSample == null) return new StackTraceElement[0];
-
-        Collection<Sample> relevantSamples = samples.subSet(startSample, true, endSample, true);
-        return StackTraceHelper.longestCommonStackTrace(relevantSamples.stream().map(sample -> sample.stackTrace).iterator());
+        return query(view -> sample(view, startTime, endTime));
+    }
+
+    private StackTraceElement[] sample(View view, long startTime, long endTime) {
+        // The start sample is the last sample at or before startTime, or the first sample if it is before endTime
+        Cursor start = view.upperBound(startTime);
+        if (start.hasPrevious()) start.previous();
+        else if (!start.isValid() || start.getTimestamp() > endTime) return new StackTraceElement[0];
+
+        // The end sample is the first sample at or after endTime, or the last sample if it is after startTime
+        Cursor end = view.lowerBound(endTime);
+        if (!end.isValid()) {
+            if (!end.hasPrevious()) return new StackTraceElement[0];
+            end.previous();
+            if (end.getTimestamp() < startTime) return new StackTraceElement[0];
+        }
+        if (start.compareTo(end) > 0) return new StackTraceElement[0];
+
+        List<StackTraceElement[]> relevantStackTraces = new ArrayList<>();
+        int previousStackID = -1;
+        for (Cursor cursor = start; ; cursor.next()) {
+            int stackID = cursor.getStackID();
+            if (stackID != previousStackID) relevantStackTraces.add(resolve(stackID));
+            previousStackID = stackID;
+            if (cursor.isAt(end)) break;
+        }
+        return StackTraceHelper.longestCommonStackTrace(relevantStackTraces.iterator());
+    }
+
+    /**
+     * An immutable view of the timeline at the moment `snapshot()` was called. The results are undefined after the
+     * snapshot is closed.
+     */
+    public class Snapshot implements AutoCloseable {
+
+        private final View view;
+        private boolean isClosed;
+
+        private Snapshot(View view) {
+            this.view = view;
+        }
+
+        public List<Sample> getBetween(long startTime, long endTime) {
+            return TimelineThreadStorage.this.getBetween(view, startTime, endTime);
+        }
+
+        public List<Interval> getIntervalsBetween(long startTime, long endTime) {
+            return TimelineThreadStorage.this.getIntervalsBetween(view, startTime, endTime);
+        }
+
+        public StackTraceElement[] sample(long startTime, long endTime) {
+            return TimelineThreadStorage.this.sample(view, startTime, endTime);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (isClosed) return;
+            isClosed = true;
+            numOpenSnapshots.decrementAndGet();
+        }
+    }
+
+    private static class ChunkList {
+
+        private final TimelineChunk[] chunks;
+        private final int start, end;
+
+        ChunkList(TimelineChunk[] chunks, int start, int end) {
+            this.chunks = chunks;
+            this.start = start;
+            this.end = end;
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        TimelineChunk get(int index) {
+            return chunks[start + index];
+        }
+
+        ChunkList withAppended(TimelineChunk chunk) {
+            if (end == chunks.length) {
+                TimelineChunk[] newChunks = new TimelineChunk[Math.max(4, 2 * size())];
+                System.arraycopy(chunks, start, newChunks, 0, size());
+                newChunks[size()] = chunk;
+                return new ChunkList(newChunks, 0, size() + 1);
+            }
+
+            // Readers of this list will never look beyond end, so we can reuse the array
+            chunks[end] = chunk;
+            return new ChunkList(chunks, start, end + 1);
+        }
+
+        ChunkList withReplaced(int index, TimelineChunk chunk) {
+            TimelineChunk[] newChunks = chunks.clone();
+            newChunks[start + index] = chunk;
+            return new ChunkList(newChunks, start, end);
+        }
+
+        ChunkList withEvicted(int numChunks) {
+            // Copy the remaining chunks when the evicted chunks would occupy more than half of the array, so that
+            // the evicted chunks can be garbage collected
+            if (start + numChunks > chunks.length / 2) {
+                TimelineChunk[] newChunks = new TimelineChunk[chunks.length];
+                System.arraycopy(chunks, start + numChunks, newChunks, 0, size() - numChunks);
+                return new ChunkList(newChunks, 0, size() - numChunks);
+            }
+            return new ChunkList(chunks, start + numChunks, end);
+        }
+    }
+
+    /**
+     * A consistent view of the chunks: it captures the size of the last chunk, since that is the only chunk that can
+     * still grow
+     */
+    private static class View {
+
+        final ChunkList chunks;
+        final int numChunks;
+        final int lastSize;
+
+        View(ChunkList chunks) {
+            this.chunks = chunks;
+            this.numChunks = chunks.size();
+            this.lastSize = numChunks > 0 ? chunks.get(numChunks - 1).size : 0;
+        }
+
+        int size(int chunk) {
+            return chunk == numChunks - 1 ? lastSize : chunks.get(chunk).size;
+        }
+
+        long lastTimestamp(int chunk) {
+            return chunks.get(chunk).getLastTimestamp(size(chunk));
+        }
+
+        /**
+         * @return A cursor at the first sample whose timestamp is at least `timestamp`
+         */
+        Cursor lowerBound(long timestamp) {
+            int low = 0;
+            int high = numChunks;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (size(middle) == 0 || lastTimestamp(middle) < timestamp) low = middle + 1;
+                else high = middle;
+            }
+            if (low == numChunks) return new Cursor(this, low, 0);
+            return new Cursor(this, low, chunks.get(low).lowerBound(timestamp, size(low)));
+        }
+
+        /**
+         * @return A cursor at the first sample whose timestamp is larger than `timestamp`
+         */
+        Cursor upperBound(long timestamp) {
+            int low = 0;
+            int high = numChunks;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (size(middle) == 0 || lastTimestamp(middle) <= timestamp) low = middle + 1;
+                else high = middle;
+            }
+            if (low == numChunks) return new Cursor(this, low, 0);
+            return new Cursor(this, low, chunks.get(low).upperBound(timestamp, size(low)));
+        }
+    }
+
+    private static class Cursor {
+
+        final View view;
+        int chunk, index;
+
+        Cursor(View view, int chunk, int index) {
+            this.view = view;
+            this.chunk = chunk;
+            this.index = index;
+            normalize();
+        }
+
+        private void normalize() {
+            while (chunk < view.numChunks && index >= view.size(chunk)) {
+                chunk += 1;
+                index = 0;
+            }
+        }
+
+        boolean isValid() {
+            return chunk < view.numChunks;
+        }
+
+        boolean isAt(Cursor other) {
+            return this.chunk == other.chunk && this.index == other.index;
+        }
+
+        int compareTo(Cursor other) {
+            if (this.chunk != other.chunk) return Integer.compare(this.chunk, other.chunk);
+            return Integer.compare(this.index, other.index);
+        }
+
+        void next() {
+            index += 1;
+            normalize();
+        }
+
+        boolean hasPrevious() {
+            if (index > 0) return true;
+            for (int previousChunk = chunk - 1; previousChunk >= 0; previousChunk--) {
+                if (view.size(previousChunk) > 0) return true;
+            }
+            return false;
+        }
+
+        void previous() {
+            if (index > 0) {
+                index -= 1;
+                return;
+            }
+            do {
+                chunk -= 1;
+            } while (view.size(chunk) == 0);
+            index = view.size(chunk) - 1;
+        }
+
+        long getTimestamp() {
+            return view.chunks.get(chunk).getTimestamp(index);
+        }
+
+        int getStackID() {
+            return view.chunks.get(chunk).getStackID(index);
+        }
     }
 
     public static class Sample implements Comparable<Sample> {
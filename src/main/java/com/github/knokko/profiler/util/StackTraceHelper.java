@@ -5,6 +5,31 @@ import java.util.Iterator;
 
 public class StackTraceHelper {
 
+    /**
+     * This element is appended to stacktraces that were truncated by `truncate` (and thus by the `maxDepth` of the
+     * `SampleProfiler`). Since it is always the last (outermost) element, truncated stacktraces can easily be told
+     * apart from complete stacktraces, and they will end up in their own subtree of a `FrequencyThreadStorage`.
+     */
+    public static final StackTraceElement TRUNCATED = new StackTraceElement(
+            "<truncated>", "<truncated>", null, -1
+    );
+
+    /**
+     * Returns `stackTrace` if it has at most `maxDepth` elements. Otherwise, returns an array containing the first
+     * (innermost) `maxDepth` elements of `stackTrace`, followed by `TRUNCATED`.
+     */
+    public static StackTraceElement[] truncate(StackTraceElement[] stackTrace, int maxDepth) {
+        if (stackTrace.length <= maxDepth) return stackTrace;
+
+        StackTraceElement[] truncated = Arrays.copyOf(stackTrace, maxDepth + 1);
+        truncated[maxDepth] = TRUNCATED;
+        return truncated;
+    }
+
+    public static boolean isTruncated(StackTraceElement[] stackTrace) {
+        return stackTrace.length > 0 && TRUNCATED.equals(stackTrace[stackTrace.length - 1]);
+    }
+
     public static StackTraceElement[] longestCommonStackTrace(Iterator<StackTraceElement[]> stackTraces) {
         if (!stackTraces.hasNext()) return new StackTraceElement[0];
 
@@ -0,0 +1,20 @@
+package com.github.knokko.profiler;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The Java 21 version of the virtual thread support, which is placed in `META-INF/versions/21` of the multi-release
+ * JAR. It must have the same methods as the Java 8 version in `src/main/java`.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {}
+
+    static boolean isSupported() {
+        return true;
+    }
+
+    static ThreadFactory newFactory(String namePrefix) {
+        return Thread.ofVirtual().name(namePrefix, 0).factory();
+    }
+}
@@ -0,0 +1,123 @@
+package com.github.knokko.profiler;
+
+import com.github.knokko.profiler.storage.SampleStorage;
+import com.github.knokko.profiler.storage.TimelineRetention;
+import com.github.knokko.profiler.storage.TimelineThreadStorage;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestFlightRecorder {
+
+    @Test
+    public void testCaptureWindow() throws InterruptedException {
+        SampleStorage<TimelineThreadStorage> storage = SampleStorage.timeline(TimelineRetention.maxAge(10_000_000_000L));
+        SampleProfiler profiler = new SampleProfiler(storage);
+        FlightRecorder recorder = new FlightRecorder(profiler, storage, 10);
+        profiler.start();
+        recorder.start();
+
+        sleep(100);
+        long startTime = System.nanoTime();
+        sleep(200);
+
+        CountDownLatch captured = new CountDownLatch(1);
+        AtomicReference<FlightRecorder.Window> window = new AtomicReference<>();
+        assertTrue(recorder.captureWindow(startTime, capturedWindow -> {
+            window.set(capturedWindow);
+            captured.countDown();
+        }));
+        long endTime = System.nanoTime();
+        assertTrue(captured.await(5, TimeUnit.SECONDS));
+
+        recorder.stop();
+        profiler.stop();
+
+        FlightRecorder.Window result = window.get();
+        assertEquals(Thread.currentThread().getId(), result.threadID);
+        assertEquals(startTime, result.startTime);
+        assertTrue(result.endTime <= endTime);
+        assertTrue(result.samples.size() >= 5);
+        assertFalse(result.intervals.isEmpty());
+        for (TimelineThreadStorage.Sample sample : result.samples) {
+            assertTrue(sample.timestamp >= result.startTime);
+            assertTrue(sample.timestamp <= result.endTime);
+        }
+        assertEquals(0, recorder.getNumDroppedRequests());
+    }
+
+    @Test
+    public void testUnknownThreadAndDroppedRequests() throws InterruptedException {
+        SampleStorage<TimelineThreadStorage> storage = SampleStorage.timeline();
+        SampleProfiler profiler = new SampleProfiler(storage);
+        FlightRecorder recorder = new FlightRecorder(profiler, storage, 1);
+        recorder.maxWaitTime = 0;
+
+        // The recorder hasn't started yet, so the second request doesn't fit in the queue
+        AtomicReference<FlightRecorder.Window> window = new AtomicReference<>();
+        assertTrue(recorder.captureWindow(-1, 0, 100, window::set));
+        assertFalse(recorder.captureWindow(-1, 0, 100, window::set));
+        assertEquals(1, recorder.getNumDroppedRequests());
+
+        // Stopping the recorder should handle the pending request first
+        recorder.start();
+        recorder.stop();
+
+        assertEquals(-1, window.get().threadID);
+        assertTrue(window.get().samples.isEmpty());
+        assertTrue(window.get().intervals.isEmpty());
+    }
+
+    @Test
+    public void testWindowIsConsistent() throws InterruptedException {
+        SampleStorage<TimelineThreadStorage> storage = SampleStorage.timeline(TimelineRetention.maxSamples(3000));
+        FlightRecorder recorder = new FlightRecorder(new SampleProfiler(storage), storage, 1);
+        recorder.maxWaitTime = 0;
+        recorder.start();
+
+        // Keep inserting (and evicting) samples while the windows are captured
+        StackTraceElement[][] stackTraces = {
+                { new StackTraceElement("test.Worker", "even", "Worker", 1) },
+                { new StackTraceElement("test.Worker", "odd", "Worker", 2) }
+        };
+        long threadID = 1234;
+        storage.insert(threadID, stackTraces[0], 0);
+        AtomicBoolean isDone = new AtomicBoolean();
+        Thread inserter = new Thread(() -> {
+            for (long timestamp = 1; !isDone.get(); timestamp++) {
+                storage.insert(threadID, stackTraces[(int) (timestamp % 2)], timestamp);
+            }
+        });
+        inserter.start();
+
+        for (int counter = 0; counter < 100; counter++) {
+            CountDownLatch captured = new CountDownLatch(1);
+            AtomicReference<FlightRecorder.Window> window = new AtomicReference<>();
+            assertTrue(recorder.captureWindow(threadID, 0, Long.MAX_VALUE, capturedWindow -> {
+                window.set(capturedWindow);
+                captured.countDown();
+            }));
+            assertTrue(captured.await(5, TimeUnit.SECONDS));
+
+            // Each sample has a different stacktrace than its predecessor, so each sample except the last one starts
+            // a new interval
+            FlightRecorder.Window result = window.get();
+            assertFalse(result.samples.isEmpty());
+            assertEquals(result.samples.size() - 1, result.intervals.size());
+            for (int index = 0; index < result.intervals.size(); index++) {
+                assertEquals(result.samples.get(index).timestamp, result.intervals.get(index).startTime);
+                assertEquals(result.samples.get(index + 1).timestamp, result.intervals.get(index).endTime);
+            }
+        }
+
+        isDone.set(true);
+        inserter.join();
+        recorder.stop();
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.knokko.profiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestIngestionPipeline {
+
+    private static SampleBatch batch(long timestamp) {
+        return new SampleBatch(null, timestamp, 1, Integer.MAX_VALUE, 0);
+    }
+
+    private static List<Long> run(OverflowPolicy policy) {
+        List<Long> ingested = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger numFinished = new AtomicInteger();
+        IngestionPipeline pipeline = new IngestionPipeline(2, 4, policy, (batch, worker, numWorkers) -> {
+            if (worker == 0) ingested.add(batch.timestamp);
+        }, batch -> numFinished.incrementAndGet());
+
+        // The workers haven't started yet, so only 4 batches fit in each queue
+        for (long timestamp = 0; timestamp < 6; timestamp++) pipeline.submit(batch(timestamp));
+        assertEquals(2, pipeline.getNumDroppedBatches());
+
+        pipeline.start("TestIngestionPipeline");
+        pipeline.stop();
+
+        // The dropped batches should be finished as well
+        assertEquals(6, numFinished.get());
+        return new ArrayList<>(ingested);
+    }
+
+    @Test
+    public void testDropNewest() {
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L), run(OverflowPolicy.DROP_NEWEST));
+    }
+
+    @Test
+    public void testDropOldest() {
+        assertEquals(Arrays.asList(2L, 3L, 4L, 5L), run(OverflowPolicy.DROP_OLDEST));
+    }
+
+    @Test
+    public void testBlockWithManyBatches() {
+        int numWorkers = 3;
+        List<List<Long>> ingested = new ArrayList<>();
+        for (int worker = 0; worker < numWorkers; worker++) ingested.add(new ArrayList<>());
+        List<Long> finished = Collections.synchronizedList(new ArrayList<>());
+        IngestionPipeline pipeline = new IngestionPipeline(
+                numWorkers, 8, OverflowPolicy.BLOCK,
+                (batch, worker, workerCount) -> ingested.get(worker).add(batch.timestamp),
+                batch -> {
+                    assertEquals(0, batch.numPendingParts.get());
+                    finished.add(batch.timestamp);
+                }
+        );
+        pipeline.start("TestIngestionPipeline");
+        for (long timestamp = 0; timestamp < 10_000; timestamp++) pipeline.submit(batch(timestamp));
+        pipeline.stop();
+
+        assertEquals(0, pipeline.getNumDroppedBatches());
+        assertEquals(10_000, finished.size());
+
+        // Each worker should see every batch, in the order in which they were submitted
+        for (List<Long> workerBatches : ingested) {
+            assertEquals(10_000, workerBatches.size());
+            for (int index = 0; index < workerBatches.size(); index++) {
+                assertEquals(index, (long) workerBatches.get(index));
+            }
+        }
+    }
+
+    @Test
+    public void testGetWorker() {
+        assertEquals(0, IngestionPipeline.getWorker(12345, 1));
+
+        int numWorkers = 3;
+        int[] counters = new int[numWorkers];
+        for (long threadID = 1; threadID <= 3000; threadID++) {
+            int worker = IngestionPipeline.getWorker(threadID, numWorkers);
+            assertEquals(worker, IngestionPipeline.getWorker(threadID, numWorkers));
+            counters[worker] += 1;
+        }
+
+        // The threads should be spread roughly evenly over the workers
+        for (int counter : counters) assertTrue(counter > 800, "counter is " + counter);
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.knokko.profiler;
+
+import com.github.knokko.profiler.storage.SampleSink;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestSampleContext {
+
+    @Test
+    public void testTags() {
+        int checkout = SampleContext.tag("checkout");
+        int search = SampleContext.tag("search");
+        assertNotEquals(SampleSink.NO_TAG, checkout);
+        assertNotEquals(checkout, search);
+        assertEquals(checkout, SampleContext.tag("checkout"));
+        assertEquals("checkout", SampleContext.getName(checkout));
+        assertEquals("search", SampleContext.getName(search));
+        assertNull(SampleContext.getName(SampleSink.NO_TAG));
+    }
+
+    @Test
+    public void testSetAndGet() throws InterruptedException {
+        int tag = SampleContext.tag("TestSampleContext.testSetAndGet");
+        long threadID = Thread.currentThread().getId();
+
+        assertEquals(SampleSink.NO_TAG, SampleContext.set(tag));
+        assertEquals(tag, SampleContext.get(threadID));
+        assertTrue(SampleContext.hasTags());
+
+        // Other threads must not be affected
+        int[] otherTag = { -1 };
+        Thread other = new Thread(() -> otherTag[0] = SampleContext.get(Thread.currentThread().getId()));
+        other.start();
+        other.join();
+        assertEquals(SampleSink.NO_TAG, otherTag[0]);
+
+        assertEquals(tag, SampleContext.set(SampleSink.NO_TAG));
+        assertEquals(SampleSink.NO_TAG, SampleContext.get(threadID));
+
+        // Thread IDs that are far beyond the current pages
+        assertEquals(SampleSink.NO_TAG, SampleContext.get(threadID + 1_000_000));
+    }
+
+    @Test
+    public void testTerminatedThreadsAreRemoved() throws InterruptedException {
+        int tag = SampleContext.tag("TestSampleContext.testTerminatedThreadsAreRemoved");
+        Thread[] threads = new Thread[1000];
+        for (int index = 0; index < threads.length; index++) {
+            threads[index] = new Thread(() -> SampleContext.set(tag));
+            threads[index].start();
+            threads[index].join();
+        }
+
+        // The registry should have been cleaned up while the threads were registering
+        assertTrue(SampleContext.getNumSlots() < 500, "There are " + SampleContext.getNumSlots() + " slots");
+
+        SampleContext.removeTerminatedThreads();
+        for (Thread thread : threads) assertEquals(SampleSink.NO_TAG, SampleContext.get(thread.getId()));
+    }
+
+    @Test
+    public void testMaxNumTags() {
+        for (int index = 0; index < 1000; index++) {
+            assertEquals(
+                    "TestSampleContext.testMaxNumTags" + index,
+                    SampleContext.getName(SampleContext.tag("TestSampleContext.testMaxNumTags" + index))
+            );
+        }
+        assertTrue(SampleContext.MAX_NUM_TAGS > 1000);
+    }
+}
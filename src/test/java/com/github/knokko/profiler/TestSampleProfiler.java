@@ -1,9 +1,24 @@
 package com.github.knokko.profiler;
 
+import com.github.knokko.profiler.storage.CompositeStorage;
+import com.github.knokko.profiler.storage.ContentionStorage;
+import com.github.knokko.profiler.storage.DeadThreadPolicy;
 import com.github.knokko.profiler.storage.FrequencyThreadStorage;
+import com.github.knokko.profiler.storage.SampleSink;
 import com.github.knokko.profiler.storage.SampleStorage;
+import com.github.knokko.profiler.storage.TaggedStorage;
+import com.github.knokko.profiler.storage.TimelineThreadStorage;
+import com.github.knokko.profiler.util.StackTraceHelper;
 import org.junit.jupiter.api.Test;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import static java.lang.Thread.sleep;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -32,4 +47,464 @@ public class TestSampleProfiler {
         assertTrue(numSamples >= 5);
         assertTrue(numSamples <= 125);
     }
+
+    @Test
+    public void testTargetedSampling() throws InterruptedException {
+        SampleStorage<FrequencyThreadStorage> storage = SampleStorage.frequency();
+        SampleProfiler profiler = new SampleProfiler(storage);
+        profiler.sleepTime = 1;
+        profiler.targetedSampling = true;
+        profiler.threadFilter = thread -> thread.getName().startsWith("TargetedSampling");
+
+        Thread targetThread = new Thread(() -> {
+            try {
+                sleep(500);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        targetThread.setName("TargetedSampling");
+
+        profiler.start();
+        sleep(100);
+
+        // This thread is started after the profiler, so the profiler needs to refresh its targeted threads
+        targetThread.start();
+        sleep(300);
+        profiler.stop();
+        targetThread.join();
+
+        assertNull(storage.getThreadStorage(Thread.currentThread().getId()));
+        long numSamples = storage.getThreadStorage(targetThread.getId()).rootNode.counter.get();
+        assertTrue(numSamples >= 5);
+        assertTrue(numSamples <= 300);
+    }
+
+    @Test
+    public void testMaxDepth() throws InterruptedException {
+        testMaxDepth(false);
+        testMaxDepth(true);
+    }
+
+    private void testMaxDepth(boolean targetedSampling) throws InterruptedException {
+        SampleStorage<FrequencyThreadStorage> storage = SampleStorage.frequency();
+        SampleProfiler profiler = new SampleProfiler(storage);
+        profiler.targetedSampling = targetedSampling;
+        profiler.maxDepth = 2;
+
+        profiler.start();
+        sleep(200);
+        profiler.stop();
+
+        FrequencyThreadStorage threadStorage = storage.getThreadStorage(Thread.currentThread().getId());
+        assertEquals(1, threadStorage.rootNode.children.size());
+
+        FrequencyThreadStorage.MethodNode truncatedNode = threadStorage.rootNode.children.get(
+                new FrequencyThreadStorage.MethodName(StackTraceHelper.TRUNCATED)
+        );
+        assertEquals(threadStorage.rootNode.counter.get(), truncatedNode.counter.get());
+    }
+
+    @Test
+    public void testClassNameFilterBelowMaxDepth() throws InterruptedException {
+        testClassNameFilterBelowMaxDepth(false);
+        testClassNameFilterBelowMaxDepth(true);
+    }
+
+    private void testClassNameFilterBelowMaxDepth(boolean targetedSampling) throws InterruptedException {
+        SampleStorage<FrequencyThreadStorage> storage = SampleStorage.frequency();
+        SampleProfiler profiler = new SampleProfiler(storage);
+        profiler.targetedSampling = targetedSampling;
+        Thread testThread = Thread.currentThread();
+        profiler.threadFilter = thread -> thread == testThread;
+
+        // The only frame of this class is below the truncated part, but the sample must still be kept.
+        // A maxDepth of 0 is treated as 1.
+        profiler.classNameFilter = className -> className.equals(TestSampleProfiler.class.getName());
+        profiler.maxDepth = 0;
+
+        profiler.start();
+        sleep(200);
+        profiler.stop();
+
+        FrequencyThreadStorage threadStorage = storage.getThreadStorage(testThread.getId());
+        assertNotNull(threadStorage);
+        assertTrue(threadStorage.rootNode.counter.get() >= 5);
+        assertNotNull(threadStorage.rootNode.children.get(
+                new FrequencyThreadStorage.MethodName(StackTraceHelper.TRUNCATED)
+        ));
+    }
+
+    @Test
+    public void testSamplePeriod() throws InterruptedException {
+        SampleStorage<TimelineThreadStorage> storage = SampleStorage.timeline();
+        SampleProfiler profiler = new SampleProfiler(storage);
+        profiler.samplePeriod = 2_000_000;
+        profiler.samplePeriodJitter = 0.5;
+        Thread testThread = Thread.currentThread();
+        profiler.threadFilter = thread -> thread == testThread;
+
+        profiler.start();
+        sleep(500);
+        profiler.stop();
+
+        List<TimelineThreadStorage.Sample> samples = storage.getThreadStorage(testThread.getId()).getBetween(Long.MIN_VALUE, Long.MAX_VALUE);
+
+        // The number of samples plus the number of missed ticks should be close to 500 ms / 2 ms
+        long numTicks = samples.size() + profiler.getNumMissedTicks();
+        assertTrue(numTicks >= 150, "Expected at least 150 ticks, but got " + numTicks);
+        assertTrue(numTicks <= 260, "Expected at most 260 ticks, but got " + numTicks);
+
+        // Late samples are followed by shorter intervals, so the average interval should be close to the period
+        long totalTime = samples.get(samples.size() - 1).timestamp - samples.get(0).timestamp;
+        long averageInterval = totalTime / (numTicks - 1);
+        assertTrue(averageInterval >= 1_800_000, "Average interval " + averageInterval + " is too short");
+        assertTrue(averageInterval <= 2_200_000, "Average interval " + averageInterval + " is too long");
+    }
+
+    @Test
+    public void testAdaptiveSamplePeriod() throws InterruptedException {
+        SampleStorage<FrequencyThreadStorage> storage = SampleStorage.frequency();
+        SampleProfiler profiler = new SampleProfiler(storage);
+        profiler.samplePeriod = 1000;
+        profiler.maxOverhead = 0.01;
+        Thread testThread = Thread.currentThread();
+        profiler.threadFilter = thread -> thread == testThread;
+
+        long startTime = System.nanoTime();
+        profiler.start();
+        sleep(500);
+        profiler.stop();
+        long elapsedTime = System.nanoTime() - startTime;
+
+        // Taking a sample takes much longer than 10 microseconds, so the profiler should increase the period
+        assertTrue(profiler.getCurrentSamplePeriod() > 1000);
+        assertTrue(profiler.getCurrentSamplePeriod() <= profiler.maxSamplePeriod);
+
+        // The weights should add up to roughly the elapsed time, regardless of the period
+        long totalWeight = storage.getThreadStorage(testThread.getId()).rootNode.getWeight();
+        assertTrue(totalWeight > elapsedTime / 2, "Total weight " + totalWeight + " is too small");
+        assertTrue(totalWeight < elapsedTime * 3 / 2, "Total weight " + totalWeight + " is too large");
+    }
+
+    @Test
+    public void testAsyncIngestion() throws InterruptedException {
+        SampleStorage<FrequencyThreadStorage> storage = SampleStorage.frequency();
+        SampleProfiler profiler = new SampleProfiler(storage);
+        profiler.enableAsyncIngestion(2, 16, OverflowPolicy.BLOCK);
+        profiler.sleepTime = 1;
+
+        profiler.start();
+        sleep(300);
+        profiler.stop();
+
+        assertEquals(0, profiler.getNumDroppedBatches());
+        long numSamples = storage.getThreadStorage(Thread.currentThread().getId()).rootNode.counter.get();
+        assertTrue(numSamples >= 5);
+        assertTrue(numSamples <= 300);
+
+        // The workers should update the last sample time
+        assertNotEquals(Long.MIN_VALUE, profiler.getLastSampleTime());
+        assertThrows(IllegalStateException.class, () -> profiler.enableAsyncIngestion(1, 1, OverflowPolicy.BLOCK));
+    }
+
+    @Test
+    public void testAsyncIngestionKeepsThreadOrder() throws InterruptedException {
+        ConcurrentMap<Long, Long> lastTimestamps = new ConcurrentHashMap<>();
+        AtomicBoolean isOutOfOrder = new AtomicBoolean();
+        SampleSink sink = (threadID, stackTrace, timestamp, period) -> {
+            Long lastTimestamp = lastTimestamps.put(threadID, timestamp);
+            if (lastTimestamp != null && lastTimestamp > timestamp) isOutOfOrder.set(true);
+        };
+        SampleProfiler profiler = new SampleProfiler(sink);
+        profiler.enableAsyncIngestion(4, 16, OverflowPolicy.BLOCK);
+        profiler.sleepTime = 0;
+
+        profiler.start();
+        sleep(300);
+        profiler.stop();
+
+        assertFalse(isOutOfOrder.get());
+        assertTrue(lastTimestamps.containsKey(Thread.currentThread().getId()));
+    }
+
+    @Test
+    public void testShardedSampling() throws InterruptedException {
+        SampleStorage<FrequencyThreadStorage> storage = SampleStorage.frequency();
+        SampleProfiler profiler = new SampleProfiler(storage);
+        profiler.setNumSampleThreads(3);
+        profiler.sleepTime = 1;
+        profiler.threadFilter = thread -> thread.getName().startsWith("ShardedSampling");
+
+        Thread[] targetThreads = new Thread[10];
+        for (int index = 0; index < targetThreads.length; index++) {
+            targetThreads[index] = new Thread(() -> {
+                try {
+                    sleep(400);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            targetThreads[index].setName("ShardedSampling" + index);
+        }
+
+        profiler.start();
+        assertThrows(IllegalStateException.class, () -> profiler.setNumSampleThreads(2));
+        sleep(50);
+
+        // The threads are started after the profiler, so the shards need to be recomputed
+        for (Thread thread : targetThreads) thread.start();
+        sleep(300);
+        profiler.stop();
+        for (Thread thread : targetThreads) thread.join();
+
+        // Each target thread should be sampled by exactly 1 of the sampling threads
+        assertNull(storage.getThreadStorage(Thread.currentThread().getId()));
+        for (Thread thread : targetThreads) {
+            long numSamples = storage.getThreadStorage(thread.getId()).rootNode.counter.get();
+            assertTrue(numSamples >= 5, "Only " + numSamples + " samples");
+            assertTrue(numSamples <= 300, numSamples + " samples is too many");
+        }
+    }
+
+    @Test
+    public void testInvalidNumSampleThreads() {
+        SampleProfiler profiler = new SampleProfiler(SampleStorage.frequency());
+        assertThrows(IllegalArgumentException.class, () -> profiler.setNumSampleThreads(0));
+    }
+
+    @Test
+    public void testCompositeStorage() throws InterruptedException {
+        SampleStorage<FrequencyThreadStorage> frequency = SampleStorage.frequency();
+        SampleStorage<TimelineThreadStorage> timeline = SampleStorage.timeline();
+        CompositeStorage composite = new CompositeStorage();
+        composite.add(frequency);
+        composite.add(timeline);
+
+        SampleProfiler profiler = new SampleProfiler(composite);
+        profiler.sleepTime = 1;
+        profiler.start();
+        sleep(200);
+        profiler.stop();
+
+        // Both storages should get exactly the same samples
+        long threadID = Thread.currentThread().getId();
+        long numSamples = frequency.getThreadStorage(threadID).rootNode.counter.get();
+        assertTrue(numSamples >= 5);
+        assertEquals(numSamples, timeline.getThreadStorage(threadID).getBetween(Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void testDeadThreadPolicy() throws InterruptedException {
+        SampleStorage<FrequencyThreadStorage> storage = SampleStorage.frequency();
+        FrequencyThreadStorage deadThreads = new FrequencyThreadStorage();
+        storage.deadThreadPolicy = DeadThreadPolicy.mergeInto(deadThreads);
+
+        SampleProfiler profiler = new SampleProfiler(storage);
+        profiler.sleepTime = 1;
+        profiler.threadRefreshPeriod = 20;
+
+        Thread shortThread = new Thread(() -> {
+            try {
+                sleep(100);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        profiler.start();
+        shortThread.start();
+        shortThread.join();
+        sleep(200);
+        profiler.stop();
+
+        assertNull(storage.getThreadStorage(shortThread.getId()));
+        assertNotNull(storage.getThreadStorage(Thread.currentThread().getId()));
+        assertTrue(deadThreads.rootNode.counter.get() >= 5);
+    }
+
+    @Test
+    public void testDeadThreadPolicyWithShards() throws InterruptedException {
+        Set<Long> workers = ConcurrentHashMap.newKeySet();
+        Set<Long> finishedWorkers = ConcurrentHashMap.newKeySet();
+        AtomicBoolean removedLiveThread = new AtomicBoolean();
+        SampleStorage<FrequencyThreadStorage> storage = SampleStorage.frequency();
+        storage.deadThreadPolicy = (threadID, threadStorage) -> {
+            if (workers.contains(threadID) && !finishedWorkers.contains(threadID)) removedLiveThread.set(true);
+        };
+
+        // The live thread IDs are computed by shard 0, but the other shard may insert the first samples of new threads
+        // before they are applied
+        SampleProfiler profiler = new SampleProfiler(storage);
+        profiler.setNumSampleThreads(2);
+        profiler.enableAsyncIngestion(2, 16, OverflowPolicy.BLOCK);
+        profiler.sleepTime = 0;
+        profiler.threadRefreshPeriod = 0;
+        profiler.threadFilter = thread -> thread.getName().startsWith("DeadThreadPolicyWithShards");
+
+        profiler.start();
+        List<Thread> startedWorkers = new ArrayList<>();
+        long endTime = System.nanoTime() + 300_000_000L;
+        while (System.nanoTime() < endTime) {
+            Thread worker = new Thread(() -> {
+                try {
+                    sleep(20);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    // The JVM no longer considers a thread to be alive once it starts exiting
+                    finishedWorkers.add(Thread.currentThread().getId());
+                }
+            }, "DeadThreadPolicyWithShards");
+            workers.add(worker.getId());
+            startedWorkers.add(worker);
+            worker.start();
+            sleep(1);
+        }
+        for (Thread worker : startedWorkers) worker.join();
+        profiler.stop();
+
+        assertFalse(removedLiveThread.get());
+    }
+
+    @Test
+    public void testCpuTimeAndIdleSamples() throws InterruptedException {
+        SampleStorage<FrequencyThreadStorage> storage = SampleStorage.frequency();
+        SampleProfiler profiler = new SampleProfiler(storage);
+        profiler.sleepTime = 1;
+        profiler.captureCpuTime = true;
+        profiler.skipIdleSamples = true;
+
+        AtomicBoolean shouldStop = new AtomicBoolean(false);
+        Thread busyThread = new Thread(() -> {
+            long counter = 0;
+            while (!shouldStop.get()) counter += 1;
+            assertTrue(counter > 0);
+        });
+        Thread idleThread = new Thread(() -> {
+            try {
+                sleep(400);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        busyThread.start();
+        idleThread.start();
+
+        profiler.start();
+        sleep(300);
+        profiler.stop();
+        shouldStop.set(true);
+        busyThread.join();
+        idleThread.join();
+
+        // The idle thread is always sleeping, so all its samples should have been skipped
+        assertNull(storage.getThreadStorage(idleThread.getId()));
+
+        FrequencyThreadStorage busyStorage = storage.getThreadStorage(busyThread.getId());
+        assertTrue(busyStorage.rootNode.counter.get() >= 5);
+        assertEquals(0, busyStorage.rootNode.getBlockedTime());
+        if (ManagementFactory.getThreadMXBean().isThreadCpuTimeSupported()) {
+            assertTrue(busyStorage.rootNode.getCpuTime() > 0);
+            assertTrue(busyStorage.rootNode.getCpuTime() <= 2 * busyStorage.rootNode.getWeight());
+        }
+    }
+
+    @Test
+    public void testContention() throws InterruptedException {
+        testContention(false);
+        testContention(true);
+    }
+
+    private static void holdLock(Object lock) {
+        synchronized (lock) {
+            try {
+                sleep(400);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static void waitForLock(Object lock) {
+        synchronized (lock) {
+            assertNotNull(lock);
+        }
+    }
+
+    private void testContention(boolean targetedSampling) throws InterruptedException {
+        Object lock = new Object();
+        Thread owner = new Thread(() -> holdLock(lock));
+        owner.setName("ContentionOwner");
+        Thread waiter = new Thread(() -> waitForLock(lock));
+        waiter.setName("ContentionWaiter");
+
+        ContentionStorage contentionStorage = new ContentionStorage();
+        SampleProfiler profiler = new SampleProfiler(SampleStorage.frequency());
+        profiler.sleepTime = 1;
+        profiler.targetedSampling = targetedSampling;
+        profiler.contentionStorage = contentionStorage;
+
+        // The owner is filtered out, but its stacktrace should still be found
+        profiler.threadFilter = thread -> thread.getName().equals("ContentionWaiter");
+
+        owner.start();
+        sleep(50);
+        waiter.start();
+        profiler.start();
+        sleep(250);
+        profiler.stop();
+        owner.join();
+        waiter.join();
+
+        List<ContentionStorage.ContendedLock> locks = contentionStorage.getLocks();
+        assertEquals(1, locks.size());
+        ContentionStorage.ContendedLock contendedLock = locks.get(0);
+        assertTrue(contendedLock.name.startsWith("java.lang.Object@"));
+        assertTrue(contendedLock.counter >= 5);
+        assertTrue(contendedLock.weight > 0);
+
+        ContentionStorage.Contention contention = contendedLock.contentions.get(0);
+        assertEquals("waitForLock", contention.waiterStackTrace[0].getMethodName());
+        boolean ownerHoldsLock = false;
+        for (StackTraceElement element : contention.ownerStackTrace) {
+            if (element.getMethodName().equals("holdLock")) ownerHoldsLock = true;
+        }
+        assertTrue(ownerHoldsLock);
+    }
+
+    @Test
+    public void testContextTags() throws InterruptedException {
+        int firstTag = SampleContext.tag("TestSampleProfiler.first");
+        int secondTag = SampleContext.tag("TestSampleProfiler.second");
+
+        Runnable work = () -> {
+            try {
+                SampleContext.set(firstTag);
+                sleep(150);
+                SampleContext.set(secondTag);
+                sleep(150);
+                SampleContext.set(SampleSink.NO_TAG);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        };
+
+        for (boolean targetedSampling : new boolean[] { false, true }) {
+            TaggedStorage<FrequencyThreadStorage> storage = TaggedStorage.frequency();
+            SampleProfiler profiler = new SampleProfiler(storage);
+            profiler.sleepTime = 1;
+            profiler.targetedSampling = targetedSampling;
+            profiler.threadFilter = thread -> thread.getName().equals("TaggedWorker");
+
+            Thread worker = new Thread(work);
+            worker.setName("TaggedWorker");
+            profiler.start();
+            worker.start();
+            worker.join();
+            profiler.stop();
+
+            assertTrue(storage.getTagStorage(firstTag).rootNode.counter.get() >= 10);
+            assertTrue(storage.getTagStorage(secondTag).rootNode.counter.get() >= 10);
+        }
+    }
 }
@@ -0,0 +1,93 @@
+package com.github.knokko.profiler;
+
+import com.github.knokko.profiler.storage.FrequencyThreadStorage;
+import com.github.knokko.profiler.storage.TaggedStorage;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestVirtualThreadRegistry {
+
+    @Test
+    public void testRegistration() throws InterruptedException {
+        VirtualThreadRegistry registry = new VirtualThreadRegistry();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+
+        Thread thread = registry.wrap(Executors.defaultThreadFactory(), "registration").newThread(() -> {
+            started.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertEquals(0, registry.getNumRunningThreads());
+
+        thread.start();
+        started.await();
+        assertEquals(1, registry.getNumRunningThreads());
+
+        finish.countDown();
+        thread.join();
+        assertEquals(0, registry.getNumRunningThreads());
+    }
+
+    @Test
+    public void testVirtualThreadFactory() {
+        VirtualThreadRegistry registry = new VirtualThreadRegistry();
+        if (VirtualThreadRegistry.isSupported()) {
+            assertNotNull(registry.newVirtualThreadFactory("supported").newThread(() -> {}));
+        } else {
+            assertThrows(UnsupportedOperationException.class, () -> registry.newVirtualThreadFactory("unsupported"));
+        }
+    }
+
+    private static void busyTask(long duration) {
+        long endTime = System.nanoTime() + duration;
+        double dummy = 0.0;
+        while (System.nanoTime() < endTime) dummy += Math.sqrt(dummy + 1.0);
+        assertTrue(dummy > 0.0);
+    }
+
+    @Test
+    public void testSampleRegisteredThreads() throws InterruptedException {
+        VirtualThreadRegistry registry = new VirtualThreadRegistry();
+        ThreadFactory factory = registry.wrap(Executors.defaultThreadFactory(), "TestVirtualThreadRegistry.busy");
+
+        TaggedStorage<FrequencyThreadStorage> virtualStorage = TaggedStorage.frequency();
+        SampleProfiler profiler = new SampleProfiler(TaggedStorage.frequency());
+        profiler.sleepTime = 1;
+        profiler.virtualThreadRegistry = registry;
+        profiler.virtualThreadStorage = virtualStorage;
+
+        // Only 1 of the 4 threads is sampled each time, so the weight of its samples should be multiplied by 4
+        profiler.maxVirtualThreadsPerSample = 1;
+
+        Thread[] threads = new Thread[4];
+        for (int index = 0; index < threads.length; index++) {
+            threads[index] = factory.newThread(() -> busyTask(300_000_000L));
+        }
+
+        profiler.start();
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        sleep(10);
+        profiler.stop();
+
+        int tag = SampleContext.tag("TestVirtualThreadRegistry.busy");
+        assertEquals(1, virtualStorage.getTags().size());
+        FrequencyThreadStorage busyStorage = virtualStorage.getTagStorage(tag);
+        long counter = busyStorage.rootNode.counter.get();
+        long weight = busyStorage.rootNode.getWeight();
+        assertTrue(counter >= 10, "counter is " + counter);
+
+        // The total weight should roughly be the total time that the 4 threads were busy
+        assertTrue(weight > 600_000_000L && weight < 3_000_000_000L, "weight is " + weight);
+    }
+}
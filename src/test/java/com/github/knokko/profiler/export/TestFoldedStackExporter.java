@@ -0,0 +1,106 @@
+package com.github.knokko.profiler.export;
+
+import com.github.knokko.profiler.storage.FrequencyThreadStorage;
+import com.github.knokko.profiler.storage.SampleStorage;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TestFoldedStackExporter {
+
+    private static final StackTraceElement MAIN = new StackTraceElement("Main", "main", "Main", 5);
+    private static final StackTraceElement WORK1 = new StackTraceElement("Worker", "work", "Worker", 10);
+    private static final StackTraceElement WORK2 = new StackTraceElement("Worker", "work", "Worker", 11);
+    private static final StackTraceElement SLEEP = new StackTraceElement("Thread", "sleep", "Thread", 1);
+
+    private static void insert(SampleStorage<FrequencyThreadStorage> storage, long threadID, int amount, StackTraceElement... stackTrace) {
+        for (int counter = 0; counter < amount; counter++) storage.insert(threadID, stackTrace, counter);
+    }
+
+    private static SampleStorage<FrequencyThreadStorage> createStorage() {
+        SampleStorage<FrequencyThreadStorage> storage = SampleStorage.frequency();
+        insert(storage, 1, 3, SLEEP, WORK1, MAIN);
+        insert(storage, 1, 2, SLEEP, WORK2, MAIN);
+        insert(storage, 1, 4, WORK2, MAIN);
+        insert(storage, 2, 1, MAIN);
+        insert(storage, 2, 6, SLEEP, WORK1, MAIN);
+        return storage;
+    }
+
+    /**
+     * Parses the exported lines, and adds the counts of duplicate stacktraces
+     */
+    private static Map<String, Long> parse(String output) {
+        Map<String, Long> counts = new HashMap<>();
+        for (String line : output.split("\n")) {
+            int separator = line.lastIndexOf(' ');
+            counts.merge(line.substring(0, separator), Long.parseLong(line.substring(separator + 1)), Long::sum);
+        }
+        return counts;
+    }
+
+    @Test
+    public void testMergeLinesAndThreads() throws IOException {
+        StringWriter output = new StringWriter();
+        new FoldedStackExporter(false, false).export(createStorage(), output);
+
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("Main.main;Worker.work;Thread.sleep", 11L);
+        expected.put("Main.main;Worker.work", 4L);
+        expected.put("Main.main", 1L);
+        assertEquals(expected, parse(output.toString()));
+    }
+
+    @Test
+    public void testSplitLinesAndThreads() throws IOException {
+        StringWriter output = new StringWriter();
+        new FoldedStackExporter(true, true).export(createStorage(), output);
+
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("thread-1;Main.main:5;Worker.work:10;Thread.sleep:1", 3L);
+        expected.put("thread-1;Main.main:5;Worker.work:11;Thread.sleep:1", 2L);
+        expected.put("thread-1;Main.main:5;Worker.work:11", 4L);
+        expected.put("thread-2;Main.main:5", 1L);
+        expected.put("thread-2;Main.main:5;Worker.work:10;Thread.sleep:1", 6L);
+        assertEquals(expected, parse(output.toString()));
+    }
+
+    @Test
+    public void testThreadStorageToChannel() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new FoldedStackExporter(false, true).export(
+                createStorage().getThreadStorage(2), Channels.newChannel(output)
+        );
+
+        // The thread prefix is only used when exporting a whole SampleStorage
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("Main.main", 1L);
+        expected.put("Main.main;Worker.work;Thread.sleep", 6L);
+        assertEquals(expected, parse(new String(output.toByteArray(), StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testGroups() throws IOException {
+        SampleStorage<FrequencyThreadStorage> storage = new SampleStorage<>(FrequencyThreadStorage::new, thread -> "all");
+        insert(storage, Thread.currentThread().getId(), 3, WORK1, MAIN);
+
+        // Threads that can't be found get their own group
+        insert(storage, 123456789, 2, MAIN);
+
+        StringWriter output = new StringWriter();
+        new FoldedStackExporter(false, true).export(storage, output);
+
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("all;Main.main;Worker.work", 3L);
+        expected.put("thread-123456789;Main.main", 2L);
+        assertEquals(expected, parse(output.toString()));
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.knokko.profiler.export;
+
+import com.github.knokko.profiler.storage.FrequencyThreadStorage;
+import com.github.knokko.profiler.storage.SampleStorage;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestPprofExporter {
+
+    /**
+     * Decodes the fields of a protobuf message: varints become `Long`s and length-delimited fields become `byte[]`s
+     */
+    private static Map<Integer, List<Object>> decode(byte[] bytes) {
+        Map<Integer, List<Object>> fields = new HashMap<>();
+        int[] position = { 0 };
+        while (position[0] < bytes.length) {
+            long tag = readVarint(bytes, position);
+            Object value;
+            if ((tag & 7) == 0) value = readVarint(bytes, position);
+            else if ((tag & 7) == 2) {
+                int length = (int) readVarint(bytes, position);
+                value = Arrays.copyOfRange(bytes, position[0], position[0] + length);
+                position[0] += length;
+            } else throw new IllegalArgumentException("Unexpected wire type in tag " + tag);
+            fields.computeIfAbsent((int) (tag >>> 3), field -> new ArrayList<>()).add(value);
+        }
+        return fields;
+    }
+
+    private static long readVarint(byte[] bytes, int[] position) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte next = bytes[position[0]++];
+            value |= (long) (next & 0x7F) << shift;
+            if (next >= 0) return value;
+        }
+    }
+
+    private static List<Long> decodePacked(Object field) {
+        byte[] bytes = (byte[]) field;
+        List<Long> values = new ArrayList<>();
+        int[] position = { 0 };
+        while (position[0] < bytes.length) values.add(readVarint(bytes, position));
+        return values;
+    }
+
+    private static long getLong(Map<Integer, List<Object>> message, int field) {
+        List<Object> values = message.get(field);
+        return values == null ? 0 : (Long) values.get(0);
+    }
+
+    @Test
+    public void testExport() throws IOException {
+        StackTraceElement main = new StackTraceElement("Main", "main", "Main", 5);
+        StackTraceElement work1 = new StackTraceElement("Worker", "work", "Worker", 10);
+        StackTraceElement work2 = new StackTraceElement("Worker", "work", "Worker", 11);
+        StackTraceElement sleep = new StackTraceElement("Thread", "sleep", "Thread", -2);
+
+        SampleStorage<FrequencyThreadStorage> storage = SampleStorage.frequency();
+        for (int counter = 0; counter < 3; counter++) storage.insert(1, new StackTraceElement[] { sleep, work1, main }, counter);
+        for (int counter = 0; counter < 2; counter++) storage.insert(1, new StackTraceElement[] { work2, main }, counter);
+        for (int counter = 0; counter < 400; counter++) storage.insert(2, new StackTraceElement[] { sleep, work1, main }, counter);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new PprofExporter().export(storage, output);
+
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(output.toByteArray()))) {
+            byte[] buffer = new byte[1024];
+            int numBytes;
+            while ((numBytes = input.read(buffer)) != -1) decompressed.write(buffer, 0, numBytes);
+        }
+        Map<Integer, List<Object>> profile = decode(decompressed.toByteArray());
+
+        List<String> strings = new ArrayList<>();
+        for (Object string : profile.get(6)) strings.add(new String((byte[]) string, StandardCharsets.UTF_8));
+        assertEquals("", strings.get(0));
+        assertEquals(new HashSet<>(strings).size(), strings.size());
+
+        Map<Integer, List<Object>> sampleType = decode((byte[]) profile.get(1).get(0));
+        assertEquals("samples", strings.get((int) getLong(sampleType, 1)));
+        assertEquals("count", strings.get((int) getLong(sampleType, 2)));
+
+        Map<Long, String> functionNames = new HashMap<>();
+        for (Object function : profile.get(5)) {
+            Map<Integer, List<Object>> fields = decode((byte[]) function);
+            functionNames.put(getLong(fields, 1), strings.get((int) getLong(fields, 2)));
+        }
+        assertEquals(3, functionNames.size());
+
+        Map<Long, String> locationNames = new HashMap<>();
+        for (Object location : profile.get(4)) {
+            Map<Integer, List<Object>> fields = decode((byte[]) location);
+            Map<Integer, List<Object>> line = decode((byte[]) fields.get(4).get(0));
+            locationNames.put(
+                    getLong(fields, 1),
+                    functionNames.get(getLong(line, 1)) + ":" + (int) getLong(line, 2)
+            );
+        }
+        assertEquals(4, locationNames.size());
+
+        Map<String, Long> samples = new HashMap<>();
+        for (Object sample : profile.get(2)) {
+            Map<Integer, List<Object>> fields = decode((byte[]) sample);
+            StringBuilder key = new StringBuilder();
+            Map<Integer, List<Object>> label = decode((byte[]) fields.get(3).get(0));
+            assertEquals("thread", strings.get((int) getLong(label, 1)));
+            key.append(strings.get((int) getLong(label, 2)));
+            for (long locationID : decodePacked(fields.get(1).get(0))) key.append(' ').append(locationNames.get(locationID));
+            List<Long> values = decodePacked(fields.get(2).get(0));
+            assertEquals(1, values.size());
+            assertNull(samples.put(key.toString(), values.get(0)));
+        }
+
+        Map<String, Long> expectedSamples = new HashMap<>();
+        expectedSamples.put("1 Thread.sleep:-2 Worker.work:10 Main.main:5", 3L);
+        expectedSamples.put("1 Worker.work:11 Main.main:5", 2L);
+        expectedSamples.put("2 Thread.sleep:-2 Worker.work:10 Main.main:5", 400L);
+        assertEquals(expectedSamples, samples);
+    }
+}
@@ -0,0 +1,169 @@
+package com.github.knokko.profiler.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+
+import static com.github.knokko.profiler.storage.CompactFrequencyThreadStorage.NONE;
+import static com.github.knokko.profiler.storage.CompactFrequencyThreadStorage.ROOT;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestCompactFrequencyThreadStorage {
+
+    private static final StackTraceElement MASTER5 = new StackTraceElement("work.stuff.Master", "startWork", "Master", 5);
+    private static final StackTraceElement MASTER6 = new StackTraceElement("work.stuff.Master", "startWork", "Master", 6);
+    private static final StackTraceElement SHIP = new StackTraceElement("work.stuff.Worker", "shipResources", "Worker", 50);
+    private static final StackTraceElement WORK = new StackTraceElement("work.stuff.Worker", "doActualWork", "Worker", 80);
+    private static final StackTraceElement DETAIL = new StackTraceElement("work.stuff.Worker", "detailedWork", "Worker", 300);
+    private static final StackTraceElement FINISH = new StackTraceElement("work.stuff.Worker", "finishUp", "Worker", 20);
+
+    private static void insertAll(ThreadStorage storage) {
+        for (int counter = 0; counter < 5; counter++) storage.insert(new StackTraceElement[] { WORK, MASTER5 }, counter);
+        for (int counter = 0; counter < 20; counter++) storage.insert(new StackTraceElement[] { FINISH, MASTER6 }, counter);
+        storage.insert(new StackTraceElement[] { MASTER6 }, 12);
+        storage.insert(new StackTraceElement[] { SHIP, MASTER5 }, 111);
+        storage.insert(new StackTraceElement[] { DETAIL, WORK, MASTER5 }, 1121);
+    }
+
+    @Test
+    public void testTraversal() {
+        CompactFrequencyThreadStorage storage = new CompactFrequencyThreadStorage();
+        insertAll(storage);
+
+        CompactFrequencyThreadStorage.TreeView tree = storage.view();
+        assertEquals(7, tree.getNumNodes());
+        assertEquals(28, tree.getCounter(ROOT));
+        assertEquals(NONE, tree.getFrame(ROOT));
+        assertEquals(NONE, tree.getParent(ROOT));
+        assertEquals(NONE, tree.getNextSibling(ROOT));
+
+        int node5 = tree.getFirstChild(ROOT);
+        assertEquals(FrameDictionary.GLOBAL.getID(MASTER5), tree.getFrame(node5));
+        assertEquals(7, tree.getCounter(node5));
+        assertEquals(ROOT, tree.getParent(node5));
+
+        int node6 = tree.getNextSibling(node5);
+        assertEquals(FrameDictionary.GLOBAL.getID(MASTER6), tree.getFrame(node6));
+        assertEquals(21, tree.getCounter(node6));
+        assertEquals(NONE, tree.getNextSibling(node6));
+
+        int work = tree.getFirstChild(node5);
+        assertEquals(6, tree.getCounter(work));
+        int ship = tree.getNextSibling(work);
+        assertEquals(FrameDictionary.GLOBAL.getID(SHIP), tree.getFrame(ship));
+        assertEquals(1, tree.getCounter(ship));
+        assertEquals(NONE, tree.getFirstChild(ship));
+
+        int detail = tree.getFirstChild(work);
+        assertEquals(1, tree.getCounter(detail));
+        assertEquals(work, tree.getParent(detail));
+
+        // New nodes must not become visible to old views
+        storage.insert(new StackTraceElement[] { FINISH, MASTER5 }, 5);
+        assertEquals(NONE, tree.getNextSibling(ship));
+        assertEquals(8, storage.view().getNumNodes());
+        assertNotEquals(NONE, storage.view().getNextSibling(ship));
+    }
+
+    @Test
+    public void testPrintIsSameAsFrequencyThreadStorage() {
+        FrequencyThreadStorage expected = new FrequencyThreadStorage();
+        CompactFrequencyThreadStorage actual = new CompactFrequencyThreadStorage();
+        insertAll(expected);
+        insertAll(actual);
+
+        for (int maxDepth = 1; maxDepth < 5; maxDepth++) {
+            for (double threshold : new double[] { 0.0, 5.0, 50.0 }) {
+                ByteArrayOutputStream expectedOutput = new ByteArrayOutputStream();
+                expected.print(new PrintWriter(expectedOutput), maxDepth, threshold);
+                ByteArrayOutputStream actualOutput = new ByteArrayOutputStream();
+                actual.print(new PrintWriter(actualOutput), maxDepth, threshold);
+                assertEquals(expectedOutput.toString(), actualOutput.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testManyNodes() {
+        CompactFrequencyThreadStorage storage = new CompactFrequencyThreadStorage();
+        int[] stackTrace = new int[3];
+        for (int counter = 0; counter < 3; counter++) {
+            for (int frame = 0; frame < 1000; frame++) {
+                stackTrace[0] = frame;
+                stackTrace[1] = frame % 7;
+                stackTrace[2] = frame % 3;
+                storage.insert(stackTrace, counter);
+            }
+        }
+
+        CompactFrequencyThreadStorage.TreeView tree = storage.view();
+        assertEquals(3000, tree.getCounter(ROOT));
+        assertEquals(1 + 3 + 21 + 1000, tree.getNumNodes());
+
+        int numLeaves = 0;
+        for (int node = 1; node < tree.getNumNodes(); node++) {
+            if (tree.getFirstChild(node) == NONE) {
+                assertEquals(3, tree.getCounter(node));
+                numLeaves += 1;
+            }
+        }
+        assertEquals(1000, numLeaves);
+    }
+
+    @Test
+    public void testWeights() {
+        CompactFrequencyThreadStorage storage = new CompactFrequencyThreadStorage();
+
+        StackTraceElement main = new StackTraceElement("test.dummy.Dummy", "main", "Dummy", 5);
+        StackTraceElement work = new StackTraceElement("test.dummy.Dummy", "work", "Dummy", 12);
+        int[] workStack = FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { work, main });
+        int[] mainStack = FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { main });
+
+        storage.insert(workStack, 0, 1000);
+        storage.insert(workStack, 1, 4000);
+        storage.insert(mainStack, 2, 2000);
+
+        // Samples without a period don't contribute to the weight
+        storage.insert(mainStack, 3);
+
+        CompactFrequencyThreadStorage.TreeView tree = storage.view();
+        assertEquals(4, tree.getCounter(ROOT));
+        assertEquals(7000, tree.getWeight(ROOT));
+
+        int mainNode = tree.getFirstChild(ROOT);
+        assertEquals(7000, tree.getWeight(mainNode));
+        int workNode = tree.getFirstChild(mainNode);
+        assertEquals(2, tree.getCounter(workNode));
+        assertEquals(5000, tree.getWeight(workNode));
+    }
+
+    @Test
+    public void testMerge() {
+        CompactFrequencyThreadStorage storage1 = new CompactFrequencyThreadStorage();
+        CompactFrequencyThreadStorage storage2 = new CompactFrequencyThreadStorage();
+        insertAll(storage1);
+        insertAll(storage2);
+        storage2.insert(FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { SHIP, MASTER6 }), 5, 100);
+
+        CompactFrequencyThreadStorage aggregate = new CompactFrequencyThreadStorage();
+        aggregate.merge(storage1);
+        aggregate.merge(storage2);
+
+        CompactFrequencyThreadStorage.TreeView tree = aggregate.view();
+        assertEquals(8, tree.getNumNodes());
+        assertEquals(57, tree.getCounter(ROOT));
+        assertEquals(100, tree.getWeight(ROOT));
+
+        int node5 = tree.getFirstChild(ROOT);
+        assertEquals(FrameDictionary.GLOBAL.getID(MASTER5), tree.getFrame(node5));
+        assertEquals(14, tree.getCounter(node5));
+        int node6 = tree.getNextSibling(node5);
+        assertEquals(43, tree.getCounter(node6));
+
+        int ship = tree.getNextSibling(tree.getFirstChild(node6));
+        assertEquals(FrameDictionary.GLOBAL.getID(SHIP), tree.getFrame(ship));
+        assertEquals(1, tree.getCounter(ship));
+        assertEquals(100, tree.getWeight(ship));
+    }
+}
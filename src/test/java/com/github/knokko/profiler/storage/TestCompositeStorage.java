@@ -0,0 +1,49 @@
+package com.github.knokko.profiler.storage;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestCompositeStorage {
+
+    @Test
+    public void testFanOut() {
+        SampleStorage<FrequencyThreadStorage> frequency = SampleStorage.frequency();
+        SampleStorage<TimelineThreadStorage> timeline = SampleStorage.timeline();
+        FrequencyThreadStorage thread5 = new FrequencyThreadStorage();
+
+        CompositeStorage composite = new CompositeStorage();
+        composite.add(frequency);
+        composite.add(timeline, threadID -> threadID != 8, className -> className.startsWith("com.example"));
+        composite.add(5, thread5);
+
+        int[] exampleStack = FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] {
+                new StackTraceElement("com.example.Inner", "run", "Inner.java", 12),
+                new StackTraceElement("java.lang.Thread", "run", "Thread.java", 5)
+        });
+        int[] otherStack = FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] {
+                new StackTraceElement("java.lang.Thread", "sleep", "Thread.java", 20)
+        });
+
+        composite.insert(5, exampleStack, 100, 10);
+        composite.insert(5, otherStack, 110, 10);
+        composite.insert(8, exampleStack, 120, 10);
+
+        assertEquals(2, frequency.getThreadStorage(5).rootNode.counter.get());
+        assertEquals(20, frequency.getThreadStorage(5).rootNode.getWeight());
+        assertEquals(1, frequency.getThreadStorage(8).rootNode.counter.get());
+
+        // The timeline sink should only get the samples with com.example, and not the samples of thread 8
+        assertEquals(1, timeline.getThreadStorage(5).getBetween(0, 1000).size());
+        assertNull(timeline.getThreadStorage(8));
+
+        // The thread storage should only get the samples of thread 5
+        assertEquals(2, thread5.rootNode.counter.get());
+
+        composite.remove(frequency);
+        composite.insert(5, exampleStack, 130, 10);
+        assertEquals(2, frequency.getThreadStorage(5).rootNode.counter.get());
+        assertEquals(2, timeline.getThreadStorage(5).getBetween(0, 1000).size());
+        assertEquals(3, thread5.rootNode.counter.get());
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.knokko.profiler.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestContentionStorage {
+
+    private static final StackTraceElement WAIT1 = new StackTraceElement("test.Cache", "get", "Cache", 10);
+    private static final StackTraceElement WAIT2 = new StackTraceElement("test.Cache", "put", "Cache", 20);
+    private static final StackTraceElement OWNER = new StackTraceElement("test.Cache", "rebuild", "Cache", 30);
+
+    private static int[] ids(StackTraceElement... stackTrace) {
+        return FrameDictionary.GLOBAL.getIDs(stackTrace);
+    }
+
+    @Test
+    public void testAggregation() {
+        ContentionStorage storage = new ContentionStorage();
+        assertTrue(storage.getLocks().isEmpty());
+
+        storage.insert(ids(WAIT1), "java.lang.Object@1234", ids(OWNER), 100);
+        storage.insert(ids(WAIT1), "java.lang.Object@1234", ids(OWNER), 100);
+        storage.insert(ids(WAIT2), "java.lang.Object@1234", ids(OWNER), 50);
+        storage.insert(ids(WAIT2), "java.util.concurrent.locks.ReentrantLock$NonfairSync@99", new int[0], 10);
+
+        List<ContentionStorage.ContendedLock> locks = storage.getLocks();
+        assertEquals(2, locks.size());
+
+        ContentionStorage.ContendedLock lock = locks.get(0);
+        assertEquals("java.lang.Object@1234", lock.name);
+        assertEquals(3, lock.counter);
+        assertEquals(250, lock.weight);
+        assertEquals(2, lock.contentions.size());
+        assertArrayEquals(new StackTraceElement[] { WAIT1 }, lock.contentions.get(0).waiterStackTrace);
+        assertArrayEquals(new StackTraceElement[] { OWNER }, lock.contentions.get(0).ownerStackTrace);
+        assertEquals(2, lock.contentions.get(0).counter);
+        assertEquals(200, lock.contentions.get(0).weight);
+        assertArrayEquals(new StackTraceElement[] { WAIT2 }, lock.contentions.get(1).waiterStackTrace);
+
+        ContentionStorage.ContendedLock unknownOwner = locks.get(1);
+        assertEquals(1, unknownOwner.counter);
+        assertEquals(0, unknownOwner.contentions.get(0).ownerStackTrace.length);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        storage.print(new PrintStream(output), 1, 1);
+        String printed = output.toString();
+        assertTrue(printed.contains("java.lang.Object@1234: 3 samples"));
+        assertTrue(printed.contains("test.Cache.rebuild"));
+        assertFalse(printed.contains("ReentrantLock"));
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.knokko.profiler.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestFrameDictionary {
+
+    @Test
+    public void testIDs() {
+        FrameDictionary dictionary = new FrameDictionary();
+        StackTraceElement run5 = new StackTraceElement("Worker", "run", "Worker.java", 5);
+        StackTraceElement run6 = new StackTraceElement("Worker", "run", "Worker.java", 6);
+        StackTraceElement otherRun5 = new StackTraceElement("Worker", "run", "OtherWorker.java", 5);
+        StackTraceElement stop5 = new StackTraceElement("Worker", "stop", "Worker.java", 5);
+
+        assertEquals(0, dictionary.getNumFrames());
+        assertEquals(0, dictionary.getID(run5));
+        assertEquals(1, dictionary.getID(run6));
+        assertEquals(0, dictionary.getID(new StackTraceElement("Worker", "run", "Worker.java", 5)));
+
+        // The file name is not part of the frame identity
+        assertEquals(0, dictionary.getID(otherRun5));
+        assertEquals(2, dictionary.getID(stop5));
+        assertEquals(3, dictionary.getNumFrames());
+        assertEquals(2, dictionary.getNumMethods());
+
+        assertEquals(dictionary.getMethodID(0), dictionary.getMethodID(1));
+        assertNotEquals(dictionary.getMethodID(0), dictionary.getMethodID(2));
+        assertSame(dictionary.getMethodName(0), dictionary.getMethodName(1));
+        assertEquals(new FrequencyThreadStorage.MethodName(stop5), dictionary.getMethodName(2));
+        assertSame(dictionary.getMethodName(2), dictionary.getMethodNameByMethodID(dictionary.getMethodID(2)));
+        assertEquals(6, dictionary.getLineNumber(1));
+
+        StackTraceElement[] stackTrace = { stop5, run6, run5 };
+        int[] ids = dictionary.getIDs(stackTrace);
+        assertArrayEquals(new int[] { 2, 1, 0 }, ids);
+        assertArrayEquals(stackTrace, dictionary.getFrames(ids));
+        assertSame(run5, dictionary.getFrame(0));
+    }
+
+    @Test
+    public void testConcurrentRegistration() throws InterruptedException {
+        FrameDictionary dictionary = new FrameDictionary();
+        int numThreads = 4;
+        int numFrames = 1000;
+
+        int[][] results = new int[numThreads][numFrames];
+        List<Thread> threads = new ArrayList<>();
+        for (int threadIndex = 0; threadIndex < numThreads; threadIndex++) {
+            int[] threadResults = results[threadIndex];
+            threads.add(new Thread(() -> {
+                for (int line = 0; line < numFrames; line++) {
+                    threadResults[line] = dictionary.getID(new StackTraceElement(
+                            "Class" + (line % 10), "method", "Class.java", line
+                    ));
+                }
+            }));
+        }
+
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+
+        assertEquals(numFrames, dictionary.getNumFrames());
+        assertEquals(10, dictionary.getNumMethods());
+        for (int threadIndex = 1; threadIndex < numThreads; threadIndex++) {
+            assertArrayEquals(results[0], results[threadIndex]);
+        }
+        for (int line = 0; line < numFrames; line++) {
+            assertEquals(line, dictionary.getLineNumber(results[0][line]));
+            assertEquals("Class" + (line % 10), dictionary.getFrame(results[0][line]).getClassName());
+        }
+    }
+}
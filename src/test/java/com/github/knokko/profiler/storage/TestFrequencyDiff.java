@@ -0,0 +1,136 @@
+package com.github.knokko.profiler.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestFrequencyDiff {
+
+    private static final StackTraceElement MAIN = new StackTraceElement("test.App", "main", "App", 5);
+    private static final StackTraceElement PARSE = new StackTraceElement("test.App", "parse", "App", 10);
+    private static final StackTraceElement RENDER = new StackTraceElement("test.App", "render", "App", 20);
+    private static final StackTraceElement LOG = new StackTraceElement("test.App", "log", "App", 30);
+
+    private static void insert(FrequencyThreadStorage storage, int amount, StackTraceElement... stackTrace) {
+        for (int counter = 0; counter < amount; counter++) storage.insert(stackTrace, counter);
+    }
+
+    private static FrequencyDiff.DiffNode findChild(FrequencyDiff.DiffNode parent, StackTraceElement frame) {
+        for (FrequencyDiff.DiffNode child : parent.children) {
+            if (child.method.methodName.equals(frame.getMethodName()) && child.lineNumber == frame.getLineNumber()) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testDiff() {
+        FrequencyThreadStorage baseline = new FrequencyThreadStorage();
+        insert(baseline, 50, PARSE, MAIN);
+        insert(baseline, 49, RENDER, MAIN);
+        insert(baseline, 1, LOG, MAIN);
+
+        // The candidate has twice as many samples, so its counts need to be normalized
+        FrequencyThreadStorage candidate = new FrequencyThreadStorage();
+        insert(candidate, 60, PARSE, MAIN);
+        insert(candidate, 120, RENDER, MAIN);
+        insert(candidate, 20, MAIN);
+
+        FrequencyDiff diff = new FrequencyDiff(baseline, candidate, false, 0.02, 2);
+        assertEquals(1.0, diff.root.getBaselineShare(), 1e-9);
+        assertEquals(1.0, diff.root.getCandidateShare(), 1e-9);
+
+        FrequencyDiff.DiffNode main = findChild(diff.root, MAIN);
+        assertNotNull(main);
+        assertEquals(100, main.getBaselineValue());
+        assertEquals(200, main.getCandidateValue());
+        assertEquals(0.0, main.getDelta(), 1e-9);
+        assertEquals(0.1, main.getSelfDelta(), 1e-9);
+
+        FrequencyDiff.DiffNode parse = findChild(main, PARSE);
+        assertEquals(0.5, parse.getBaselineShare(), 1e-9);
+        assertEquals(0.3, parse.getCandidateShare(), 1e-9);
+        assertEquals(-0.2, parse.getDelta(), 1e-9);
+
+        FrequencyDiff.DiffNode render = findChild(main, RENDER);
+        assertEquals(0.11, render.getSelfDelta(), 1e-9);
+
+        // The log frame is below the prune threshold in both profiles
+        assertNull(findChild(main, LOG));
+        assertEquals(2, main.children.size());
+
+        assertEquals(2, diff.regressions.size());
+        assertSame(render, diff.regressions.get(0));
+        assertSame(main, diff.regressions.get(1));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        diff.printRegressions(new PrintStream(output), 10);
+        String printed = output.toString();
+        assertTrue(printed.contains("test.App.render:20"));
+        assertTrue(printed.indexOf("render") < printed.indexOf("main:5"));
+    }
+
+    @Test
+    public void testNewAndRemovedFrames() {
+        FrequencyThreadStorage baseline = new FrequencyThreadStorage();
+        insert(baseline, 10, PARSE);
+
+        FrequencyThreadStorage candidate = new FrequencyThreadStorage();
+        insert(candidate, 10, RENDER);
+
+        FrequencyDiff diff = new FrequencyDiff(baseline, candidate, false, 0.0, 10);
+        assertEquals(-1.0, findChild(diff.root, PARSE).getDelta(), 1e-9);
+        assertEquals(1.0, findChild(diff.root, RENDER).getDelta(), 1e-9);
+        assertEquals(1, diff.regressions.size());
+    }
+
+    @Test
+    public void testSampleStorages() {
+        SampleStorage<FrequencyThreadStorage> baseline = SampleStorage.frequency();
+        baseline.insert(1, new StackTraceElement[] { PARSE }, 0);
+        baseline.insert(2, new StackTraceElement[] { RENDER }, 0);
+
+        SampleStorage<FrequencyThreadStorage> candidate = SampleStorage.frequency();
+        candidate.insert(5, new StackTraceElement[] { RENDER }, 0);
+
+        FrequencyDiff diff = new FrequencyDiff(baseline, candidate, false, 0.0, 10);
+        assertEquals(2, diff.root.getBaselineValue());
+        assertEquals(0.5, findChild(diff.root, RENDER).getDelta(), 1e-9);
+    }
+
+    @Test
+    public void testSharedFramesAcrossThreads() {
+        SampleStorage<FrequencyThreadStorage> baseline = SampleStorage.frequency();
+        for (long threadID = 1; threadID <= 3; threadID++) {
+            for (int counter = 0; counter < 10; counter++) {
+                baseline.insert(threadID, new StackTraceElement[] { PARSE, MAIN }, counter);
+            }
+        }
+        baseline.insert(2, new StackTraceElement[] { LOG, MAIN }, 0);
+
+        SampleStorage<FrequencyThreadStorage> candidate = SampleStorage.frequency();
+        for (int counter = 0; counter < 20; counter++) {
+            candidate.insert(7, new StackTraceElement[] { PARSE, MAIN }, counter);
+            candidate.insert(8, new StackTraceElement[] { RENDER, MAIN }, counter);
+        }
+
+        FrequencyDiff diff = new FrequencyDiff(baseline, candidate, false, 0.05, 5);
+        assertEquals(31, diff.root.getBaselineValue());
+        assertEquals(40, diff.root.getCandidateValue());
+
+        // The main frames of all threads must be merged into 1 node
+        assertEquals(1, diff.root.children.size());
+        FrequencyDiff.DiffNode main = findChild(diff.root, MAIN);
+        assertEquals(31, main.getBaselineValue());
+
+        FrequencyDiff.DiffNode parse = findChild(main, PARSE);
+        assertEquals(30, parse.getBaselineValue());
+        assertEquals(20, parse.getCandidateValue());
+        assertNull(findChild(main, LOG));
+        assertSame(findChild(main, RENDER), diff.regressions.get(0));
+    }
+}
@@ -5,10 +5,13 @@ import org.junit.jupiter.api.Test;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.*;
 
 public class TestFrequencyThreadStorage {
 
@@ -142,4 +145,274 @@ public class TestFrequencyThreadStorage {
         assertEquals("    5 samples (11.63%)", outputReader.nextLine());
         assertFalse(outputReader.hasNextLine());
     }
+
+    @Test
+    public void testWeights() {
+        FrequencyThreadStorage storage = new FrequencyThreadStorage();
+
+        StackTraceElement main = new StackTraceElement("test.dummy.Dummy", "main", "Dummy", 5);
+        StackTraceElement work = new StackTraceElement("test.dummy.Dummy", "work", "Dummy", 12);
+        int[] workStack = FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { work, main });
+        int[] mainStack = FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { main });
+
+        storage.insert(workStack, 0, 1000);
+        storage.insert(workStack, 1, 4000);
+        storage.insert(mainStack, 2, 2000);
+
+        // Samples without a period don't contribute to the weight
+        storage.insert(mainStack, 3);
+
+        assertEquals(4, storage.rootNode.counter.get());
+        assertEquals(7000, storage.rootNode.getWeight());
+
+        FrequencyThreadStorage.MethodNode mainNode = storage.rootNode.children.get(new FrequencyThreadStorage.MethodName(main));
+        assertEquals(7000, mainNode.getWeight());
+        FrequencyThreadStorage.LineNode mainLine = mainNode.lines.get(5);
+        assertEquals(7000, mainLine.getWeight());
+
+        FrequencyThreadStorage.MethodNode workNode = mainLine.children.get(new FrequencyThreadStorage.MethodName(work));
+        assertEquals(2, workNode.counter.get());
+        assertEquals(5000, workNode.getWeight());
+        assertEquals(5000, workNode.lines.get(12).getWeight());
+    }
+
+    @Test
+    public void testSnapshot() {
+        FrequencyThreadStorage storage = new FrequencyThreadStorage();
+        StackTraceElement outer = new StackTraceElement("test.Outer", "run", "Outer", 1);
+        StackTraceElement inner1 = new StackTraceElement("test.Inner", "first", "Inner", 10);
+        StackTraceElement inner2 = new StackTraceElement("test.Inner", "second", "Inner", 20);
+
+        for (int counter = 0; counter < 3; counter++) storage.insert(new StackTraceElement[] { inner1, outer }, counter);
+        FrequencyThreadStorage.Snapshot snapshot1 = storage.snapshot();
+
+        for (int counter = 0; counter < 2; counter++) storage.insert(new StackTraceElement[] { inner2, outer }, counter);
+        FrequencyThreadStorage.Snapshot snapshot2 = storage.snapshot();
+        storage.insert(new StackTraceElement[] { inner1, outer }, 5);
+
+        FrequencyThreadStorage.MethodNode outerNode = storage.rootNode.children.get(
+                new FrequencyThreadStorage.MethodName(outer)
+        );
+        FrequencyThreadStorage.LineNode outerLine = outerNode.lines.get(1);
+        FrequencyThreadStorage.MethodNode inner1Node = outerLine.children.get(new FrequencyThreadStorage.MethodName(inner1));
+        FrequencyThreadStorage.MethodNode inner2Node = outerLine.children.get(new FrequencyThreadStorage.MethodName(inner2));
+
+        assertEquals(6, storage.rootNode.counter.get());
+        assertEquals(3, snapshot1.getCounter(storage.rootNode));
+        assertEquals(5, snapshot2.getCounter(storage.rootNode));
+        assertEquals(3, snapshot1.getCounter(inner1Node));
+        assertEquals(3, snapshot2.getCounter(inner1Node));
+        assertEquals(0, snapshot1.getCounter(inner2Node));
+        assertEquals(2, snapshot2.getCounter(inner2Node));
+
+        // The first snapshot shouldn't see the node that was created later
+        assertEquals(1, snapshot1.getChildren(outerLine).size());
+        assertEquals(2, snapshot2.getChildren(outerLine).size());
+
+        snapshot1.close();
+        storage.insert(new StackTraceElement[] { inner2, outer }, 6);
+        assertEquals(5, snapshot2.getCounter(storage.rootNode));
+        assertEquals(2, snapshot2.getCounter(inner2Node));
+        snapshot2.close();
+
+        try (FrequencyThreadStorage.Snapshot snapshot3 = storage.snapshot()) {
+            assertEquals(7, snapshot3.getCounter(storage.rootNode));
+            assertEquals(3, snapshot3.getCounter(inner2Node));
+        }
+    }
+
+    @Test
+    public void testSnapshotConsistency() throws InterruptedException {
+        FrequencyThreadStorage storage = new FrequencyThreadStorage();
+        AtomicBoolean shouldStop = new AtomicBoolean(false);
+        Thread writer = new Thread(() -> {
+            int counter = 0;
+            while (!shouldStop.get()) {
+                StackTraceElement[] stackTrace = new StackTraceElement[1 + counter % 5];
+                for (int depth = 0; depth < stackTrace.length; depth++) {
+                    stackTrace[depth] = new StackTraceElement("test.Class" + depth, "method", "Class", counter % 3);
+                }
+                storage.insert(stackTrace, counter);
+                counter += 1;
+            }
+        });
+        writer.start();
+
+        for (int counter = 0; counter < 200; counter++) {
+            try (FrequencyThreadStorage.Snapshot snapshot = storage.snapshot()) {
+                long total = snapshot.getCounter(storage.rootNode);
+                assertEquals(total, snapshot.getCounter(storage.rootNode));
+                assertConsistent(snapshot, storage.rootNode);
+            }
+        }
+        shouldStop.set(true);
+        writer.join();
+    }
+
+    private void assertConsistent(FrequencyThreadStorage.Snapshot snapshot, FrequencyThreadStorage.LineNode node) {
+        long childSum = 0;
+        for (FrequencyThreadStorage.MethodNode child : snapshot.getChildren(node).values()) {
+            long lineSum = 0;
+            for (FrequencyThreadStorage.LineNode line : snapshot.getLines(child).values()) {
+                lineSum += snapshot.getCounter(line);
+                assertConsistent(snapshot, line);
+            }
+            assertEquals(snapshot.getCounter(child), lineSum);
+            childSum += snapshot.getCounter(child);
+        }
+        assertTrue(childSum <= snapshot.getCounter(node));
+    }
+
+    @Test
+    public void testMerge() {
+        StackTraceElement outer = new StackTraceElement("test.Outer", "run", "Outer", 1);
+        StackTraceElement inner1 = new StackTraceElement("test.Inner", "first", "Inner", 10);
+        StackTraceElement inner2 = new StackTraceElement("test.Inner", "second", "Inner", 20);
+
+        FrequencyThreadStorage storage1 = new FrequencyThreadStorage();
+        storage1.insert(FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { inner1, outer }), 1, 10);
+        storage1.insert(FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { inner1, outer }), 2, 10);
+        FrequencyThreadStorage storage2 = new FrequencyThreadStorage();
+        storage2.insert(FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { inner2, outer }), 1, 30);
+
+        FrequencyThreadStorage aggregate = new FrequencyThreadStorage();
+        aggregate.merge(storage1);
+        aggregate.merge(storage2);
+        aggregate.merge(storage2);
+
+        assertEquals(4, aggregate.rootNode.counter.get());
+        assertEquals(80, aggregate.rootNode.getWeight());
+        FrequencyThreadStorage.LineNode outerLine = aggregate.rootNode.children.get(
+                new FrequencyThreadStorage.MethodName(outer)
+        ).lines.get(1);
+        assertEquals(4, outerLine.counter.get());
+        assertEquals(2, outerLine.children.get(new FrequencyThreadStorage.MethodName(inner1)).counter.get());
+        FrequencyThreadStorage.MethodNode inner2Node = outerLine.children.get(new FrequencyThreadStorage.MethodName(inner2));
+        assertEquals(2, inner2Node.counter.get());
+        assertEquals(60, inner2Node.lines.get(20).getWeight());
+    }
+
+    @Test
+    public void testCpuAndBlockedTime() {
+        StackTraceElement outer = new StackTraceElement("test.Outer", "run", "Outer", 1);
+        StackTraceElement inner = new StackTraceElement("test.Inner", "compute", "Inner", 10);
+        int[] innerStack = FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { inner, outer });
+        int[] outerStack = FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { outer });
+
+        FrequencyThreadStorage storage = new FrequencyThreadStorage();
+        storage.insert(innerStack, 1, 100, Thread.State.RUNNABLE, 90);
+        storage.insert(innerStack, 2, 100, Thread.State.RUNNABLE, ThreadStorage.UNKNOWN_CPU_TIME);
+        storage.insert(outerStack, 3, 100, Thread.State.BLOCKED, 5);
+        storage.insert(outerStack, 4, 100, Thread.State.TIMED_WAITING, 0);
+        storage.insert(outerStack, 5, 100);
+
+        assertEquals(5, storage.rootNode.counter.get());
+        assertEquals(500, storage.rootNode.getWeight());
+        assertEquals(95, storage.rootNode.getCpuTime());
+        assertEquals(200, storage.rootNode.getBlockedTime());
+
+        FrequencyThreadStorage.LineNode outerLine = storage.rootNode.children.get(
+                new FrequencyThreadStorage.MethodName(outer)
+        ).lines.get(1);
+        FrequencyThreadStorage.MethodNode innerNode = outerLine.children.get(
+                new FrequencyThreadStorage.MethodName(inner)
+        );
+        assertEquals(95, outerLine.getCpuTime());
+        assertEquals(90, innerNode.getCpuTime());
+        assertEquals(0, innerNode.getBlockedTime());
+
+        try (FrequencyThreadStorage.Snapshot snapshot = storage.snapshot()) {
+            storage.insert(innerStack, 6, 100, Thread.State.WAITING, 1000);
+            assertEquals(90, snapshot.getCpuTime(innerNode));
+            assertEquals(0, snapshot.getBlockedTime(innerNode));
+        }
+        assertEquals(1090, innerNode.getCpuTime());
+        assertEquals(100, innerNode.getBlockedTime());
+    }
+
+    @Test
+    public void testFlatProfile() {
+        StackTraceElement main = new StackTraceElement("test.Flat", "main", "Flat", 1);
+        StackTraceElement recurse1 = new StackTraceElement("test.Flat", "recurse", "Flat", 10);
+        StackTraceElement recurse2 = new StackTraceElement("test.Flat", "recurse", "Flat", 11);
+        StackTraceElement leaf = new StackTraceElement("test.Flat", "leaf", "Flat", 20);
+
+        FrequencyThreadStorage storage = new FrequencyThreadStorage();
+        int[] recursive = FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { recurse2, recurse1, recurse1, main });
+        for (int counter = 0; counter < 5; counter++) storage.insert(recursive, counter, 10);
+        int[] withLeaf = FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { leaf, recurse1, main });
+        for (int counter = 0; counter < 3; counter++) storage.insert(withLeaf, counter, 10);
+        storage.insert(FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { main }), 0, 10);
+
+        List<FrequencyThreadStorage.MethodStats> top = storage.topMethods(2);
+        assertEquals(2, top.size());
+        assertEquals("recurse", top.get(0).method.methodName);
+        assertEquals(5, top.get(0).selfCount);
+        assertEquals(50, top.get(0).selfWeight);
+
+        // The recursive calls must be counted only once per sample
+        assertEquals(8, top.get(0).totalCount);
+        assertEquals(80, top.get(0).totalWeight);
+
+        assertEquals("leaf", top.get(1).method.methodName);
+        assertEquals(3, top.get(1).selfCount);
+        assertEquals(3, top.get(1).totalCount);
+
+        assertEquals(3, storage.getMethodStats().size());
+        FrequencyThreadStorage.MethodStats mainStats = storage.topMethods(3, true).get(2);
+        assertEquals("main", mainStats.method.methodName);
+        assertEquals(1, mainStats.selfCount);
+        assertEquals(9, mainStats.totalCount);
+
+        FrequencyThreadStorage merged = new FrequencyThreadStorage();
+        merged.insert(FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { leaf }), 0, 10);
+        merged.merge(storage);
+        FrequencyThreadStorage.MethodStats mergedLeaf = merged.topMethods(2).get(1);
+        assertEquals("leaf", mergedLeaf.method.methodName);
+        assertEquals(4, mergedLeaf.selfCount);
+        assertEquals(4, mergedLeaf.totalCount);
+    }
+
+    @Test
+    public void testFlatProfileGrowth() {
+        FrequencyThreadStorage storage = new FrequencyThreadStorage();
+        for (int method = 0; method < 500; method++) {
+            StackTraceElement element = new StackTraceElement("test.Growth", "method" + method, "Growth", 1);
+            for (int counter = 0; counter <= method % 7; counter++) {
+                storage.insert(new StackTraceElement[] { element }, counter);
+            }
+        }
+
+        assertEquals(500, storage.getMethodStats().size());
+        List<FrequencyThreadStorage.MethodStats> top = storage.topMethods(10);
+        assertEquals(10, top.size());
+        for (FrequencyThreadStorage.MethodStats method : top) assertEquals(7, method.selfCount);
+        assertTrue(storage.topMethods(0).isEmpty());
+    }
+
+    @Test
+    public void testTopMethodsOrder() {
+        FrequencyThreadStorage storage = new FrequencyThreadStorage();
+        for (int method = 0; method < 200; method++) {
+            StackTraceElement element = new StackTraceElement("test.Order", "method" + method, "Order", 1);
+            int[] stackTrace = FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { element });
+            int amount = (method * 37) % 101 + 1;
+            for (int counter = 0; counter < amount; counter++) storage.insert(stackTrace, counter, 2 * method);
+        }
+
+        List<FrequencyThreadStorage.MethodStats> expected = new ArrayList<>(storage.getMethodStats());
+        expected.sort(Comparator.comparingLong(method -> -method.selfCount));
+        List<FrequencyThreadStorage.MethodStats> top = storage.topMethods(25);
+        assertEquals(25, top.size());
+        for (int index = 0; index < top.size(); index++) {
+            assertEquals(expected.get(index).selfCount, top.get(index).selfCount);
+        }
+
+        expected.sort(Comparator.comparingLong(method -> -method.selfWeight));
+        List<FrequencyThreadStorage.MethodStats> topWeights = storage.topMethods(1000, true);
+        assertEquals(200, topWeights.size());
+        for (int index = 0; index < topWeights.size(); index++) {
+            assertEquals(expected.get(index).selfWeight, topWeights.get(index).selfWeight);
+        }
+    }
 }
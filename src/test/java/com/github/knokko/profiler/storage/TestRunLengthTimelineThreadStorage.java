@@ -0,0 +1,65 @@
+package com.github.knokko.profiler.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestRunLengthTimelineThreadStorage {
+
+    @Test
+    public void testRuns() {
+        StackTraceElement main1 = new StackTraceElement("SampleProfiler", "main", "SampleProfiler", 1);
+        StackTraceElement main2 = new StackTraceElement("SampleProfiler", "main", "SampleProfiler", 2);
+        StackTraceElement run = new StackTraceElement("Application", "run", "Application", 100);
+
+        StackTraceElement[] runMain1 = { run, main1 };
+        StackTraceElement[] runMain2 = { run, main2 };
+        StackTraceElement[] other = { new StackTraceElement("SomethingElse", "other", "SomethingElse", 100) };
+
+        RunLengthTimelineThreadStorage storage = new RunLengthTimelineThreadStorage();
+        assertEquals(0, storage.getRunsBetween(Long.MIN_VALUE, Long.MAX_VALUE).size());
+        assertEquals(0, storage.sample(0, 100).length);
+
+        storage.insert(runMain1, 10);
+        storage.insert(runMain1, 20);
+        storage.insert(runMain1, 25);
+        storage.insert(runMain2, 30);
+        storage.insert(other, 40);
+        storage.insert(runMain1, 50);
+        storage.insert(runMain1, 60);
+
+        List<RunLengthTimelineThreadStorage.Run> runs = storage.getRunsBetween(0, 100);
+        assertEquals(4, runs.size());
+        assertEquals(new TimelineThreadStorage.Interval(10, 30, runMain1), runs.get(0).interval);
+        assertEquals(3, runs.get(0).numSamples);
+        assertEquals(new TimelineThreadStorage.Interval(30, 40, runMain2), runs.get(1).interval);
+        assertEquals(1, runs.get(1).numSamples);
+        assertEquals(new TimelineThreadStorage.Interval(40, 50, other), runs.get(2).interval);
+        assertEquals(new TimelineThreadStorage.Interval(50, 60, runMain1), runs.get(3).interval);
+        assertEquals(2, runs.get(3).numSamples);
+
+        // The closed runs are precomputed
+        assertSame(runs.get(1), storage.getRunsBetween(35, 35).get(0));
+        assertSame(runs.get(1).interval, storage.getIntervalsBetween(35, 35).get(0));
+
+        List<TimelineThreadStorage.Interval> intervals = storage.getIntervalsBetween(30, 40);
+        assertEquals(3, intervals.size());
+        assertEquals(runs.get(0).interval, intervals.get(0));
+        assertEquals(runs.get(2).interval, intervals.get(2));
+        assertEquals(1, storage.getIntervalsBetween(55, 1000).size());
+        assertEquals(0, storage.getIntervalsBetween(61, 1000).size());
+        assertEquals(0, storage.getIntervalsBetween(0, 9).size());
+
+        assertArrayEquals(runMain1, storage.sample(10, 20));
+        assertArrayEquals(runMain1, storage.sample(55, 60));
+        assertEquals(0, storage.sample(15, 100).length);
+
+        // Out-of-order samples are only accepted when they have the same stacktrace as the last run
+        storage.insert(runMain1, 55);
+        assertEquals(3, storage.getRunsBetween(55, 55).get(0).numSamples);
+        storage.insert(other, 55);
+        assertEquals(1, storage.getNumDroppedSamples());
+    }
+}
@@ -2,9 +2,14 @@ package com.github.knokko.profiler.storage;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
+import static java.lang.Thread.sleep;
 import static org.junit.jupiter.api.Assertions.*;
 
 public class TestSampleStorage {
@@ -50,4 +55,167 @@ public class TestSampleStorage {
             counter += 1;
         }
     }
+
+    @Test
+    public void testRemoveDeadThreads() {
+        SampleStorage<DummyStorage> storage = new SampleStorage<>(DummyStorage::new);
+        StackTraceElement[] dummyStackTrace = {};
+        storage.insert(3, dummyStackTrace, 10);
+        storage.insert(5, dummyStackTrace, 10);
+        storage.insert(8, dummyStackTrace, 10);
+
+        // Without a policy, nothing should be removed
+        storage.removeDeadThreads(new long[] { 5 });
+        assertEquals(3, storage.getThreadIDs().size());
+
+        List<Long> deadThreads = new ArrayList<>();
+        storage.deadThreadPolicy = (threadID, threadStorage) -> {
+            assertEquals(1, threadStorage.counter);
+            deadThreads.add(threadID);
+        };
+        storage.removeDeadThreads(new long[] { 1, 5, 7 });
+        assertNull(storage.getThreadStorage(3));
+        assertNotNull(storage.getThreadStorage(5));
+        assertNull(storage.getThreadStorage(8));
+        deadThreads.sort(Long::compare);
+        assertEquals(3L, (long) deadThreads.get(0));
+        assertEquals(8L, (long) deadThreads.get(1));
+        assertEquals(2, deadThreads.size());
+    }
+
+    @Test
+    public void testRemoveDeadThreadsKeepsNewThreads() throws InterruptedException {
+        SampleStorage<DummyStorage> storage = new SampleStorage<>(DummyStorage::new);
+        storage.deadThreadPolicy = DeadThreadPolicy.evict();
+        StackTraceElement[] dummyStackTrace = {};
+        storage.insert(3, dummyStackTrace, 10);
+        storage.insert(5, dummyStackTrace, 10);
+        sleep(1);
+        long snapshotTime = System.nanoTime();
+        sleep(1);
+
+        // The storage of thread 8 was created after the live thread IDs were computed, so it must be kept
+        storage.insert(8, dummyStackTrace, 10);
+        storage.removeDeadThreads(new long[] { 5 }, snapshotTime);
+        assertNull(storage.getThreadStorage(3));
+        assertNotNull(storage.getThreadStorage(5));
+        assertNotNull(storage.getThreadStorage(8));
+    }
+
+    @Test
+    public void testEvictClosesTimelines() throws IOException {
+        File directory = Files.createTempDirectory("timeline-spill").toFile();
+        TimelineRetention.Budget budget = new TimelineRetention.Budget(100_000_000L);
+        SampleStorage<TimelineThreadStorage> storage = SampleStorage.timeline(
+                TimelineRetention.budget(budget), new TimelineSpill(directory, 1)
+        );
+        storage.deadThreadPolicy = DeadThreadPolicy.evict();
+
+        int[] stackTrace = FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] {
+                new StackTraceElement("test.Worker", "work", "Worker", 5)
+        });
+        for (long timestamp = 0; timestamp < 5 * TimelineThreadStorage.CHUNK_SIZE; timestamp++) {
+            storage.insert(3, stackTrace, timestamp);
+            if (timestamp % 2 == 0) storage.insert(5, stackTrace, timestamp);
+        }
+        long usedBytes = budget.getUsedBytes();
+        File deadSpillFile = storage.getThreadStorage(3).getSpillFile();
+        File liveSpillFile = storage.getThreadStorage(5).getSpillFile();
+        assertTrue(deadSpillFile.exists());
+
+        // The bytes of the dead thread should be returned to the budget, and its spill file should be deleted
+        storage.removeDeadThreads(new long[] { 5 });
+        assertNull(storage.getThreadStorage(3));
+        assertTrue(budget.getUsedBytes() > 0);
+        assertTrue(budget.getUsedBytes() < usedBytes / 2, budget.getUsedBytes() + " of " + usedBytes);
+        assertFalse(deadSpillFile.exists());
+        assertTrue(liveSpillFile.exists());
+
+        storage.removeDeadThreads(new long[0]);
+        assertEquals(0, budget.getUsedBytes());
+        assertFalse(liveSpillFile.exists());
+        assertTrue(directory.delete());
+    }
+
+    @Test
+    public void testGetPoolName() {
+        assertEquals("pool-3-thread-", SampleStorage.getPoolName(new Thread("pool-3-thread-25")));
+        assertEquals("main", SampleStorage.getPoolName(new Thread("main")));
+        assertEquals("", SampleStorage.getPoolName(new Thread("123")));
+    }
+
+    @Test
+    public void testGroups() throws InterruptedException {
+        SampleStorage<FrequencyThreadStorage> storage = new SampleStorage<>(
+                FrequencyThreadStorage::new, SampleStorage::getPoolName
+        );
+        assertTrue(storage.isGrouped());
+
+        int numThreads = 8;
+        int numInserts = 10_000;
+        CountDownLatch finished = new CountDownLatch(1);
+        Thread[] workers = new Thread[numThreads];
+        for (int index = 0; index < numThreads; index++) {
+            workers[index] = new Thread(() -> {
+                try {
+                    finished.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers[index].setName((index % 2 == 0 ? "even-" : "odd-") + index);
+            workers[index].start();
+        }
+
+        // Insert the samples of all workers concurrently, like parallel ingestion workers would
+        StackTraceElement[] stackTrace = { new StackTraceElement("test.Worker", "work", "Worker", 5) };
+        Thread[] inserters = new Thread[numThreads];
+        for (int index = 0; index < numThreads; index++) {
+            long threadID = workers[index].getId();
+            inserters[index] = new Thread(() -> {
+                for (int counter = 0; counter < numInserts; counter++) storage.insert(threadID, stackTrace, counter);
+            });
+            inserters[index].start();
+        }
+        for (Thread inserter : inserters) inserter.join();
+
+        assertEquals(2, storage.getGroups().size());
+        assertSame(storage.getGroups().get("even-"), storage.getThreadStorage(workers[0].getId()));
+        assertSame(storage.getGroups().get("even-"), storage.getThreadStorage(workers[2].getId()));
+        assertSame(storage.getGroups().get("odd-"), storage.getThreadStorage(workers[1].getId()));
+        assertEquals(numThreads / 2 * numInserts, storage.getGroups().get("even-").rootNode.counter.get());
+        assertEquals(numThreads / 2 * numInserts, storage.getGroups().get("odd-").rootNode.counter.get());
+
+        // Dead threads should be removed from their group, but the group should be kept
+        finished.countDown();
+        for (Thread worker : workers) worker.join();
+        storage.removeDeadThreads(new long[0]);
+        assertTrue(storage.getThreadIDs().isEmpty());
+        assertEquals(2, storage.getGroups().size());
+    }
+
+    @Test
+    public void testGroupOfTerminatedThread() throws InterruptedException {
+        SampleStorage<FrequencyThreadStorage> storage = new SampleStorage<>(
+                FrequencyThreadStorage::new, SampleStorage::getPoolName
+        );
+
+        // The thread terminates before its sample is inserted, like it could when the ingestion is asynchronous
+        Thread worker = new Thread(() -> {}, "short-lived-1");
+        worker.start();
+        worker.join();
+
+        StackTraceElement[] stackTrace = { new StackTraceElement("test.Worker", "work", "Worker", 5) };
+        storage.onThreadSampled(worker);
+        storage.insert(worker.getId(), stackTrace, 123);
+
+        assertEquals(1, storage.getGroups().size());
+        assertSame(storage.getGroups().get("short-lived-"), storage.getThreadStorage(worker.getId()));
+        assertEquals(1, storage.getGroups().get("short-lived-").rootNode.counter.get());
+
+        // Sinks without a groupKey should ignore it
+        SampleStorage<FrequencyThreadStorage> ungrouped = SampleStorage.frequency();
+        ungrouped.onThreadSampled(worker);
+        assertTrue(ungrouped.getThreadIDs().isEmpty());
+    }
 }
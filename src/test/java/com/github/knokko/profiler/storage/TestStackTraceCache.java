@@ -2,6 +2,7 @@ package com.github.knokko.profiler.storage;
 
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertSame;
 
 public class TestStackTraceCache {
@@ -25,4 +26,17 @@ public class TestStackTraceCache {
         assertSame(trace2a, cache.getCached(trace2b));
         assertSame(trace2a, cache.getCached(trace2a));
     }
+
+    @Test
+    public void testGetCachedFrameIDs() {
+        StackTraceElement attack = new StackTraceElement("Attacker", "attack", "Attacker", 1);
+        StackTraceElement base = new StackTraceElement("Base", "base", "Base", 2);
+        int[] frames = FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { attack, base });
+
+        StackTraceCache cache = new StackTraceCache();
+        StackTraceElement[] cached = cache.getCached(frames);
+        assertArrayEquals(new StackTraceElement[] { attack, base }, cached);
+        assertSame(cached, cache.getCached(frames.clone()));
+        assertSame(cached, cache.getCached(new StackTraceElement[] { attack, base }));
+    }
 }
@@ -0,0 +1,41 @@
+package com.github.knokko.profiler.storage;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestTaggedStorage {
+
+    @Test
+    public void testBreakdownByTag() {
+        int[] stackTrace = FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] {
+                new StackTraceElement("test.Endpoint", "handle", "Endpoint", 5)
+        });
+
+        TaggedStorage<FrequencyThreadStorage> storage = TaggedStorage.frequency();
+        storage.insert(1, stackTrace, 10, 100, Thread.State.RUNNABLE, 0, 3);
+        storage.insert(2, stackTrace, 10, 100, Thread.State.RUNNABLE, 0, 3);
+        storage.insert(1, stackTrace, 20, 100, Thread.State.RUNNABLE, 0, 4);
+        storage.insert(1, stackTrace, 30, 100);
+
+        assertEquals(3, storage.getTags().size());
+        assertEquals(2, storage.getTagStorage(3).rootNode.counter.get());
+        assertEquals(200, storage.getTagStorage(3).rootNode.getWeight());
+        assertEquals(1, storage.getTagStorage(4).rootNode.counter.get());
+        assertEquals(1, storage.getTagStorage(SampleSink.NO_TAG).rootNode.counter.get());
+        assertNull(storage.getTagStorage(5));
+    }
+
+    @Test
+    public void testCompositeForwardsTags() {
+        int[] stackTrace = FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] {
+                new StackTraceElement("test.Endpoint", "handle", "Endpoint", 5)
+        });
+
+        TaggedStorage<FrequencyThreadStorage> tagged = TaggedStorage.frequency();
+        CompositeStorage composite = new CompositeStorage();
+        composite.add(tagged);
+        composite.insert(1, stackTrace, 10, 100, null, ThreadStorage.UNKNOWN_CPU_TIME, 7);
+        assertEquals(1, tagged.getTagStorage(7).rootNode.counter.get());
+    }
+}
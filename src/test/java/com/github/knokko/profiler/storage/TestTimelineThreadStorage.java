@@ -2,10 +2,14 @@ package com.github.knokko.profiler.storage;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
-import static org.junit.jupiter.api.Assertions.assertArrayEquals;
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 
 public class TestTimelineThreadStorage {
 
@@ -123,4 +127,245 @@ public class TestTimelineThreadStorage {
         assertEquals(intervals4.get(1), intervals5.get(0));
         assertEquals(intervals4.get(2), intervals5.get(1));
     }
+
+    @Test
+    public void testManyChunks() {
+        StackTraceElement[][] stackTraces = {
+                { new StackTraceElement("Worker", "work", "Worker", 1) },
+                { new StackTraceElement("Worker", "rest", "Worker", 2) },
+                { new StackTraceElement("Worker", "eat", "Worker", 3) }
+        };
+
+        TimelineThreadStorage storage = new TimelineThreadStorage();
+        List<Long> expectedTimestamps = new ArrayList<>();
+        int numSamples = 5 * TimelineThreadStorage.CHUNK_SIZE;
+        for (int counter = 0; counter < numSamples; counter++) {
+            long timestamp = 10L * counter;
+            storage.insert(stackTraces[(counter / 100) % 3], timestamp);
+            expectedTimestamps.add(timestamp);
+        }
+
+        // Insert some samples out of order
+        Random rng = new Random(1234);
+        for (int counter = 0; counter < 100; counter++) {
+            long timestamp = 5 + 10L * rng.nextInt(numSamples);
+            storage.insert(stackTraces[(int) ((timestamp / 1000) % 3)], timestamp);
+            expectedTimestamps.add(timestamp);
+        }
+        expectedTimestamps.sort(Long::compare);
+
+        List<TimelineThreadStorage.Sample> samples = storage.getBetween(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(expectedTimestamps.size(), samples.size());
+        for (int index = 0; index < samples.size(); index++) {
+            long timestamp = samples.get(index).timestamp;
+            assertEquals((long) expectedTimestamps.get(index), timestamp);
+            assertArrayEquals(stackTraces[(int) ((timestamp / 1000) % 3)], samples.get(index).stackTrace);
+        }
+
+        List<TimelineThreadStorage.Interval> intervals = storage.getIntervalsBetween(0, 10L * numSamples);
+        assertEquals(numSamples / 100 + 1, intervals.size());
+        for (int index = 0; index < intervals.size() - 1; index++) {
+            assertEquals(1000L * index, intervals.get(index).startTime);
+            assertEquals(1000L * (index + 1), intervals.get(index).endTime);
+        }
+
+        assertArrayEquals(stackTraces[1], storage.sample(1000, 1990));
+        assertEquals(0, storage.sample(1000, 2000).length);
+        assertEquals(countBetween(expectedTimestamps, 10000, 40000), storage.getBetween(10000, 40000).size());
+    }
+
+    private static int countBetween(List<Long> timestamps, long startTime, long endTime) {
+        int counter = 0;
+        for (long timestamp : timestamps) {
+            if (timestamp >= startTime && timestamp <= endTime) counter += 1;
+        }
+        return counter;
+    }
+
+    private static StackTraceElement[] uniqueStackTrace(int counter) {
+        return new StackTraceElement[] { new StackTraceElement("Worker", "work", "Worker", counter) };
+    }
+
+    @Test
+    public void testSpill() throws IOException {
+        StackTraceElement[][] stackTraces = {
+                { new StackTraceElement("Worker", "work", "Worker", 1) },
+                { new StackTraceElement("Worker", "rest", "Worker", 2) },
+                { new StackTraceElement("Worker", "eat", "Worker", 3) }
+        };
+
+        File directory = Files.createTempDirectory("timeline-spill").toFile();
+        TimelineRetention retention = TimelineRetention.maxSamples(6 * TimelineThreadStorage.CHUNK_SIZE);
+        TimelineThreadStorage heapStorage = new TimelineThreadStorage(retention);
+        TimelineThreadStorage spillStorage = new TimelineThreadStorage(retention, new TimelineSpill(directory, 2));
+
+        Random rng = new Random(5678);
+        int numSamples = 10 * TimelineThreadStorage.CHUNK_SIZE;
+        for (int counter = 0; counter < numSamples; counter++) {
+            long timestamp = 10L * counter;
+
+            // Insert some samples out of order, some of which will end up in spilled chunks
+            if (counter % 100 == 99) timestamp = 10L * (counter - rng.nextInt(3000)) + 5;
+
+            StackTraceElement[] stackTrace = stackTraces[(counter / 100) % 3];
+            heapStorage.insert(stackTrace, timestamp);
+            spillStorage.insert(stackTrace, timestamp);
+        }
+
+        File spillFile = spillStorage.getSpillFile();
+        assertTrue(spillFile.exists());
+        assertTrue(spillFile.length() > 0);
+
+        assertEquals(heapStorage.getBetween(Long.MIN_VALUE, Long.MAX_VALUE), spillStorage.getBetween(Long.MIN_VALUE, Long.MAX_VALUE));
+        for (int counter = 0; counter < 100; counter++) {
+            long startTime = 10L * rng.nextInt(numSamples);
+            long endTime = startTime + rng.nextInt(20000);
+            assertEquals(heapStorage.getBetween(startTime, endTime), spillStorage.getBetween(startTime, endTime));
+            assertEquals(
+                    heapStorage.getIntervalsBetween(startTime, endTime),
+                    spillStorage.getIntervalsBetween(startTime, endTime)
+            );
+            assertArrayEquals(heapStorage.sample(startTime, endTime), spillStorage.sample(startTime, endTime));
+        }
+
+        spillStorage.close();
+        assertFalse(spillFile.exists());
+        assertTrue(directory.delete());
+    }
+
+    private static void insertSpillSamples(TimelineThreadStorage storage, int[][] stackTraces, long start, int amount) {
+        for (long timestamp = start; timestamp < start + amount; timestamp++) {
+            storage.insert(stackTraces[(int) (timestamp / 100) % stackTraces.length], timestamp);
+        }
+    }
+
+    @Test
+    public void testSpillFileReusesEvictedSpace() throws IOException {
+        int[][] stackTraces = {
+                FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { new StackTraceElement("W", "work", "W", 1) }),
+                FrameDictionary.GLOBAL.getIDs(new StackTraceElement[] { new StackTraceElement("W", "rest", "W", 2) })
+        };
+
+        File directory = Files.createTempDirectory("timeline-spill").toFile();
+        TimelineRetention retention = TimelineRetention.maxSamples(4 * TimelineThreadStorage.CHUNK_SIZE);
+        TimelineThreadStorage storage = new TimelineThreadStorage(retention, new TimelineSpill(directory, 1));
+
+        // Without reuse, these samples would need more than 4 segments
+        int numSamples = 2 * SpillFile.SEGMENT_SIZE / 12 * 3;
+        insertSpillSamples(storage, stackTraces, 0, numSamples);
+        File spillFile = storage.getSpillFile();
+        assertTrue(spillFile.length() <= 2L * SpillFile.SEGMENT_SIZE, "length is " + spillFile.length());
+
+        // The space of chunks that are evicted while a snapshot is open must not be reused until it is closed
+        TimelineThreadStorage.Snapshot snapshot = storage.snapshot();
+        List<TimelineThreadStorage.Sample> expected = snapshot.getBetween(Long.MIN_VALUE, Long.MAX_VALUE);
+        assertTrue(expected.size() >= 3 * TimelineThreadStorage.CHUNK_SIZE);
+        insertSpillSamples(storage, stackTraces, numSamples, numSamples);
+        assertEquals(expected, snapshot.getBetween(Long.MIN_VALUE, Long.MAX_VALUE));
+        snapshot.close();
+
+        long lengthAfterSnapshot = spillFile.length();
+        insertSpillSamples(storage, stackTraces, 2L * numSamples, numSamples);
+        assertEquals(lengthAfterSnapshot, spillFile.length());
+
+        List<TimelineThreadStorage.Sample> samples = storage.getBetween(Long.MIN_VALUE, Long.MAX_VALUE);
+        for (int index = 0; index < samples.size(); index++) {
+            long timestamp = 3L * numSamples - samples.size() + index;
+            assertEquals(timestamp, samples.get(index).timestamp);
+            assertEquals(stackTraces[(int) (timestamp / 100) % 2][0], FrameDictionary.GLOBAL.getIDs(
+                    samples.get(index).stackTrace)[0]);
+        }
+
+        storage.close();
+        assertFalse(spillFile.exists());
+        assertTrue(directory.delete());
+    }
+
+    @Test
+    public void testMaxSamplesRetention() {
+        TimelineThreadStorage storage = new TimelineThreadStorage(TimelineRetention.maxSamples(2000));
+        int numSamples = 10 * TimelineThreadStorage.CHUNK_SIZE;
+        for (int counter = 0; counter < numSamples; counter++) {
+            storage.insert(uniqueStackTrace(counter / 10), counter);
+        }
+
+        List<TimelineThreadStorage.Sample> samples = storage.getBetween(0, numSamples);
+        assertTrue(samples.size() >= 2000);
+        assertTrue(samples.size() <= 2000 + TimelineThreadStorage.CHUNK_SIZE);
+        assertEquals(numSamples - 1, samples.get(samples.size() - 1).timestamp);
+        assertEquals(numSamples - samples.size(), samples.get(0).timestamp);
+
+        // The stacktraces of the evicted samples should have been released
+        assertTrue(storage.getNumCachedStackTraces() <= 1 + samples.size() / 10);
+        assertArrayEquals(uniqueStackTrace((numSamples - 1) / 10), storage.sample(numSamples - 1, numSamples - 1));
+    }
+
+    @Test
+    public void testMaxAgeRetention() {
+        TimelineThreadStorage storage = new TimelineThreadStorage(TimelineRetention.maxAge(50_000));
+        int numSamples = 10 * TimelineThreadStorage.CHUNK_SIZE;
+        for (int counter = 0; counter < numSamples; counter++) {
+            storage.insert(uniqueStackTrace(counter % 5), 10L * counter);
+        }
+
+        List<TimelineThreadStorage.Sample> samples = storage.getBetween(Long.MIN_VALUE, Long.MAX_VALUE);
+        long newestTimestamp = samples.get(samples.size() - 1).timestamp;
+        long oldestTimestamp = samples.get(0).timestamp;
+        assertTrue(newestTimestamp - oldestTimestamp >= 50_000);
+        assertTrue(newestTimestamp - oldestTimestamp <= 50_000 + 10L * TimelineThreadStorage.CHUNK_SIZE);
+        assertEquals(5, storage.getNumCachedStackTraces());
+    }
+
+    @Test
+    public void testBudgetRetention() {
+        TimelineRetention.Budget budget = new TimelineRetention.Budget(100_000);
+        TimelineThreadStorage storage1 = new TimelineThreadStorage(TimelineRetention.budget(budget));
+        TimelineThreadStorage storage2 = new TimelineThreadStorage(TimelineRetention.budget(budget));
+
+        int numSamples = 50 * TimelineThreadStorage.CHUNK_SIZE;
+        for (int counter = 0; counter < numSamples; counter++) {
+            storage1.insert(uniqueStackTrace(1), counter);
+            if (counter % 2 == 0) storage2.insert(uniqueStackTrace(2), counter);
+        }
+
+        assertTrue(budget.getUsedBytes() <= budget.maxBytes + 2 * 12 * TimelineThreadStorage.CHUNK_SIZE + 128);
+        int size1 = storage1.getBetween(0, numSamples).size();
+        int size2 = storage2.getBetween(0, numSamples).size();
+        assertTrue(size1 >= TimelineThreadStorage.CHUNK_SIZE);
+        assertTrue(size2 >= TimelineThreadStorage.CHUNK_SIZE);
+        assertTrue(12L * (size1 + size2) <= budget.maxBytes + 2 * 12 * TimelineThreadStorage.CHUNK_SIZE);
+    }
+
+    @Test
+    public void testSnapshot() {
+        TimelineThreadStorage storage = new TimelineThreadStorage(TimelineRetention.maxSamples(2000));
+        for (int counter = 0; counter < 1000; counter++) storage.insert(uniqueStackTrace(counter / 10), counter);
+
+        TimelineThreadStorage.Snapshot snapshot = storage.snapshot();
+
+        // Evict all samples of the snapshot
+        int numSamples = 10 * TimelineThreadStorage.CHUNK_SIZE;
+        for (int counter = 1000; counter < numSamples; counter++) {
+            storage.insert(uniqueStackTrace(counter / 10), counter);
+        }
+        assertTrue(storage.getBetween(0, 999).isEmpty());
+
+        // The snapshot should still see all its samples, and none of the newer samples
+        List<TimelineThreadStorage.Sample> samples = snapshot.getBetween(0, numSamples);
+        assertEquals(1000, samples.size());
+        for (int counter = 0; counter < 1000; counter++) {
+            assertEquals(counter, samples.get(counter).timestamp);
+            assertArrayEquals(uniqueStackTrace(counter / 10), samples.get(counter).stackTrace);
+        }
+        assertEquals(100, snapshot.getIntervalsBetween(0, numSamples).size());
+        assertArrayEquals(uniqueStackTrace(99), snapshot.sample(999, numSamples));
+
+        // The evicted stacktraces should be released after the snapshot is closed
+        int numCachedWhileOpen = storage.getNumCachedStackTraces();
+        snapshot.close();
+        storage.insert(uniqueStackTrace(numSamples / 10), numSamples);
+        assertTrue(storage.getNumCachedStackTraces() < numCachedWhileOpen);
+        assertTrue(storage.getNumCachedStackTraces() <= 2 + (2000 + TimelineThreadStorage.CHUNK_SIZE) / 10);
+        assertArrayEquals(uniqueStackTrace(numSamples / 10), storage.sample(numSamples, numSamples));
+    }
 }
@@ -8,8 +8,7 @@ import java.util.Collections;
 import java.util.List;
 
 import static com.github.knokko.profiler.util.StackTraceHelper.longestCommonStackTrace;
-import static org.junit.jupiter.api.Assertions.assertArrayEquals;
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 
 public class TestStackTraceHelper {
 
@@ -47,6 +46,20 @@ public class TestStackTraceHelper {
         assertArrayEquals(baseTrace, longestCommonStackTrace(stackTraces.iterator()));
     }
 
+    @Test
+    public void testTruncate() {
+        StackTraceElement[] stackTrace = take(0);
+        assertTrue(stackTrace.length > 3);
+        assertSame(stackTrace, StackTraceHelper.truncate(stackTrace, stackTrace.length));
+        assertFalse(StackTraceHelper.isTruncated(stackTrace));
+
+        StackTraceElement[] truncated = StackTraceHelper.truncate(stackTrace, 3);
+        assertEquals(4, truncated.length);
+        assertArrayEquals(Arrays.copyOf(stackTrace, 3), Arrays.copyOf(truncated, 3));
+        assertSame(StackTraceHelper.TRUNCATED, truncated[3]);
+        assertTrue(StackTraceHelper.isTruncated(truncated));
+    }
+
     private StackTraceElement[] take(int extraDiscard) {
         StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
         return Arrays.copyOfRange(stackTrace, 2 + extraDiscard, stackTrace.length);
@@ -0,0 +1,68 @@
+package com.github.knokko.profiler;
+
+import com.github.knokko.profiler.storage.FrequencyThreadStorage;
+import com.github.knokko.profiler.storage.TaggedStorage;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ThreadFactory;
+
+import static java.lang.Thread.sleep;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestVirtualThreads {
+
+    @Test
+    public void testVirtualThreadFactory() {
+        assertTrue(VirtualThreadRegistry.isSupported());
+
+        ThreadFactory factory = new VirtualThreadRegistry().newVirtualThreadFactory("factory");
+        Thread thread = factory.newThread(() -> {});
+        assertTrue(thread.isVirtual());
+        assertEquals("factory-0", thread.getName());
+        assertEquals("factory-1", factory.newThread(() -> {}).getName());
+    }
+
+    private static void busyTask(long duration) {
+        long endTime = System.nanoTime() + duration;
+        double dummy = 0.0;
+        while (System.nanoTime() < endTime) dummy += Math.sqrt(dummy + 1.0);
+        assertTrue(dummy > 0.0);
+    }
+
+    @Test
+    public void testSampleVirtualThreads() throws InterruptedException {
+        VirtualThreadRegistry registry = new VirtualThreadRegistry();
+        ThreadFactory factory = registry.newVirtualThreadFactory("TestVirtualThreads.busy");
+
+        TaggedStorage<FrequencyThreadStorage> virtualStorage = TaggedStorage.frequency();
+        SampleProfiler profiler = new SampleProfiler(TaggedStorage.frequency());
+        profiler.sleepTime = 1;
+        profiler.virtualThreadRegistry = registry;
+        profiler.virtualThreadStorage = virtualStorage;
+
+        Thread[] threads = new Thread[2];
+        for (int index = 0; index < threads.length; index++) {
+            threads[index] = factory.newThread(() -> busyTask(300_000_000L));
+            assertTrue(threads[index].isVirtual());
+        }
+
+        profiler.start();
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        sleep(10);
+        profiler.stop();
+
+        assertEquals(0, registry.getNumRunningThreads());
+        int tag = SampleContext.tag("TestVirtualThreads.busy");
+        assertEquals(1, virtualStorage.getTags().size());
+        FrequencyThreadStorage busyStorage = virtualStorage.getTagStorage(tag);
+        long counter = busyStorage.rootNode.counter.get();
+        assertTrue(counter >= 10, "counter is " + counter);
+
+        long busyCounter = busyStorage.getMethodStats().stream().filter(
+                method -> method.method.className.equals(TestVirtualThreads.class.getName()) &&
+                        method.method.methodName.equals("busyTask")
+        ).mapToLong(method -> method.totalCount).sum();
+        assertTrue(busyCounter >= counter / 2, "busyTask counter is " + busyCounter + " of " + counter);
+    }
+}